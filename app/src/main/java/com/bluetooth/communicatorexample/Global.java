@@ -17,36 +17,156 @@
 package com.bluetooth.communicatorexample;
 
 import android.app.Application;
+import android.os.SystemClock;
 
 import com.bluetooth.communicator.BluetoothCommunicator;
 import com.bluetooth.communicator.tools.BluetoothTools;
+import com.bluetooth.communicatorexample.communication.BluetoothTransport;
+import com.bluetooth.communicatorexample.communication.BroadcastDispatcher;
+import com.bluetooth.communicatorexample.communication.CommunicatorEventBus;
+import com.bluetooth.communicatorexample.communication.LatencyProbe;
+import com.bluetooth.communicatorexample.communication.LoopbackTransport;
+import com.bluetooth.communicatorexample.communication.MessageCompressor;
+import com.bluetooth.communicatorexample.communication.MessageRouter;
+import com.bluetooth.communicatorexample.communication.RecentPeerReconnector;
+import com.bluetooth.communicatorexample.communication.SequencedDelivery;
+import com.bluetooth.communicatorexample.communication.ThroughputBenchmark;
+import com.bluetooth.communicatorexample.communication.TransferEngine;
+import com.bluetooth.communicatorexample.communication.Transport;
+import com.bluetooth.communicatorexample.fragments.ConversationFragment;
+import com.bluetooth.communicatorexample.storage.ConversationLog;
+import com.bluetooth.communicatorexample.storage.RecentPeers;
+import com.bluetooth.communicatorexample.storage.SearchIndex;
+import com.bluetooth.communicatorexample.tools.DeviceNames;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class Global extends Application {
-    private BluetoothCommunicator bluetoothCommunicator;
+    private Transport transport;
+    private CommunicatorEventBus eventBus;
+    private MessageRouter messageRouter;
+    private BroadcastDispatcher broadcastDispatcher;
+    private TransferEngine transferEngine;
+    private MessageCompressor messageCompressor;
+    private SequencedDelivery sequencedDelivery;
+    private LatencyProbe latencyProbe;
+    private ThroughputBenchmark throughputBenchmark;
+    private RecentPeerReconnector reconnector;
+    private ConversationLog conversationLog;
+    private SearchIndex searchIndex;
+    private final ExecutorService textLayoutExecutor = Executors.newSingleThreadExecutor();
 
     @Override
     public void onCreate() {
         super.onCreate();
+        long launchTime = SystemClock.uptimeMillis();
         String name = android.os.Build.MODEL;
         //compatibily check for supported characters
         ArrayList<Character> supportedCharacters = BluetoothTools.getSupportedUTFCharacters(this);
-        boolean equals = true;
-        for (int i = 0; i < name.length() && equals; i++) {
-            if (!supportedCharacters.contains(Character.valueOf(name.charAt(i)))) {
-                equals = false;
+        if (!DeviceNames.hasOnlySupportedCharacters(name, supportedCharacters) || name.length() > DeviceNames.MAX_LENGTH) {
+            name = "User " + new Random().nextInt(21);
+        }
+
+        if (BuildConfig.LOOPBACK_PEERS > 0) {
+            // build with -PloopbackPeers=N to use the app with N simulated peers instead of Bluetooth
+            // and with -PloopbackLatency, loopbackBandwidth, loopbackLossRate, loopbackIncomingRequests, loopbackLoadRate to configure them
+            LoopbackTransport loopbackTransport = new LoopbackTransport(this, name, BuildConfig.LOOPBACK_PEERS);
+            loopbackTransport.setLatency(BuildConfig.LOOPBACK_LATENCY);
+            loopbackTransport.setBandwidth(BuildConfig.LOOPBACK_BANDWIDTH);
+            loopbackTransport.setLossRate(BuildConfig.LOOPBACK_LOSS_RATE);
+            loopbackTransport.setIncomingConnectionRequests(BuildConfig.LOOPBACK_INCOMING_REQUESTS);
+            if (BuildConfig.LOOPBACK_LOAD_RATE > 0) {
+                loopbackTransport.startLoad(ConversationFragment.CHAT_HEADER, BuildConfig.LOOPBACK_LOAD_RATE);
             }
+            transport = loopbackTransport;
+        } else {
+            transport = new BluetoothTransport(new BluetoothCommunicator(this, name, BluetoothCommunicator.STRATEGY_P2P_WITH_RECONNECTION));
         }
-        if (!equals || name.length() > 18) {
-            name = "User " + new Random().nextInt(21);
+        eventBus = new CommunicatorEventBus(transport);
+        messageRouter = new MessageRouter(transport);
+        broadcastDispatcher = new BroadcastDispatcher(this, transport);
+        transferEngine = new TransferEngine(this, transport, broadcastDispatcher, messageRouter);
+        messageCompressor = new MessageCompressor(this, transport, broadcastDispatcher, messageRouter);
+        broadcastDispatcher.setCompressor(messageCompressor);
+        sequencedDelivery = new SequencedDelivery(this, transport, broadcastDispatcher, messageRouter);
+        broadcastDispatcher.setSequencer(sequencedDelivery);
+        latencyProbe = new LatencyProbe(this, transport, broadcastDispatcher, messageRouter);
+        throughputBenchmark = new ThroughputBenchmark(this, transport, broadcastDispatcher, messageRouter);
+        reconnector = new RecentPeerReconnector(transport, eventBus, new RecentPeers(new File(getFilesDir(), "recent_peers")), launchTime);
+        try {
+            conversationLog = new ConversationLog(new File(getFilesDir(), "conversation.log"));
+        } catch (IOException e) {
+            throw new RuntimeException("cannot open the conversation log", e);
         }
+        searchIndex = new SearchIndex(conversationLog, new File(getFilesDir(), "conversation.log.search"));
+    }
+
+    /**
+     * The BluetoothCommunicator, or the LoopbackTransport if the app has been built with loopbackPeers
+     **/
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * The gui receives the callbacks of the communicator from here, instead of registering them in the communicator
+     **/
+    public CommunicatorEventBus getEventBus() {
+        return eventBus;
+    }
+
+    public MessageRouter getMessageRouter() {
+        return messageRouter;
+    }
+
+    public BroadcastDispatcher getBroadcastDispatcher() {
+        return broadcastDispatcher;
+    }
+
+    public TransferEngine getTransferEngine() {
+        return transferEngine;
+    }
+
+    public MessageCompressor getMessageCompressor() {
+        return messageCompressor;
+    }
+
+    public LatencyProbe getLatencyProbe() {
+        return latencyProbe;
+    }
+
+    public ThroughputBenchmark getThroughputBenchmark() {
+        return throughputBenchmark;
+    }
+
+    /**
+     * Reconnects at launch to the most likely of the recently connected peers
+     **/
+    public RecentPeerReconnector getReconnector() {
+        return reconnector;
+    }
+
+    public SequencedDelivery getSequencedDelivery() {
+        return sequencedDelivery;
+    }
+
+    public ConversationLog getConversationLog() {
+        return conversationLog;
+    }
 
-        bluetoothCommunicator = new BluetoothCommunicator(this, name, BluetoothCommunicator.STRATEGY_P2P_WITH_RECONNECTION);
+    public SearchIndex getSearchIndex() {
+        return searchIndex;
     }
 
-    public BluetoothCommunicator getBluetoothCommunicator() {
-        return bluetoothCommunicator;
+    /**
+     * The thread that measures the text of the messages for the MessagesAdapter, shared so that creating an adapter does not start a new thread
+     **/
+    public ExecutorService getTextLayoutExecutor() {
+        return textLayoutExecutor;
     }
 }
@@ -22,24 +22,30 @@ import androidx.coordinatorlayout.widget.CoordinatorLayout;
 import androidx.fragment.app.Fragment;
 import androidx.fragment.app.FragmentManager;
 import androidx.fragment.app.FragmentTransaction;
+import androidx.lifecycle.LifecycleOwner;
 
 import android.Manifest;
 import android.content.DialogInterface;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.view.View;
 
+import com.bluetooth.communicatorexample.communication.CommunicatorEventBus;
+import com.bluetooth.communicatorexample.fragments.BenchmarkFragment;
 import com.bluetooth.communicatorexample.fragments.ConversationFragment;
 import com.bluetooth.communicatorexample.fragments.PairingFragment;
+import com.bluetooth.communicatorexample.tools.ListenerRegistry;
 import com.bluetooth.communicatorexample.tools.Tools;
 import com.bluetooth.communicator.BluetoothCommunicator;
 import com.bluetooth.communicator.Peer;
 
-import java.util.ArrayList;
 import java.util.List;
 
 public class MainActivity extends AppCompatActivity {
     public static final int PAIRING_FRAGMENT = 0;
     public static final int CONVERSATION_FRAGMENT = 1;
+    public static final int BENCHMARK_FRAGMENT = 2;
     public static final int DEFAULT_FRAGMENT = PAIRING_FRAGMENT;
     public static final int NO_PERMISSIONS = -10;
     private static final int REQUEST_CODE_REQUIRED_PERMISSIONS = 2;
@@ -50,7 +56,45 @@ public class MainActivity extends AppCompatActivity {
     };
     private Global global;
     private int currentFragment = -1;
-    private ArrayList<Callback> clientsCallbacks = new ArrayList<>();
+    private final ListenerRegistry<Callback> clientsCallbacks = new ListenerRegistry<>();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable searchStartedTask = new Runnable() {
+        @Override
+        public void run() {
+            notifySearchStarted();
+        }
+    };
+    private final Runnable searchStoppedTask = new Runnable() {
+        @Override
+        public void run() {
+            notifySearchStopped();
+        }
+    };
+    // the notifications use these constants, so they do not allocate
+    private static final ListenerRegistry.Action<Callback> SEARCH_STARTED = new ListenerRegistry.Action<Callback>() {
+        @Override
+        public void run(Callback callback) {
+            callback.onSearchStarted();
+        }
+    };
+    private static final ListenerRegistry.Action<Callback> SEARCH_STOPPED = new ListenerRegistry.Action<Callback>() {
+        @Override
+        public void run(Callback callback) {
+            callback.onSearchStopped();
+        }
+    };
+    private static final ListenerRegistry.Action<Callback> MISSING_SEARCH_PERMISSION = new ListenerRegistry.Action<Callback>() {
+        @Override
+        public void run(Callback callback) {
+            callback.onMissingSearchPermission();
+        }
+    };
+    private static final ListenerRegistry.Action<Callback> SEARCH_PERMISSION_GRANTED = new ListenerRegistry.Action<Callback>() {
+        @Override
+        public void run(Callback callback) {
+            callback.onSearchPermissionGranted();
+        }
+    };
     private CoordinatorLayout fragmentContainer;
 
 
@@ -80,48 +124,49 @@ public class MainActivity extends AppCompatActivity {
 
         fragmentContainer = findViewById(R.id.fragment_container);
 
-        global.getBluetoothCommunicator().addCallback(new BluetoothCommunicator.Callback() {
+        // the state of the transport is read on the background thread of the event bus, only the notifications go to the main thread
+        global.getEventBus().addCallback(new BluetoothCommunicator.Callback() {
             @Override
             public void onAdvertiseStarted() {
                 super.onAdvertiseStarted();
-                if (global.getBluetoothCommunicator().isDiscovering()) {
-                    notifySearchStarted();
+                if (global.getTransport().isDiscovering()) {
+                    mainHandler.post(searchStartedTask);
                 }
             }
 
             @Override
             public void onDiscoveryStarted() {
                 super.onDiscoveryStarted();
-                if (global.getBluetoothCommunicator().isAdvertising()) {
-                    notifySearchStarted();
+                if (global.getTransport().isAdvertising()) {
+                    mainHandler.post(searchStartedTask);
                 }
             }
 
             @Override
             public void onAdvertiseStopped() {
                 super.onAdvertiseStopped();
-                if (!global.getBluetoothCommunicator().isDiscovering()) {
-                    notifySearchStopped();
+                if (!global.getTransport().isDiscovering()) {
+                    mainHandler.post(searchStoppedTask);
                 }
             }
 
             @Override
             public void onDiscoveryStopped() {
                 super.onDiscoveryStopped();
-                if (!global.getBluetoothCommunicator().isAdvertising()) {
-                    notifySearchStopped();
+                if (!global.getTransport().isAdvertising()) {
+                    mainHandler.post(searchStoppedTask);
                 }
             }
-        });
+        }, CommunicatorEventBus.THREAD_BACKGROUND, this);
     }
 
     @Override
     protected void onStart() {
         super.onStart();
         // when we return to the app's gui we choose which fragment to start based on connection status
-        if (global.getBluetoothCommunicator().getConnectedPeersList().size() == 0) {
+        if (global.getTransport().getConnectedPeersList().size() == 0) {
             setFragment(DEFAULT_FRAGMENT);
-        } else {
+        } else if (getCurrentFragment() != BENCHMARK_FRAGMENT) {
             setFragment(CONVERSATION_FRAGMENT);
         }
     }
@@ -152,6 +197,18 @@ public class MainActivity extends AppCompatActivity {
                 }
                 break;
             }
+            case BENCHMARK_FRAGMENT: {
+                // possible setting of the fragment
+                if (getCurrentFragment() != BENCHMARK_FRAGMENT) {
+                    BenchmarkFragment benchmarkFragment = new BenchmarkFragment();
+                    FragmentTransaction transaction = getSupportFragmentManager().beginTransaction();
+                    transaction.setTransition(FragmentTransaction.TRANSIT_FRAGMENT_OPEN);
+                    transaction.replace(R.id.fragment_container, benchmarkFragment);
+                    transaction.commit();
+                    currentFragment = BENCHMARK_FRAGMENT;
+                }
+                break;
+            }
         }
     }
 
@@ -167,6 +224,9 @@ public class MainActivity extends AppCompatActivity {
                 if (currentFragment.getClass().equals(ConversationFragment.class)) {
                     return CONVERSATION_FRAGMENT;
                 }
+                if (currentFragment.getClass().equals(BenchmarkFragment.class)) {
+                    return BENCHMARK_FRAGMENT;
+                }
             }
         }
         return -1;
@@ -184,6 +244,8 @@ public class MainActivity extends AppCompatActivity {
         if (fragment != null) {
             if (fragment instanceof ConversationFragment) {
                 showConfirmExitDialog(confirmExitListener);
+            } else if (fragment instanceof BenchmarkFragment) {
+                setFragment(CONVERSATION_FRAGMENT);
             } else {
                 super.onBackPressed();
             }
@@ -193,13 +255,13 @@ public class MainActivity extends AppCompatActivity {
     }
 
     public void exitFromConversation() {
-        if (global.getBluetoothCommunicator().getConnectedPeersList().size() > 0) {
+        if (global.getTransport().getConnectedPeersList().size() > 0) {
             Fragment fragment = getSupportFragmentManager().findFragmentById(R.id.fragment_container);
             if (fragment instanceof ConversationFragment) {
                 ConversationFragment conversationFragment = (ConversationFragment) fragment;
                 conversationFragment.appearLoading();
             }
-            global.getBluetoothCommunicator().disconnectFromAll();
+            global.getTransport().disconnectFromAll();
         } else {
             setFragment(DEFAULT_FRAGMENT);
         }
@@ -218,10 +280,10 @@ public class MainActivity extends AppCompatActivity {
     }
 
     public int startSearch() {
-        if (global.getBluetoothCommunicator().isBluetoothLeSupported() == BluetoothCommunicator.SUCCESS) {
+        if (global.getTransport().isBluetoothLeSupported() == BluetoothCommunicator.SUCCESS) {
             if (Tools.hasPermissions(this, REQUIRED_PERMISSIONS)) {
-                int advertisingCode = global.getBluetoothCommunicator().startAdvertising();
-                int discoveringCode = global.getBluetoothCommunicator().startDiscovery();
+                int advertisingCode = global.getTransport().startAdvertising();
+                int discoveringCode = global.getTransport().startDiscovery();
                 if (advertisingCode == discoveringCode) {
                     return advertisingCode;
                 }
@@ -244,8 +306,8 @@ public class MainActivity extends AppCompatActivity {
     }
 
     public int stopSearch(boolean tryRestoreBluetoothStatus) {
-        int advertisingCode = global.getBluetoothCommunicator().stopAdvertising(tryRestoreBluetoothStatus);
-        int discoveringCode = global.getBluetoothCommunicator().stopDiscovery(tryRestoreBluetoothStatus);
+        int advertisingCode = global.getTransport().stopAdvertising(tryRestoreBluetoothStatus);
+        int discoveringCode = global.getTransport().stopDiscovery(tryRestoreBluetoothStatus);
         if (advertisingCode == discoveringCode) {
             return advertisingCode;
         }
@@ -261,24 +323,25 @@ public class MainActivity extends AppCompatActivity {
     }
 
     public boolean isSearching() {
-        return global.getBluetoothCommunicator().isAdvertising() && global.getBluetoothCommunicator().isDiscovering();
+        return global.getTransport().isAdvertising() && global.getTransport().isDiscovering();
     }
 
     public void connect(Peer peer) {
         stopSearch(false);
-        global.getBluetoothCommunicator().connect(peer);
+        global.getReconnector().onConnectionRequested(peer);
+        global.getTransport().connect(peer);
     }
 
     public void acceptConnection(Peer peer) {
-        global.getBluetoothCommunicator().acceptConnection(peer);
+        global.getTransport().acceptConnection(peer);
     }
 
     public void rejectConnection(Peer peer) {
-        global.getBluetoothCommunicator().rejectConnection(peer);
+        global.getTransport().rejectConnection(peer);
     }
 
     public int disconnect(Peer peer) {
-        return global.getBluetoothCommunicator().disconnect(peer);
+        return global.getTransport().disconnect(peer);
     }
 
     public CoordinatorLayout getFragmentContainer() {
@@ -288,38 +351,38 @@ public class MainActivity extends AppCompatActivity {
 
 
     public void addCallback(Callback callback) {
-        // in this way the listener will listen to both this activity and the communicatorexample
-        global.getBluetoothCommunicator().addCallback(callback);
+        // in this way the listener will listen to both this activity and the communicatorexample (through the event bus, on the main thread)
+        global.getEventBus().addCallback(callback, CommunicatorEventBus.THREAD_MAIN);
         clientsCallbacks.add(callback);
     }
 
+    /**
+     * Registers callback while owner is resumed, without the need to remove it
+     **/
+    public void addCallback(Callback callback, LifecycleOwner owner) {
+        global.getEventBus().addCallback(callback, CommunicatorEventBus.THREAD_MAIN, owner);
+        clientsCallbacks.add(callback, owner);
+    }
+
     public void removeCallback(Callback callback) {
-        global.getBluetoothCommunicator().removeCallback(callback);
+        global.getEventBus().removeCallback(callback);
         clientsCallbacks.remove(callback);
     }
 
     private void notifyMissingSearchPermission() {
-        for (int i = 0; i < clientsCallbacks.size(); i++) {
-            clientsCallbacks.get(i).onMissingSearchPermission();
-        }
+        clientsCallbacks.forEach(MISSING_SEARCH_PERMISSION);
     }
 
     private void notifySearchPermissionGranted() {
-        for (int i = 0; i < clientsCallbacks.size(); i++) {
-            clientsCallbacks.get(i).onSearchPermissionGranted();
-        }
+        clientsCallbacks.forEach(SEARCH_PERMISSION_GRANTED);
     }
 
     private void notifySearchStarted() {
-        for (int i = 0; i < clientsCallbacks.size(); i++) {
-            clientsCallbacks.get(i).onSearchStarted();
-        }
+        clientsCallbacks.forEach(SEARCH_STARTED);
     }
 
     private void notifySearchStopped() {
-        for (int i = 0; i < clientsCallbacks.size(); i++) {
-            clientsCallbacks.get(i).onSearchStopped();
-        }
+        clientsCallbacks.forEach(SEARCH_STOPPED);
     }
 
     public static class Callback extends BluetoothCommunicator.Callback {
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2016 Luca Martino.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copyFile of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bluetooth.communicatorexample.communication;
+
+import android.bluetooth.BluetoothAdapter;
+
+import com.bluetooth.communicator.BluetoothCommunicator;
+import com.bluetooth.communicator.Message;
+import com.bluetooth.communicator.Peer;
+
+import java.util.ArrayList;
+
+/**
+ * Transport with the real Bluetooth, it passes all the calls to the BluetoothCommunicator
+ **/
+public class BluetoothTransport implements Transport {
+    private final BluetoothCommunicator bluetoothCommunicator;
+
+    public BluetoothTransport(BluetoothCommunicator bluetoothCommunicator) {
+        this.bluetoothCommunicator = bluetoothCommunicator;
+    }
+
+    public BluetoothCommunicator getBluetoothCommunicator() {
+        return bluetoothCommunicator;
+    }
+
+    @Override
+    public void addCallback(BluetoothCommunicator.Callback callback) {
+        bluetoothCommunicator.addCallback(callback);
+    }
+
+    @Override
+    public void removeCallback(BluetoothCommunicator.Callback callback) {
+        bluetoothCommunicator.removeCallback(callback);
+    }
+
+    @Override
+    public String getName() {
+        return bluetoothCommunicator.getName();
+    }
+
+    @Override
+    public String getUniqueName() {
+        return bluetoothCommunicator.getUniqueName();
+    }
+
+    @Override
+    public ArrayList<Peer> getConnectedPeersList() {
+        return bluetoothCommunicator.getConnectedPeersList();
+    }
+
+    @Override
+    public void sendMessage(Message message) {
+        bluetoothCommunicator.sendMessage(message);
+    }
+
+    @Override
+    public void sendData(Message data) {
+        bluetoothCommunicator.sendData(data);
+    }
+
+    @Override
+    public int isBluetoothLeSupported() {
+        return bluetoothCommunicator.isBluetoothLeSupported();
+    }
+
+    @Override
+    public int startAdvertising() {
+        return bluetoothCommunicator.startAdvertising();
+    }
+
+    @Override
+    public int stopAdvertising(boolean tryRestoreBluetoothStatus) {
+        return bluetoothCommunicator.stopAdvertising(tryRestoreBluetoothStatus);
+    }
+
+    @Override
+    public int startDiscovery() {
+        return bluetoothCommunicator.startDiscovery();
+    }
+
+    @Override
+    public int stopDiscovery(boolean tryRestoreBluetoothStatus) {
+        return bluetoothCommunicator.stopDiscovery(tryRestoreBluetoothStatus);
+    }
+
+    @Override
+    public boolean isAdvertising() {
+        return bluetoothCommunicator.isAdvertising();
+    }
+
+    @Override
+    public boolean isDiscovering() {
+        return bluetoothCommunicator.isDiscovering();
+    }
+
+    @Override
+    public void connect(Peer peer) {
+        bluetoothCommunicator.connect(peer);
+    }
+
+    @Override
+    public void acceptConnection(Peer peer) {
+        bluetoothCommunicator.acceptConnection(peer);
+    }
+
+    @Override
+    public void rejectConnection(Peer peer) {
+        bluetoothCommunicator.rejectConnection(peer);
+    }
+
+    @Override
+    public int disconnect(Peer peer) {
+        return bluetoothCommunicator.disconnect(peer);
+    }
+
+    @Override
+    public void disconnectFromAll() {
+        bluetoothCommunicator.disconnectFromAll();
+    }
+
+    @Override
+    public BluetoothAdapter getBluetoothAdapter() {
+        return bluetoothCommunicator.getBluetoothAdapter();
+    }
+}
@@ -0,0 +1,585 @@
+/*
+ * Copyright 2016 Luca Martino.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copyFile of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bluetooth.communicatorexample.communication;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.Nullable;
+
+import com.bluetooth.communicator.BluetoothCommunicator;
+import com.bluetooth.communicator.Message;
+import com.bluetooth.communicator.Peer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Sits in front of BluetoothCommunicator.sendMessage and fans every message out to all the connected peers.
+ * Each peer has its own bounded outbound queue drained by a shared pool of threads, so a slow or reconnecting peer
+ * only accumulates its own messages and never holds up the delivery to the others.
+ * The queue of each peer is split in priority lanes: LANE_CONTROL is always sent first, LANE_CHAT next and LANE_BULK
+ * uses the remaining capacity, with one bulk message every CHAT_WEIGHT chat messages when both are waiting, so that a
+ * large transfer neither delays the chat nor is starved by it.
+ * The bytes queued for each peer are its bytes in flight: offerMessage and offerData defer the messages that would
+ * exceed the high watermark, and the FlowListeners are notified when the peer drains below the low watermark,
+ * so the producers can slow down instead of piling up messages
+ **/
+public class BroadcastDispatcher {
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;  // for each lane
+    public static final int LANE_CONTROL = 0;
+    public static final int LANE_CHAT = 1;
+    public static final int LANE_BULK = 2;
+    public static final int LANES_COUNT = 3;
+    public static final int CHAT_WEIGHT = 4;
+    public static final long DEFAULT_HIGH_WATERMARK = 256 * 1024;  // bytes
+    public static final long DEFAULT_LOW_WATERMARK = 64 * 1024;  // bytes
+    // results of offerMessage and offerData
+    public static final int ACCEPTED = 0;
+    public static final int DEFERRED = 1;  // retry after FlowListener.onDrained
+    public static final int REJECTED = 2;
+    private static final int POOL_SIZE = 2;
+    // max number of messages sent from one queue before giving the thread to the queues of the other peers
+    private static final int DRAIN_BATCH = 8;
+    private final Context context;
+    private final Transport transport;
+    private final HashMap<String, PeerQueue> queues = new HashMap<>();
+    private final ExecutorService executor = Executors.newFixedThreadPool(POOL_SIZE);
+    private final int queueCapacity;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ArrayList<FlowListener> flowListeners = new ArrayList<>();
+    private volatile long highWatermark = DEFAULT_HIGH_WATERMARK;
+    private volatile long lowWatermark = DEFAULT_LOW_WATERMARK;
+    @Nullable
+    private MessageCompressor compressor;
+    @Nullable
+    private SequencedDelivery sequencer;
+
+    public BroadcastDispatcher(Context context, Transport transport) {
+        this(context, transport, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    public BroadcastDispatcher(Context context, Transport transport, int queueCapacity) {
+        this.context = context;
+        this.transport = transport;
+        this.queueCapacity = queueCapacity;
+        transport.addCallback(new BluetoothCommunicator.Callback() {
+            @Override
+            public void onConnectionLost(Peer peer) {
+                super.onConnectionLost(peer);
+                // we keep the messages in our bounded queue until the connection is restored
+                setPaused(peer, true);
+            }
+
+            @Override
+            public void onConnectionResumed(Peer peer) {
+                super.onConnectionResumed(peer);
+                // with sequencing the queue is resumed by the SequencedDelivery, after the resume handshake
+                if (sequencer == null || !sequencer.isSupportedBy(peer)) {
+                    setPaused(peer, false);
+                }
+            }
+
+            @Override
+            public void onDisconnected(Peer peer, int peersLeft) {
+                super.onDisconnected(peer, peersLeft);
+                removeQueue(peer);
+            }
+        });
+    }
+
+    /**
+     * Sends a copy of the message (with the same header and text) to each connected peer,
+     * returns the number of peers whose queue has accepted the message
+     **/
+    public int broadcast(Message message) {
+        return broadcast(message.getHeader(), message.getText());
+    }
+
+    public int broadcast(String header, String text) {
+        return broadcast(header, text, null);
+    }
+
+    /**
+     * Sends data with header to each connected peer, returns the number of peers whose queue has accepted it
+     **/
+    public int broadcastData(String header, byte[] data) {
+        return broadcast(header, null, data);
+    }
+
+    // exactly one of text and data is not null
+    private int broadcast(String header, @Nullable String text, @Nullable byte[] data) {
+        ArrayList<Peer> connectedPeers = transport.getConnectedPeersList();
+        int accepted = 0;
+        byte[] compressed = null;
+        boolean compressionTried = false;
+        for (int i = 0; i < connectedPeers.size(); i++) {
+            Peer peer = connectedPeers.get(i);
+            boolean useCompression = compressor != null && compressor.isSupportedBy(peer);
+            if (useCompression && !compressionTried) {
+                // the payload is compressed only once for all the peers that support compression
+                compressed = text != null ? compressor.compress(header, text) : compressor.compress(header, data);
+                compressionTried = true;
+            }
+            Message message;
+            boolean isData;
+            if (useCompression && compressed != null) {
+                message = new Message(context, MessageCompressor.HEADER, compressed, peer);
+                isData = true;
+            } else if (text != null) {
+                message = new Message(context, header, text, peer);
+                isData = false;
+            } else {
+                message = new Message(context, header, data, peer);
+                isData = true;
+            }
+            boolean sequenced = sequencer != null && sequencer.isSupportedBy(peer);
+            if (sequenced ? enqueueSequenced(message, isData) : enqueue(message, isData, LANE_CHAT)) {
+                accepted++;
+            }
+        }
+        return accepted;
+    }
+
+    /**
+     * If set, the broadcast text messages are compressed for the peers that support it
+     **/
+    public void setCompressor(@Nullable MessageCompressor compressor) {
+        this.compressor = compressor;
+    }
+
+    /**
+     * If set, the broadcast messages are sent with sequence numbers to the peers that support it
+     **/
+    public void setSequencer(@Nullable SequencedDelivery sequencer) {
+        this.sequencer = sequencer;
+    }
+
+    /**
+     * Sends the message only to its receiver, passing through the control lane of the receiver's queue
+     **/
+    public boolean sendMessage(Message message) {
+        return enqueue(message, false, LANE_CONTROL);
+    }
+
+    public boolean sendMessage(Message message, int lane) {
+        return enqueue(message, false, lane);
+    }
+
+    public boolean sendData(Message message) {
+        return enqueue(message, true, LANE_CONTROL);
+    }
+
+    public boolean sendData(Message message, int lane) {
+        return enqueue(message, true, lane);
+    }
+
+    /**
+     * Flow-controlled version of sendMessage: returns ACCEPTED if the message has been queued, DEFERRED if it has not been queued
+     * because the bytes in flight for the receiver would exceed the high watermark (it can be offered again after
+     * FlowListener.onDrained) and REJECTED if it cannot be queued (no receiver or lane full)
+     **/
+    public int offerMessage(Message message, int lane) {
+        return offer(message, false, lane);
+    }
+
+    public int offerData(Message message, int lane) {
+        return offer(message, true, lane);
+    }
+
+    private int offer(Message message, boolean isData, int lane) {
+        if (message.getReceiver() == null) {
+            return REJECTED;
+        }
+        PeerQueue queue = getQueue(message.getReceiver());
+        synchronized (queue) {
+            Entry entry = new Entry(message, isData, lane);
+            // a message bigger than the high watermark is accepted when nothing else is in flight
+            if (queue.bytes > 0 && queue.bytes + entry.size > highWatermark) {
+                queue.aboveHighWatermark = true;
+                return DEFERRED;
+            }
+            return add(queue, entry) ? ACCEPTED : REJECTED;
+        }
+    }
+
+    private boolean enqueue(Message message, boolean isData, int lane) {
+        if (message.getReceiver() == null) {
+            return false;
+        }
+        PeerQueue queue = getQueue(message.getReceiver());
+        synchronized (queue) {
+            return add(queue, new Entry(message, isData, lane));
+        }
+    }
+
+    /**
+     * The message is wrapped by the sequencer only if the chat lane has room for it, holding the lock of the queue, otherwise
+     * its sequence number would be taken by a message never sent and the receiver would wait for it until the next resume
+     **/
+    private boolean enqueueSequenced(Message message, boolean isData) {
+        PeerQueue queue = getQueue(message.getReceiver());
+        synchronized (queue) {
+            if (queue.isFull(LANE_CHAT)) {
+                queue.dropped++;
+                return false;
+            }
+            return add(queue, new Entry(sequencer.wrap(message, isData), true, LANE_CHAT));
+        }
+    }
+
+    // must be called holding the lock of the queue
+    private boolean add(PeerQueue queue, Entry entry) {
+        if (!queue.offer(entry)) {
+            return false;
+        }
+        if (queue.bytes >= highWatermark) {
+            queue.aboveHighWatermark = true;
+        }
+        scheduleIfNeeded(queue);
+        return true;
+    }
+
+    /**
+     * Returns the bytes queued for peer and not yet passed to the BluetoothCommunicator
+     **/
+    public long getBytesInFlight(Peer peer) {
+        PeerQueue queue = getPeerQueue(peer);
+        if (queue == null) {
+            return 0;
+        }
+        synchronized (queue) {
+            return queue.bytes;
+        }
+    }
+
+    /**
+     * Max number of messages waiting in each lane of each peer, the messages beyond it are rejected
+     **/
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public long getHighWatermark() {
+        return highWatermark;
+    }
+
+    public long getLowWatermark() {
+        return lowWatermark;
+    }
+
+    public void setWatermarks(long lowWatermark, long highWatermark) {
+        if (lowWatermark > highWatermark) {
+            throw new IllegalArgumentException("low watermark greater than high watermark");
+        }
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+    }
+
+    public synchronized void addFlowListener(FlowListener listener) {
+        flowListeners.add(listener);
+    }
+
+    public synchronized void removeFlowListener(FlowListener listener) {
+        flowListeners.remove(listener);
+    }
+
+    private void notifyDrained(final Peer peer) {
+        final ArrayList<FlowListener> listeners;
+        synchronized (this) {
+            listeners = new ArrayList<>(flowListeners);
+        }
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (FlowListener listener : listeners) {
+                    listener.onDrained(peer);
+                }
+            }
+        });
+    }
+
+    @Nullable
+    public synchronized PeerQueue getPeerQueue(Peer peer) {
+        return queues.get(peer.getUniqueName());
+    }
+
+    public synchronized ArrayList<PeerQueue> getPeerQueues() {
+        return new ArrayList<>(queues.values());
+    }
+
+    private synchronized PeerQueue getQueue(Peer peer) {
+        PeerQueue queue = queues.get(peer.getUniqueName());
+        if (queue == null) {
+            queue = new PeerQueue(peer.getUniqueName(), queueCapacity);
+            queues.put(peer.getUniqueName(), queue);
+        }
+        return queue;
+    }
+
+    private void setPaused(Peer peer, boolean paused) {
+        PeerQueue queue = getQueue(peer);
+        synchronized (queue) {
+            queue.paused = paused;
+            if (!paused) {
+                scheduleIfNeeded(queue);
+            }
+        }
+    }
+
+    /**
+     * Puts the retransmissions in front of the chat lane of the peer (even if it is full) and resumes the queue
+     **/
+    void resume(Peer peer, List<Message> retransmissions) {
+        PeerQueue queue = getQueue(peer);
+        synchronized (queue) {
+            for (int i = retransmissions.size() - 1; i >= 0; i--) {
+                Entry entry = new Entry(retransmissions.get(i), true, LANE_CHAT);
+                queue.lanes[LANE_CHAT].addFirst(entry);
+                queue.bytes += entry.size;
+            }
+            queue.maxDepth = Math.max(queue.maxDepth, queue.size());
+            queue.paused = false;
+            scheduleIfNeeded(queue);
+        }
+    }
+
+    private void removeQueue(Peer peer) {
+        PeerQueue queue;
+        synchronized (this) {
+            queue = queues.remove(peer.getUniqueName());
+        }
+        if (queue != null) {
+            synchronized (queue) {
+                // the messages still queued can no longer be delivered
+                queue.dropped += queue.size();
+                for (ArrayDeque<Entry> lane : queue.lanes) {
+                    lane.clear();
+                }
+                queue.bytes = 0;
+                queue.paused = true;
+            }
+        }
+    }
+
+    // must be called holding the lock of the queue
+    private void scheduleIfNeeded(final PeerQueue queue) {
+        if (!queue.scheduled && !queue.paused && queue.size() > 0) {
+            queue.scheduled = true;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    drain(queue);
+                }
+            });
+        }
+    }
+
+    private void drain(PeerQueue queue) {
+        for (int i = 0; i < DRAIN_BATCH; i++) {
+            Entry entry;
+            boolean drained;
+            synchronized (queue) {
+                entry = queue.paused ? null : queue.poll();
+                if (entry == null) {
+                    queue.scheduled = false;
+                    return;
+                }
+                queue.onDequeued(entry, System.nanoTime() - entry.enqueueTime);
+                drained = queue.aboveHighWatermark && queue.bytes < lowWatermark;
+                if (drained) {
+                    queue.aboveHighWatermark = false;
+                }
+            }
+            if (drained) {
+                notifyDrained(entry.message.getReceiver());
+            }
+            if (entry.isData) {
+                transport.sendData(entry.message);
+                if (sequencer != null && SequencedDelivery.HEADER.equals(entry.message.getHeader())) {
+                    sequencer.onSent(entry.message);
+                }
+            } else {
+                transport.sendMessage(entry.message);
+            }
+        }
+        // batch finished, we reschedule the queue behind the queues of the other peers
+        synchronized (queue) {
+            queue.scheduled = false;
+            scheduleIfNeeded(queue);
+        }
+    }
+
+    private static class Entry {
+        private final Message message;
+        private final boolean isData;
+        private final int lane;
+        private final int size;
+        private final long enqueueTime = System.nanoTime();
+
+        private Entry(Message message, boolean isData, int lane) {
+            this.message = message;
+            this.isData = isData;
+            this.lane = lane;
+            // for the texts the characters are a good enough estimation of the bytes
+            this.size = isData ? message.getData().length : message.getText().length();
+        }
+    }
+
+    /**
+     * The outbound queue of a single peer, the getters can be used to read its counters
+     **/
+    public static class PeerQueue {
+        private final String peerUniqueName;
+        private final int capacity;
+        private final ArrayDeque<Entry>[] lanes;
+        // time spent in the queue by the messages of each lane
+        private final LatencyHistogram[] latencies = new LatencyHistogram[LANES_COUNT];
+        // chat messages that can still be sent before giving a turn to the bulk lane
+        private int chatCredit = CHAT_WEIGHT;
+        private long bytes = 0;
+        // set when the bytes reach the high watermark, cleared when they go below the low watermark
+        private boolean aboveHighWatermark = false;
+        private boolean paused = false;
+        private boolean scheduled = false;
+        private int maxDepth = 0;
+        private long sent = 0;
+        private long dropped = 0;
+        private long totalWaitNanos = 0;
+        private long maxWaitNanos = 0;
+
+        private PeerQueue(String peerUniqueName, int capacity) {
+            this.peerUniqueName = peerUniqueName;
+            this.capacity = capacity;
+            @SuppressWarnings("unchecked")
+            ArrayDeque<Entry>[] lanes = new ArrayDeque[LANES_COUNT];
+            this.lanes = lanes;
+            for (int i = 0; i < LANES_COUNT; i++) {
+                lanes[i] = new ArrayDeque<>();
+                latencies[i] = new LatencyHistogram();
+            }
+        }
+
+        private boolean isFull(int lane) {
+            return lanes[lane].size() >= capacity;
+        }
+
+        private boolean offer(Entry entry) {
+            if (isFull(entry.lane)) {
+                dropped++;
+                return false;
+            }
+            lanes[entry.lane].add(entry);
+            bytes += entry.size;
+            maxDepth = Math.max(maxDepth, size());
+            return true;
+        }
+
+        @Nullable
+        private Entry poll() {
+            if (!lanes[LANE_CONTROL].isEmpty()) {
+                return lanes[LANE_CONTROL].poll();
+            }
+            boolean bulkWaiting = !lanes[LANE_BULK].isEmpty();
+            if (!lanes[LANE_CHAT].isEmpty() && (!bulkWaiting || chatCredit > 0)) {
+                chatCredit--;
+                return lanes[LANE_CHAT].poll();
+            }
+            if (bulkWaiting) {
+                chatCredit = CHAT_WEIGHT;
+                return lanes[LANE_BULK].poll();
+            }
+            return null;
+        }
+
+        private int size() {
+            int size = 0;
+            for (ArrayDeque<Entry> lane : lanes) {
+                size += lane.size();
+            }
+            return size;
+        }
+
+        private void onDequeued(Entry entry, long waitNanos) {
+            latencies[entry.lane].record(waitNanos);
+            bytes -= entry.size;
+            sent++;
+            totalWaitNanos += waitNanos;
+            maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+        }
+
+        public String getPeerUniqueName() {
+            return peerUniqueName;
+        }
+
+        public synchronized int getDepth() {
+            return size();
+        }
+
+        public synchronized int getDepth(int lane) {
+            return lanes[lane].size();
+        }
+
+        /**
+         * Returns the distribution of the time spent in the queue by the messages of lane,
+         * for example to check the p99 of the chat while a bulk transfer is running
+         **/
+        public LatencyHistogram getLatency(int lane) {
+            return latencies[lane];
+        }
+
+        public synchronized int getMaxDepth() {
+            return maxDepth;
+        }
+
+        public synchronized boolean isPaused() {
+            return paused;
+        }
+
+        public synchronized long getSentCount() {
+            return sent;
+        }
+
+        public synchronized long getDroppedCount() {
+            return dropped;
+        }
+
+        public synchronized long getAverageWaitMillis() {
+            if (sent == 0) {
+                return 0;
+            }
+            return totalWaitNanos / sent / 1000000;
+        }
+
+        public synchronized long getMaxWaitMillis() {
+            return maxWaitNanos / 1000000;
+        }
+    }
+
+    public interface FlowListener {
+        /**
+         * Called on the main thread when the bytes in flight for peer, after having reached the high watermark,
+         * go below the low watermark
+         **/
+        void onDrained(Peer peer);
+    }
+}
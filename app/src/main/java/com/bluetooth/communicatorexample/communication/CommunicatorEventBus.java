@@ -0,0 +1,423 @@
+/*
+ * Copyright 2016 Luca Martino.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copyFile of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bluetooth.communicatorexample.communication;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.bluetooth.communicator.BluetoothCommunicator;
+import com.bluetooth.communicator.Message;
+import com.bluetooth.communicator.Peer;
+import com.bluetooth.communicatorexample.tools.ListenerRegistry;
+
+import androidx.lifecycle.LifecycleOwner;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Receives all the callbacks of the BluetoothCommunicator and passes them, in order, to the registered callbacks:
+ * the events are added to a lock-free queue (any thread can add events, only the worker thread removes them) and the worker
+ * thread delivers them to the THREAD_BACKGROUND callbacks, then it posts the events of each batch to the main thread with a
+ * single post for the THREAD_MAIN callbacks, so the callbacks of the gui do not compete with the rendering one event at a time.
+ * When the queue holds more than QUEUE_CAPACITY events the new sightings of peers (onPeerFound and onPeerUpdated) are dropped,
+ * because the next sighting replaces them, the other events are never dropped.
+ * The lag of the events (time from the callback of the communicator to the delivery) and the drops are measured
+ **/
+public class CommunicatorEventBus {
+    public static final int THREAD_MAIN = 0;
+    public static final int THREAD_BACKGROUND = 1;
+    public static final int QUEUE_CAPACITY = 1024;
+    // maximum number of events delivered to the main thread with one post
+    private static final int MAX_BATCH = 64;
+    private static final long MAX_PARK_NANOS = 100000000L;  // 100 ms
+    private static final int BLUETOOTH_LE_NOT_SUPPORTED = 0;
+    private static final int ADVERTISE_STARTED = 1;
+    private static final int DISCOVERY_STARTED = 2;
+    private static final int ADVERTISE_STOPPED = 3;
+    private static final int DISCOVERY_STOPPED = 4;
+    private static final int PEER_FOUND = 5;
+    private static final int PEER_LOST = 6;
+    private static final int PEER_UPDATED = 7;
+    private static final int CONNECTION_REQUEST = 8;
+    private static final int CONNECTION_SUCCESS = 9;
+    private static final int CONNECTION_FAILED = 10;
+    private static final int CONNECTION_LOST = 11;
+    private static final int CONNECTION_RESUMED = 12;
+    private static final int MESSAGE_RECEIVED = 13;
+    private static final int DATA_RECEIVED = 14;
+    private static final int DISCONNECTED = 15;
+    private static final int DISCONNECTION_FAILED = 16;
+    private final ListenerRegistry<BluetoothCommunicator.Callback> mainCallbacks = new ListenerRegistry<>();
+    private final ListenerRegistry<BluetoothCommunicator.Callback> backgroundCallbacks = new ListenerRegistry<>();
+    // one for each thread, so the delivery does not allocate
+    private final Delivery mainDelivery = new Delivery();
+    private final Delivery backgroundDelivery = new Delivery();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Thread worker;
+    // the producers append to tail, the worker removes from head (which is the last removed event, or the initial stub)
+    private final AtomicReference<Event> tail;
+    private Event head;
+    private final AtomicInteger size = new AtomicInteger(0);
+    private volatile boolean workerWaiting = false;
+    // statistics
+    private final LatencyHistogram queueLag = new LatencyHistogram();
+    private final LatencyHistogram mainLag = new LatencyHistogram();
+    private final AtomicLong dropped = new AtomicLong(0);
+    private final AtomicLong mainPosts = new AtomicLong(0);
+    private volatile int maxSize = 0;
+
+    public CommunicatorEventBus(Transport transport) {
+        head = new Event(-1);
+        tail = new AtomicReference<>(head);
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runWorker();
+            }
+        }, "CommunicatorEventBus");
+        worker.setDaemon(true);
+        worker.start();
+        transport.addCallback(new BluetoothCommunicator.Callback() {
+            @Override
+            public void onBluetoothLeNotSupported() {
+                offer(new Event(BLUETOOTH_LE_NOT_SUPPORTED));
+            }
+
+            @Override
+            public void onAdvertiseStarted() {
+                offer(new Event(ADVERTISE_STARTED));
+            }
+
+            @Override
+            public void onDiscoveryStarted() {
+                offer(new Event(DISCOVERY_STARTED));
+            }
+
+            @Override
+            public void onAdvertiseStopped() {
+                offer(new Event(ADVERTISE_STOPPED));
+            }
+
+            @Override
+            public void onDiscoveryStopped() {
+                offer(new Event(DISCOVERY_STOPPED));
+            }
+
+            @Override
+            public void onPeerFound(Peer peer) {
+                offer(new Event(PEER_FOUND, peer));
+            }
+
+            @Override
+            public void onPeerLost(Peer peer) {
+                offer(new Event(PEER_LOST, peer));
+            }
+
+            @Override
+            public void onPeerUpdated(Peer peer, Peer newPeer) {
+                Event event = new Event(PEER_UPDATED, peer);
+                event.newPeer = newPeer;
+                offer(event);
+            }
+
+            @Override
+            public void onConnectionRequest(Peer peer) {
+                offer(new Event(CONNECTION_REQUEST, peer));
+            }
+
+            @Override
+            public void onConnectionSuccess(Peer peer, int source) {
+                Event event = new Event(CONNECTION_SUCCESS, peer);
+                event.value = source;
+                offer(event);
+            }
+
+            @Override
+            public void onConnectionFailed(Peer peer, int errorCode) {
+                Event event = new Event(CONNECTION_FAILED, peer);
+                event.value = errorCode;
+                offer(event);
+            }
+
+            @Override
+            public void onConnectionLost(Peer peer) {
+                offer(new Event(CONNECTION_LOST, peer));
+            }
+
+            @Override
+            public void onConnectionResumed(Peer peer) {
+                offer(new Event(CONNECTION_RESUMED, peer));
+            }
+
+            @Override
+            public void onMessageReceived(Message message, int source) {
+                Event event = new Event(MESSAGE_RECEIVED);
+                event.message = message;
+                event.value = source;
+                offer(event);
+            }
+
+            @Override
+            public void onDataReceived(Message data, int source) {
+                Event event = new Event(DATA_RECEIVED);
+                event.message = data;
+                event.value = source;
+                offer(event);
+            }
+
+            @Override
+            public void onDisconnected(Peer peer, int peersLeft) {
+                Event event = new Event(DISCONNECTED, peer);
+                event.value = peersLeft;
+                offer(event);
+            }
+
+            @Override
+            public void onDisconnectionFailed() {
+                offer(new Event(DISCONNECTION_FAILED));
+            }
+        });
+    }
+
+    /**
+     * Registers callback to receive the events of the communicator on thread (THREAD_MAIN or THREAD_BACKGROUND),
+     * the events already queued are delivered to it too
+     **/
+    public void addCallback(BluetoothCommunicator.Callback callback, int thread) {
+        getCallbacks(thread).add(callback);
+    }
+
+    /**
+     * Registers callback while owner is resumed, it is not necessary to remove it (see ListenerRegistry)
+     **/
+    public void addCallback(BluetoothCommunicator.Callback callback, int thread, LifecycleOwner owner) {
+        getCallbacks(thread).add(callback, owner);
+    }
+
+    /**
+     * After this call callback does not receive other events (if called on its thread)
+     **/
+    public void removeCallback(BluetoothCommunicator.Callback callback) {
+        mainCallbacks.remove(callback);
+        backgroundCallbacks.remove(callback);
+    }
+
+    private ListenerRegistry<BluetoothCommunicator.Callback> getCallbacks(int thread) {
+        return thread == THREAD_MAIN ? mainCallbacks : backgroundCallbacks;
+    }
+
+    private void offer(Event event) {
+        if (size.get() >= QUEUE_CAPACITY && (event.type == PEER_FOUND || event.type == PEER_UPDATED)) {
+            dropped.incrementAndGet();
+            return;
+        }
+        int newSize = size.incrementAndGet();
+        if (newSize > maxSize) {
+            maxSize = newSize;  // approximate, it is only a statistic
+        }
+        event.enqueueTime = System.nanoTime();
+        Event previous = tail.getAndSet(event);
+        // until this link is written the worker sees the queue as ending at previous; the write is volatile, so the read
+        // of workerWaiting cannot be moved before it (the worker does the opposite: writes the flag, then reads the link)
+        previous.next = event;
+        if (workerWaiting) {
+            LockSupport.unpark(worker);
+        }
+    }
+
+    private Event poll() {
+        Event next = head.next;
+        if (next == null) {
+            return null;
+        }
+        head = next;
+        size.decrementAndGet();
+        return next;
+    }
+
+    private void runWorker() {
+        ArrayList<Event> batch = new ArrayList<>();
+        while (true) {
+            Event event = poll();
+            if (event == null) {
+                // the flag is set before checking again, so an event added after the check unparks the worker
+                workerWaiting = true;
+                event = poll();
+                if (event == null) {
+                    // the bound is only a backstop, the producers unpark the worker
+                    LockSupport.parkNanos(this, MAX_PARK_NANOS);
+                    workerWaiting = false;
+                    continue;
+                }
+                workerWaiting = false;
+            }
+            queueLag.record(System.nanoTime() - event.enqueueTime);
+            backgroundDelivery.event = event;
+            backgroundCallbacks.forEach(backgroundDelivery);
+            if (!mainCallbacks.isEmpty()) {
+                batch.add(event);
+            }
+            // the batch is posted when the queue is empty or the batch is full
+            if (!batch.isEmpty() && (head.next == null || batch.size() >= MAX_BATCH)) {
+                postToMain(batch);
+                batch = new ArrayList<>();
+            }
+        }
+    }
+
+    private void postToMain(final ArrayList<Event> batch) {
+        mainPosts.incrementAndGet();
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                long now = System.nanoTime();
+                for (int i = 0; i < batch.size(); i++) {
+                    Event event = batch.get(i);
+                    mainLag.record(now - event.enqueueTime);
+                    // the callbacks are read at delivery time, so the ones removed in the meantime do not receive the event
+                    mainDelivery.event = event;
+                    mainCallbacks.forEach(mainDelivery);
+                }
+                mainDelivery.event = null;
+            }
+        });
+    }
+
+    private static void deliver(Event event, BluetoothCommunicator.Callback callback) {
+        switch (event.type) {
+            case BLUETOOTH_LE_NOT_SUPPORTED:
+                callback.onBluetoothLeNotSupported();
+                break;
+            case ADVERTISE_STARTED:
+                callback.onAdvertiseStarted();
+                break;
+            case DISCOVERY_STARTED:
+                callback.onDiscoveryStarted();
+                break;
+            case ADVERTISE_STOPPED:
+                callback.onAdvertiseStopped();
+                break;
+            case DISCOVERY_STOPPED:
+                callback.onDiscoveryStopped();
+                break;
+            case PEER_FOUND:
+                callback.onPeerFound(event.peer);
+                break;
+            case PEER_LOST:
+                callback.onPeerLost(event.peer);
+                break;
+            case PEER_UPDATED:
+                callback.onPeerUpdated(event.peer, event.newPeer);
+                break;
+            case CONNECTION_REQUEST:
+                callback.onConnectionRequest(event.peer);
+                break;
+            case CONNECTION_SUCCESS:
+                callback.onConnectionSuccess(event.peer, event.value);
+                break;
+            case CONNECTION_FAILED:
+                callback.onConnectionFailed(event.peer, event.value);
+                break;
+            case CONNECTION_LOST:
+                callback.onConnectionLost(event.peer);
+                break;
+            case CONNECTION_RESUMED:
+                callback.onConnectionResumed(event.peer);
+                break;
+            case MESSAGE_RECEIVED:
+                callback.onMessageReceived(event.message, event.value);
+                break;
+            case DATA_RECEIVED:
+                callback.onDataReceived(event.message, event.value);
+                break;
+            case DISCONNECTED:
+                callback.onDisconnected(event.peer, event.value);
+                break;
+            case DISCONNECTION_FAILED:
+                callback.onDisconnectionFailed();
+                break;
+        }
+    }
+
+    /**
+     * Time from the callback of the communicator to the worker thread
+     **/
+    public LatencyHistogram getQueueLag() {
+        return queueLag;
+    }
+
+    /**
+     * Time from the callback of the communicator to the delivery to the THREAD_MAIN callbacks
+     **/
+    public LatencyHistogram getMainLag() {
+        return mainLag;
+    }
+
+    public int getQueueSize() {
+        return size.get();
+    }
+
+    public int getMaxQueueSize() {
+        return maxSize;
+    }
+
+    /**
+     * Number of sightings of peers dropped because the queue was full
+     **/
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Number of posts to the main thread, each one delivers a batch of events
+     **/
+    public long getMainPostsCount() {
+        return mainPosts.get();
+    }
+
+    private static class Delivery implements ListenerRegistry.Action<BluetoothCommunicator.Callback> {
+        private Event event;
+
+        @Override
+        public void run(BluetoothCommunicator.Callback callback) {
+            deliver(event, callback);
+        }
+    }
+
+    private static class Event {
+        private final int type;
+        private Peer peer;
+        private Peer newPeer;
+        private Message message;
+        private int value;
+        private long enqueueTime;
+        private volatile Event next;
+
+        private Event(int type) {
+            this.type = type;
+        }
+
+        private Event(int type, Peer peer) {
+            this.type = type;
+            this.peer = peer;
+        }
+    }
+}
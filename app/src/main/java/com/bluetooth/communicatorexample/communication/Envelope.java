@@ -0,0 +1,104 @@
+/*
+ * Copyright 2016 Luca Martino.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copyFile of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bluetooth.communicatorexample.communication;
+
+/**
+ * Content of a chat message in the binary envelope format (see EnvelopeCodec): a type tag, the id of the sender, the text
+ * and the optional extension fields. It is mutable so that the decoder can reuse the same instance for every message
+ **/
+public class Envelope {
+    public static final int TYPE_TEXT = 1;
+    // extension keys
+    public static final int EXTENSION_TIMESTAMP = 1;  // varint, milliseconds since epoch
+    public static final int EXTENSION_CONTENT_TYPE = 2;  // UTF-8 string
+    public static final long NO_TIMESTAMP = -1;
+    private int type = TYPE_TEXT;
+    private int senderId = 0;
+    private String text = "";
+    private long timestamp = NO_TIMESTAMP;
+    private String contentType = null;
+
+    public Envelope() {
+    }
+
+    public Envelope(int type, int senderId, String text) {
+        this.type = type;
+        this.senderId = senderId;
+        this.text = text;
+    }
+
+    /**
+     * Returns a compact id for the sender with uniqueName, the same on all the devices
+     **/
+    public static int senderIdOf(String uniqueName) {
+        return uniqueName.hashCode() & 0x7fffffff;
+    }
+
+    public void reset() {
+        type = TYPE_TEXT;
+        senderId = 0;
+        text = "";
+        timestamp = NO_TIMESTAMP;
+        contentType = null;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public void setType(int type) {
+        this.type = type;
+    }
+
+    public int getSenderId() {
+        return senderId;
+    }
+
+    public void setSenderId(int senderId) {
+        this.senderId = senderId;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public void setText(String text) {
+        this.text = text;
+    }
+
+    /**
+     * Returns NO_TIMESTAMP if the timestamp extension is absent
+     **/
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Returns null if the content type extension is absent
+     **/
+    public String getContentType() {
+        return contentType;
+    }
+
+    public void setContentType(String contentType) {
+        this.contentType = contentType;
+    }
+}
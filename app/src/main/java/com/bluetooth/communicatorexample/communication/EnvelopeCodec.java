@@ -0,0 +1,233 @@
+/*
+ * Copyright 2016 Luca Martino.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copyFile of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bluetooth.communicatorexample.communication;
+
+import java.nio.charset.Charset;
+
+/**
+ * Encoder and decoder of the binary envelope of the chat messages:
+ * [byte version][varint type][varint sender id][varint extensions count]([varint key][varint length][value])*[varint text length][UTF-8 text]
+ * Varints are unsigned LEB128 (7 bits per byte, least significant group first). The decoder skips the extensions it
+ * does not know, so new ones can be added without changing the version.
+ * The encoder writes into an internal buffer that grows when needed and is reused for the next messages, so an instance
+ * must not be shared between threads
+ **/
+public class EnvelopeCodec {
+    public static final int VERSION = 1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private byte[] buffer;
+    private int position;
+
+    public EnvelopeCodec() {
+        this(256);
+    }
+
+    public EnvelopeCodec(int initialCapacity) {
+        buffer = new byte[initialCapacity];
+    }
+
+    /**
+     * Encodes envelope in the internal buffer (returned by getBuffer) and returns the length of the encoding,
+     * the buffer is overwritten by the next call
+     **/
+    public int encode(Envelope envelope) {
+        position = 0;
+        String contentType = envelope.getContentType();
+        long timestamp = envelope.getTimestamp();
+        int extensions = (timestamp != Envelope.NO_TIMESTAMP ? 1 : 0) + (contentType != null ? 1 : 0);
+        // version, type, sender id, extensions count and timestamp extension (the strings check their own size)
+        ensureCapacity(64);
+        buffer[position++] = VERSION;
+        writeVarint(envelope.getType());
+        writeVarint(envelope.getSenderId());
+        writeVarint(extensions);
+        if (timestamp != Envelope.NO_TIMESTAMP) {
+            writeVarint(Envelope.EXTENSION_TIMESTAMP);
+            writeVarint(varintSize(timestamp));
+            writeVarint(timestamp);
+        }
+        if (contentType != null) {
+            writeVarint(Envelope.EXTENSION_CONTENT_TYPE);
+            writeString(contentType);
+        }
+        writeString(envelope.getText());
+        return position;
+    }
+
+    /**
+     * Encodes envelope in a new array of the exact size, for the messages that keep the payload
+     **/
+    public byte[] encodeToByteArray(Envelope envelope) {
+        int length = encode(envelope);
+        byte[] result = new byte[length];
+        System.arraycopy(buffer, 0, result, 0, length);
+        return result;
+    }
+
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Decodes the envelope in data into envelope (reset before), returns false if the data is not a valid envelope
+     * of a supported version
+     **/
+    public boolean decode(byte[] data, int offset, int length, Envelope envelope) {
+        envelope.reset();
+        int end = offset + length;
+        if (length < 1 || end > data.length || data[offset] != VERSION) {
+            return false;
+        }
+        Reader reader = new Reader(data, offset + 1, end);
+        try {
+            envelope.setType((int) reader.readVarint());
+            envelope.setSenderId((int) reader.readVarint());
+            long extensions = reader.readVarint();
+            for (long i = 0; i < extensions; i++) {
+                long key = reader.readVarint();
+                int valueLength = reader.readLength();
+                int valueEnd = reader.position + valueLength;
+                if (key == Envelope.EXTENSION_TIMESTAMP) {
+                    envelope.setTimestamp(reader.readVarint());
+                } else if (key == Envelope.EXTENSION_CONTENT_TYPE) {
+                    envelope.setContentType(new String(data, reader.position, valueLength, UTF_8));
+                }
+                // unknown extensions (or unread bytes of the known ones) are skipped
+                reader.position = valueEnd;
+            }
+            int textLength = reader.readLength();
+            envelope.setText(new String(data, reader.position, textLength, UTF_8));
+            return true;
+        } catch (IllegalArgumentException e) {
+            envelope.reset();
+            return false;
+        }
+    }
+
+    public boolean decode(byte[] data, Envelope envelope) {
+        return decode(data, 0, data.length, envelope);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > buffer.length) {
+            byte[] newBuffer = new byte[Math.max(capacity, buffer.length * 2)];
+            System.arraycopy(buffer, 0, newBuffer, 0, position);
+            buffer = newBuffer;
+        }
+    }
+
+    private void writeVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+    }
+
+    static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    // writes the varint length and the UTF-8 bytes of string directly in the buffer
+    private void writeString(String string) {
+        int utf8Length = utf8Length(string);
+        ensureCapacity(position + 5 + utf8Length);
+        writeVarint(utf8Length);
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c < 0x80) {
+                buffer[position++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[position++] = (byte) (0xC0 | (c >> 6));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < string.length() && Character.isLowSurrogate(string.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, string.charAt(++i));
+                buffer[position++] = (byte) (0xF0 | (codePoint >> 18));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                buffer[position++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                buffer[position++] = '?';  // unpaired surrogate, like String.getBytes
+            } else {
+                buffer[position++] = (byte) (0xE0 | (c >> 12));
+                buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    private static int utf8Length(String string) {
+        int length = 0;
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < string.length() && Character.isLowSurrogate(string.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static class Reader {
+        private final byte[] data;
+        private final int end;
+        private int position;
+
+        private Reader(byte[] data, int position, int end) {
+            this.data = data;
+            this.position = position;
+            this.end = end;
+        }
+
+        private long readVarint() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (position >= end) {
+                    throw new IllegalArgumentException("truncated varint");
+                }
+                byte b = data[position++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("varint too long");
+        }
+
+        // reads a varint length and checks that the following bytes are available
+        private int readLength() {
+            long length = readVarint();
+            if (length < 0 || length > end - position) {
+                throw new IllegalArgumentException("length out of bounds");
+            }
+            return (int) length;
+        }
+    }
+}
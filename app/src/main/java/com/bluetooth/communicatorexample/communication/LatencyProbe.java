@@ -0,0 +1,208 @@
+/*
+ * Copyright 2016 Luca Martino.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copyFile of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bluetooth.communicatorexample.communication;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.Nullable;
+
+import com.bluetooth.communicator.BluetoothCommunicator;
+import com.bluetooth.communicator.Message;
+import com.bluetooth.communicator.Peer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Measures the round trip time of the link with each connected peer: every interval a ping is sent to each peer (in the control
+ * lane of the dispatcher) and the peer sends it back as a pong, the time between the two is recorded in the histogram of the peer.
+ * A ping contains [byte type][int sequence][long send time], the pong is the same message with the other type, so the
+ * peer does not need to understand the time.
+ * All the methods must be called on the main thread
+ **/
+public class LatencyProbe {
+    public static final String HEADER = "p";
+    public static final long DEFAULT_INTERVAL = 2000;
+    private static final byte TYPE_PING = 0;
+    private static final byte TYPE_PONG = 1;
+    private static final int PING_LENGTH = 1 + 4 + 8;
+    private final Context context;
+    private final Transport transport;
+    private final BroadcastDispatcher dispatcher;
+    private final HashMap<String, PeerStats> stats = new HashMap<>();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private long interval = DEFAULT_INTERVAL;
+    private boolean running = false;
+    private final Runnable tick = new Runnable() {
+        @Override
+        public void run() {
+            ArrayList<Peer> peers = transport.getConnectedPeersList();
+            for (int i = 0; i < peers.size(); i++) {
+                sendPing(peers.get(i));
+            }
+            if (peers.isEmpty() || interval <= 0) {
+                running = false;
+            } else {
+                mainHandler.postDelayed(this, interval);
+            }
+        }
+    };
+
+    public LatencyProbe(Context context, Transport transport, BroadcastDispatcher dispatcher, MessageRouter router) {
+        this.context = context;
+        this.transport = transport;
+        this.dispatcher = dispatcher;
+        router.register(HEADER, new MessageRouter.MessageHandler() {
+            @Override
+            public void onMessage(Message data, boolean isData) {
+                if (isData && data.getSender() != null && data.getData().length == PING_LENGTH) {
+                    onProbeMessage(data.getSender(), data.getData());
+                }
+            }
+        }, MessageRouter.THREAD_MAIN);
+        transport.addCallback(new BluetoothCommunicator.Callback() {
+            @Override
+            public void onConnectionSuccess(Peer peer, int source) {
+                super.onConnectionSuccess(peer, source);
+                stats.put(peer.getUniqueName(), new PeerStats(peer.getName()));
+                start();
+            }
+
+            @Override
+            public void onDisconnected(Peer peer, int peersLeft) {
+                super.onDisconnected(peer, peersLeft);
+                stats.remove(peer.getUniqueName());
+            }
+        });
+    }
+
+    /**
+     * Sets the time between two pings to the same peer, 0 disables the probe
+     **/
+    public void setInterval(long intervalMillis) {
+        this.interval = intervalMillis;
+        if (running) {
+            mainHandler.removeCallbacks(tick);
+            running = false;
+        }
+        start();
+    }
+
+    public long getInterval() {
+        return interval;
+    }
+
+    private void start() {
+        if (!running && interval > 0) {
+            running = true;
+            mainHandler.postDelayed(tick, interval);
+        }
+    }
+
+    private void sendPing(Peer peer) {
+        PeerStats peerStats = stats.get(peer.getUniqueName());
+        if (peerStats == null) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(PING_LENGTH);
+        buffer.put(TYPE_PING);
+        buffer.putInt(++peerStats.sent);
+        buffer.putLong(System.nanoTime());
+        dispatcher.sendData(new Message(context, HEADER, buffer.array(), peer), BroadcastDispatcher.LANE_CONTROL);
+    }
+
+    private void onProbeMessage(Peer sender, byte[] data) {
+        if (data[0] == TYPE_PING) {
+            // the pong is the ping sent back
+            byte[] pong = data.clone();
+            pong[0] = TYPE_PONG;
+            dispatcher.sendData(new Message(context, HEADER, pong, sender), BroadcastDispatcher.LANE_CONTROL);
+        } else if (data[0] == TYPE_PONG) {
+            PeerStats peerStats = stats.get(sender.getUniqueName());
+            if (peerStats != null) {
+                ByteBuffer buffer = ByteBuffer.wrap(data, 1, PING_LENGTH - 1);
+                int sequence = buffer.getInt();
+                long roundTrip = System.nanoTime() - buffer.getLong();
+                peerStats.received++;
+                peerStats.lastSequence = Math.max(peerStats.lastSequence, sequence);
+                peerStats.lastRoundTrip = roundTrip;
+                peerStats.roundTrips.record(roundTrip);
+            }
+        }
+    }
+
+    /**
+     * Returns the statistics of the connected peer, or null if it is not connected
+     **/
+    @Nullable
+    public PeerStats getStats(Peer peer) {
+        return stats.get(peer.getUniqueName());
+    }
+
+    /**
+     * Returns the statistics of all the connected peers
+     **/
+    public ArrayList<PeerStats> getAllStats() {
+        return new ArrayList<>(stats.values());
+    }
+
+    public static class PeerStats {
+        private final String name;
+        private final LatencyHistogram roundTrips = new LatencyHistogram();
+        private int sent = 0;
+        private int received = 0;
+        private int lastSequence = 0;
+        private long lastRoundTrip = -1;
+
+        private PeerStats(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public LatencyHistogram getRoundTrips() {
+            return roundTrips;
+        }
+
+        public int getSentCount() {
+            return sent;
+        }
+
+        public int getReceivedCount() {
+            return received;
+        }
+
+        /**
+         * Number of pings sent after the last one answered, it grows when the link stops working
+         **/
+        public int getUnansweredCount() {
+            return sent - lastSequence;
+        }
+
+        /**
+         * Returns the last round trip time in microseconds, or -1 if no pong has been received
+         **/
+        public long getLastRoundTripMicros() {
+            return lastRoundTrip == -1 ? -1 : lastRoundTrip / 1000;
+        }
+    }
+}
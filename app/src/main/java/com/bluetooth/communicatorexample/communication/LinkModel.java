@@ -0,0 +1,121 @@
+/*
+ * Copyright 2016 Luca Martino.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copyFile of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bluetooth.communicatorexample.communication;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Model of the simulated links of the LoopbackTransport. Each Link has a direction for the outgoing messages and one for the
+ * incoming messages: a message waits for the previous messages of its direction (transmitted with the configured bandwidth)
+ * and for the end of an interruption of the link, then it arrives after the latency. The messages are lost with the
+ * configured probability.
+ * It has no dependencies on Android so it can be tested on the JVM, it is thread safe
+ **/
+public class LinkModel {
+    public static final long DEFAULT_LATENCY = 20;
+    private final Random random;
+    private volatile long latency = DEFAULT_LATENCY;
+    private volatile long bandwidth = 0;
+    private volatile double lossRate = 0;
+    private final AtomicLong lost = new AtomicLong(0);
+
+    public LinkModel(Random random) {
+        this.random = random;
+    }
+
+    /**
+     * Sets the time that each message takes to arrive, after its transmission
+     **/
+    public void setLatency(long latencyMillis) {
+        this.latency = latencyMillis;
+    }
+
+    public long getLatency() {
+        return latency;
+    }
+
+    /**
+     * Sets the bytes per second that each link can transmit in each direction, 0 means unlimited
+     **/
+    public void setBandwidth(long bytesPerSecond) {
+        this.bandwidth = bytesPerSecond;
+    }
+
+    /**
+     * Sets the probability (between 0 and 1) that a message is lost
+     **/
+    public void setLossRate(double lossRate) {
+        this.lossRate = lossRate;
+    }
+
+    /**
+     * Decides whether a message is lost, counting it if it is
+     **/
+    public boolean isLost() {
+        double lossRate = this.lossRate;
+        if (lossRate > 0 && random.nextDouble() < lossRate) {
+            lost.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Number of messages lost in both directions of all the links
+     **/
+    public long getLostCount() {
+        return lost.get();
+    }
+
+    public Link newLink() {
+        return new Link();
+    }
+
+    public class Link {
+        private long outgoingFreeAt = 0;
+        private long incomingFreeAt = 0;
+        private long interruptedUntil = 0;
+
+        private Link() {
+        }
+
+        /**
+         * Reserves the direction of the link for a message of size bytes sent at nowMillis and returns after how many
+         * milliseconds the message arrives. The messages of the same direction arrive in the order of the calls
+         **/
+        public synchronized long schedule(boolean outgoing, int size, long nowMillis) {
+            long start = Math.max(nowMillis, Math.max(outgoing ? outgoingFreeAt : incomingFreeAt, interruptedUntil));
+            long bandwidth = LinkModel.this.bandwidth;
+            long end = start + (bandwidth > 0 ? size * 1000L / bandwidth : 0);
+            if (outgoing) {
+                outgoingFreeAt = end;
+            } else {
+                incomingFreeAt = end;
+            }
+            return end + latency - nowMillis;
+        }
+
+        /**
+         * Interrupts both the directions until untilMillis, the messages sent in the meantime are transmitted after it
+         **/
+        public synchronized void interrupt(long untilMillis) {
+            interruptedUntil = Math.max(interruptedUntil, untilMillis);
+        }
+    }
+}
@@ -0,0 +1,533 @@
+/*
+ * Copyright 2016 Luca Martino.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copyFile of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bluetooth.communicatorexample.communication;
+
+import android.bluetooth.BluetoothAdapter;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import androidx.annotation.Nullable;
+
+import com.bluetooth.communicator.BluetoothCommunicator;
+import com.bluetooth.communicator.Message;
+import com.bluetooth.communicator.Peer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Transport that simulates peersCount peers in memory, to use the app (and to load it with hundreds of peers) without Bluetooth.
+ * The virtual peers are found during the discovery, the first ones (see setIncomingConnectionRequests) send a connection request
+ * while we are advertising, and they accept our connection requests.
+ * While the discovery is active each peer is found again periodically, the first peers more often, as the nearest devices are.
+ * Each message passes through the simulated link of its peer (see LinkModel): it waits for the previous messages of the same
+ * direction (with the configured bandwidth), then for the latency, and it is lost with the configured probability (unlike with
+ * the BluetoothCommunicator, which never loses messages, so the recovery of the app can be tested).
+ * The messages sent to the virtual peers are passed to the Listener, the messages from the virtual peers are generated with
+ * receiveMessage, receiveData or startLoad. simulateConnectionLoss interrupts the link with a peer for a while
+ **/
+public class LoopbackTransport implements Transport {
+    public static final long DEFAULT_DISCOVERY_TIME = 1000;
+    public static final int DEFAULT_INCOMING_CONNECTION_REQUESTS = 1;
+    // the app does not use the source of the callbacks
+    private static final int SOURCE_SERVER = 0;
+    private static final int SOURCE_CLIENT = 1;
+    private static final long LOAD_INTERVAL = 100;
+    private static final long ANNOUNCE_INTERVAL = 2000;
+    private static final int ADVERTISE_STARTED = 0;
+    private static final int ADVERTISE_STOPPED = 1;
+    private static final int DISCOVERY_STARTED = 2;
+    private static final int DISCOVERY_STOPPED = 3;
+    private static final int PEER_FOUND = 4;
+    private static final int CONNECTION_REQUEST = 5;
+    private static final int CONNECTION_SUCCESS = 6;
+    private static final int CONNECTION_LOST = 7;
+    private static final int CONNECTION_RESUMED = 8;
+    private static final int MESSAGE_RECEIVED = 9;
+    private static final int DATA_RECEIVED = 10;
+    private static final int DISCONNECTED = 11;
+    private final Context context;
+    private final String name;
+    private final String uniqueName;
+    private final CopyOnWriteArrayList<BluetoothCommunicator.Callback> callbacks = new CopyOnWriteArrayList<>();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Random random = new Random();
+    private final LinkModel links = new LinkModel(random);
+    // created in the constructor and never changed
+    private final ArrayList<VirtualPeer> virtualPeers = new ArrayList<>();
+    private final HashMap<String, VirtualPeer> virtualPeersByUniqueName = new HashMap<>();
+    private long discoveryTime = DEFAULT_DISCOVERY_TIME;
+    private int incomingConnectionRequests = DEFAULT_INCOMING_CONNECTION_REQUESTS;
+    // read by the background thread of the event bus
+    private volatile boolean advertising = false;
+    private volatile boolean discovering = false;
+    @Nullable
+    private volatile Listener listener;
+    @Nullable
+    private Runnable loadTask;
+    // statistics
+    private final AtomicLong sent = new AtomicLong(0);
+    private final AtomicLong received = new AtomicLong(0);
+
+    public LoopbackTransport(Context context, String name, int peersCount) {
+        this.context = context;
+        this.name = name;
+        this.uniqueName = name + randomSuffix();
+        for (int i = 0; i < peersCount; i++) {
+            // the unique name is the name followed by two characters, as for the real peers
+            VirtualPeer virtualPeer = new VirtualPeer(new Peer(null, "Virtual " + (i + 1) + randomSuffix(), false), i, links.newLink());
+            virtualPeers.add(virtualPeer);
+            virtualPeersByUniqueName.put(virtualPeer.peer.getUniqueName(), virtualPeer);
+        }
+    }
+
+    private String randomSuffix() {
+        return Integer.toHexString(0x10 + random.nextInt(0xF0));
+    }
+
+    /**
+     * Sets the time that each message takes to arrive, after its transmission
+     **/
+    public void setLatency(long latencyMillis) {
+        links.setLatency(latencyMillis);
+    }
+
+    /**
+     * Sets the bytes per second that each link can transmit in each direction, 0 means unlimited
+     **/
+    public void setBandwidth(long bytesPerSecond) {
+        links.setBandwidth(bytesPerSecond);
+    }
+
+    /**
+     * Sets the probability (between 0 and 1) that a message is lost
+     **/
+    public void setLossRate(double lossRate) {
+        links.setLossRate(lossRate);
+    }
+
+    /**
+     * Sets the time within which all the virtual peers are found after the start of the discovery
+     **/
+    public void setDiscoveryTime(long discoveryTimeMillis) {
+        this.discoveryTime = discoveryTimeMillis;
+    }
+
+    /**
+     * Sets how many virtual peers send us a connection request when they are found while we are advertising
+     **/
+    public void setIncomingConnectionRequests(int count) {
+        this.incomingConnectionRequests = count;
+    }
+
+    public void setListener(@Nullable Listener listener) {
+        this.listener = listener;
+    }
+
+    public ArrayList<Peer> getVirtualPeers() {
+        ArrayList<Peer> peers = new ArrayList<>();
+        for (int i = 0; i < virtualPeers.size(); i++) {
+            peers.add(virtualPeers.get(i).peer);
+        }
+        return peers;
+    }
+
+    @Override
+    public void addCallback(BluetoothCommunicator.Callback callback) {
+        callbacks.add(callback);
+    }
+
+    @Override
+    public void removeCallback(BluetoothCommunicator.Callback callback) {
+        callbacks.remove(callback);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String getUniqueName() {
+        return uniqueName;
+    }
+
+    @Override
+    public ArrayList<Peer> getConnectedPeersList() {
+        ArrayList<Peer> connectedPeers = new ArrayList<>();
+        for (int i = 0; i < virtualPeers.size(); i++) {
+            VirtualPeer virtualPeer = virtualPeers.get(i);
+            if (virtualPeer.connected) {
+                connectedPeers.add(virtualPeer.peer);
+            }
+        }
+        return connectedPeers;
+    }
+
+    @Override
+    public void sendMessage(Message message) {
+        transmit(message, false);
+    }
+
+    @Override
+    public void sendData(Message data) {
+        transmit(data, true);
+    }
+
+    private void transmit(final Message message, final boolean isData) {
+        final VirtualPeer virtualPeer = getVirtualPeer(message.getReceiver());
+        if (virtualPeer == null || !virtualPeer.connected) {
+            return;
+        }
+        sent.incrementAndGet();
+        if (links.isLost()) {
+            return;
+        }
+        long delay = virtualPeer.link.schedule(true, sizeOf(message, isData), SystemClock.uptimeMillis());
+        mainHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                Listener listener = LoopbackTransport.this.listener;
+                if (virtualPeer.connected && listener != null) {
+                    listener.onMessageReceived(LoopbackTransport.this, virtualPeer.peer, message, isData);
+                }
+            }
+        }, delay);
+    }
+
+    /**
+     * Simulates a text message sent by virtualPeer to us, can be called from any thread
+     **/
+    public void receiveMessage(Peer virtualPeer, String header, String text) {
+        Message message = new Message(context, header, text, null);
+        receive(virtualPeer, message, MESSAGE_RECEIVED, text.length());
+    }
+
+    /**
+     * Simulates data sent by virtualPeer to us, can be called from any thread
+     **/
+    public void receiveData(Peer virtualPeer, String header, byte[] data) {
+        Message message = new Message(context, header, data, null);
+        receive(virtualPeer, message, DATA_RECEIVED, data.length);
+    }
+
+    private void receive(Peer peer, Message message, int event, int size) {
+        VirtualPeer virtualPeer = getVirtualPeer(peer);
+        if (virtualPeer == null || !virtualPeer.connected || links.isLost()) {
+            return;
+        }
+        message.setSender(virtualPeer.peer);
+        received.incrementAndGet();
+        post(event, virtualPeer, message, virtualPeer.link.schedule(false, size, SystemClock.uptimeMillis()));
+    }
+
+    private static int sizeOf(Message message, boolean isData) {
+        return isData ? message.getData().length : message.getText().length();
+    }
+
+    /**
+     * Each connected virtual peer sends us messagesPerSecond text messages with header
+     **/
+    public void startLoad(final String header, final int messagesPerSecond) {
+        stopLoad();
+        loadTask = new Runnable() {
+            private double pending = 0;
+            private long count = 0;
+
+            @Override
+            public void run() {
+                pending += messagesPerSecond * LOAD_INTERVAL / 1000.0;
+                int messages = (int) pending;
+                pending -= messages;
+                for (int i = 0; i < virtualPeers.size(); i++) {
+                    VirtualPeer virtualPeer = virtualPeers.get(i);
+                    if (virtualPeer.connected) {
+                        for (int j = 0; j < messages; j++) {
+                            receiveMessage(virtualPeer.peer, header, "Load message " + (++count));
+                        }
+                    }
+                }
+                mainHandler.postDelayed(this, LOAD_INTERVAL);
+            }
+        };
+        mainHandler.postDelayed(loadTask, LOAD_INTERVAL);
+    }
+
+    public void stopLoad() {
+        if (loadTask != null) {
+            mainHandler.removeCallbacks(loadTask);
+            loadTask = null;
+        }
+    }
+
+    /**
+     * Interrupts the link with virtualPeer for durationMillis, the messages sent in the meantime arrive after the resume
+     **/
+    public void simulateConnectionLoss(Peer peer, long durationMillis) {
+        VirtualPeer virtualPeer = getVirtualPeer(peer);
+        if (virtualPeer != null && virtualPeer.connected) {
+            virtualPeer.link.interrupt(SystemClock.uptimeMillis() + durationMillis);
+            post(CONNECTION_LOST, virtualPeer, null, 0);
+            post(CONNECTION_RESUMED, virtualPeer, null, durationMillis);
+        }
+    }
+
+    @Override
+    public int isBluetoothLeSupported() {
+        return BluetoothCommunicator.SUCCESS;
+    }
+
+    @Override
+    public int startAdvertising() {
+        if (advertising) {
+            return BluetoothCommunicator.ALREADY_STARTED;
+        }
+        advertising = true;
+        post(ADVERTISE_STARTED, null, null, 0);
+        return BluetoothCommunicator.SUCCESS;
+    }
+
+    @Override
+    public int stopAdvertising(boolean tryRestoreBluetoothStatus) {
+        if (!advertising) {
+            return BluetoothCommunicator.ALREADY_STOPPED;
+        }
+        advertising = false;
+        post(ADVERTISE_STOPPED, null, null, 0);
+        return BluetoothCommunicator.SUCCESS;
+    }
+
+    @Override
+    public int startDiscovery() {
+        if (discovering) {
+            return BluetoothCommunicator.ALREADY_STARTED;
+        }
+        discovering = true;
+        post(DISCOVERY_STARTED, null, null, 0);
+        for (int i = 0; i < virtualPeers.size(); i++) {
+            VirtualPeer virtualPeer = virtualPeers.get(i);
+            if (!virtualPeer.announceScheduled) {
+                virtualPeer.announceScheduled = true;
+                post(PEER_FOUND, virtualPeer, null, (long) (random.nextDouble() * discoveryTime));
+            }
+        }
+        return BluetoothCommunicator.SUCCESS;
+    }
+
+    @Override
+    public int stopDiscovery(boolean tryRestoreBluetoothStatus) {
+        if (!discovering) {
+            return BluetoothCommunicator.ALREADY_STOPPED;
+        }
+        discovering = false;
+        post(DISCOVERY_STOPPED, null, null, 0);
+        return BluetoothCommunicator.SUCCESS;
+    }
+
+    @Override
+    public boolean isAdvertising() {
+        return advertising;
+    }
+
+    @Override
+    public boolean isDiscovering() {
+        return discovering;
+    }
+
+    @Override
+    public void connect(Peer peer) {
+        VirtualPeer virtualPeer = getVirtualPeer(peer);
+        if (virtualPeer != null && !virtualPeer.connected) {
+            // request and answer
+            virtualPeer.source = SOURCE_CLIENT;
+            post(CONNECTION_SUCCESS, virtualPeer, null, 2 * links.getLatency());
+        }
+    }
+
+    @Override
+    public void acceptConnection(Peer peer) {
+        VirtualPeer virtualPeer = getVirtualPeer(peer);
+        if (virtualPeer != null && !virtualPeer.connected) {
+            virtualPeer.source = SOURCE_SERVER;
+            post(CONNECTION_SUCCESS, virtualPeer, null, links.getLatency());
+        }
+    }
+
+    @Override
+    public void rejectConnection(Peer peer) {
+    }
+
+    @Override
+    public int disconnect(Peer peer) {
+        VirtualPeer virtualPeer = getVirtualPeer(peer);
+        if (virtualPeer == null || !virtualPeer.connected) {
+            return BluetoothCommunicator.ERROR;
+        }
+        virtualPeer.connected = false;
+        post(DISCONNECTED, virtualPeer, null, 0);
+        return BluetoothCommunicator.SUCCESS;
+    }
+
+    @Override
+    public void disconnectFromAll() {
+        for (int i = 0; i < virtualPeers.size(); i++) {
+            if (virtualPeers.get(i).connected) {
+                disconnect(virtualPeers.get(i).peer);
+            }
+        }
+    }
+
+    @Override
+    public BluetoothAdapter getBluetoothAdapter() {
+        return null;
+    }
+
+    @Nullable
+    private VirtualPeer getVirtualPeer(@Nullable Peer peer) {
+        return peer != null ? virtualPeersByUniqueName.get(peer.getUniqueName()) : null;
+    }
+
+    public long getSentCount() {
+        return sent.get();
+    }
+
+    public long getReceivedCount() {
+        return received.get();
+    }
+
+    /**
+     * Number of messages lost in both directions
+     **/
+    public long getLostCount() {
+        return links.getLostCount();
+    }
+
+    // calls the callbacks on the main thread after delay, as the BluetoothCommunicator does
+    private void post(final int event, @Nullable final VirtualPeer virtualPeer, @Nullable final Message message, long delay) {
+        mainHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                onEvent(event, virtualPeer, message);
+            }
+        }, delay);
+    }
+
+    private void onEvent(int event, @Nullable VirtualPeer virtualPeer, @Nullable Message message) {
+        // the events of the peers are discarded if the state of the peer has changed in the meantime
+        switch (event) {
+            case PEER_FOUND:
+                virtualPeer.announceScheduled = false;
+                if (!discovering || virtualPeer.connected) {
+                    return;
+                }
+                virtualPeer.announceScheduled = true;
+                post(PEER_FOUND, virtualPeer, null, (long) (ANNOUNCE_INTERVAL * (1 + virtualPeer.index % 4) * (0.75 + random.nextDouble() / 2)));
+                break;
+            case CONNECTION_SUCCESS:
+                if (virtualPeer.connected) {
+                    return;
+                }
+                virtualPeer.connected = true;
+                break;
+            case CONNECTION_LOST:
+            case CONNECTION_RESUMED:
+            case MESSAGE_RECEIVED:
+            case DATA_RECEIVED:
+                if (!virtualPeer.connected) {
+                    return;
+                }
+                break;
+        }
+        int connectedCount = getConnectedPeersList().size();
+        for (BluetoothCommunicator.Callback callback : callbacks) {
+            switch (event) {
+                case ADVERTISE_STARTED:
+                    callback.onAdvertiseStarted();
+                    break;
+                case ADVERTISE_STOPPED:
+                    callback.onAdvertiseStopped();
+                    break;
+                case DISCOVERY_STARTED:
+                    callback.onDiscoveryStarted();
+                    break;
+                case DISCOVERY_STOPPED:
+                    callback.onDiscoveryStopped();
+                    break;
+                case PEER_FOUND:
+                    callback.onPeerFound(virtualPeer.peer);
+                    break;
+                case CONNECTION_REQUEST:
+                    callback.onConnectionRequest(virtualPeer.peer);
+                    break;
+                case CONNECTION_SUCCESS:
+                    callback.onConnectionSuccess(virtualPeer.peer, virtualPeer.source);
+                    break;
+                case CONNECTION_LOST:
+                    callback.onConnectionLost(virtualPeer.peer);
+                    break;
+                case CONNECTION_RESUMED:
+                    callback.onConnectionResumed(virtualPeer.peer);
+                    break;
+                case MESSAGE_RECEIVED:
+                    callback.onMessageReceived(message, virtualPeer.source);
+                    break;
+                case DATA_RECEIVED:
+                    callback.onDataReceived(message, virtualPeer.source);
+                    break;
+                case DISCONNECTED:
+                    callback.onDisconnected(virtualPeer.peer, connectedCount);
+                    break;
+            }
+        }
+        // a found peer can ask to connect
+        if (event == PEER_FOUND && advertising && virtualPeer.index < incomingConnectionRequests && !virtualPeer.requested) {
+            virtualPeer.requested = true;
+            post(CONNECTION_REQUEST, virtualPeer, null, links.getLatency());
+        }
+    }
+
+    private class VirtualPeer {
+        private final Peer peer;
+        private final int index;
+        private volatile boolean connected = false;
+        private volatile int source = SOURCE_CLIENT;
+        private boolean requested = false;
+        // whether a PEER_FOUND of this peer is posted
+        private boolean announceScheduled = false;
+        // the times of the link are SystemClock.uptimeMillis, as the Handler
+        private final LinkModel.Link link;
+
+        private VirtualPeer(Peer peer, int index, LinkModel.Link link) {
+            this.peer = peer;
+            this.index = index;
+            this.link = link;
+        }
+    }
+
+    public static abstract class Listener {
+        /**
+         * Called on the main thread when a message sent by the app arrives to virtualPeer, transport can be used to answer
+         **/
+        public void onMessageReceived(LoopbackTransport transport, Peer virtualPeer, Message message, boolean isData) {
+        }
+    }
+}
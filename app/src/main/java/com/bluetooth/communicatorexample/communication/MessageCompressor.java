@@ -0,0 +1,289 @@
+/*
+ * Copyright 2016 Luca Martino.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copyFile of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bluetooth.communicatorexample.communication;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.bluetooth.communicator.BluetoothCommunicator;
+import com.bluetooth.communicator.Message;
+import com.bluetooth.communicator.Peer;
+import com.bluetooth.communicatorexample.BuildConfig;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.HashSet;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Optional compression stage for the text of the messages. It uses raw deflate with a small preset dictionary
+ * of common chat words, so that even short messages shrink.
+ * Compression is negotiated: when a connection starts each device announces the dictionary version it supports
+ * (with a message with CAPABILITIES_HEADER) and compressed messages are sent only to the peers that announced the same version
+ **/
+public class MessageCompressor {
+    public static final String HEADER = "z";
+    public static final String CAPABILITIES_HEADER = "c";
+    public static final int DEFAULT_THRESHOLD = 16;  // bytes
+    // the bigger messages are sent uncompressed, and a received message that inflates beyond it is discarded (it could exhaust the memory)
+    public static final int MAX_SIZE = 64 * 1024;  // bytes
+    private static final String TAG = "MessageCompressor";
+    // the log of each message is only in the debug builds, enabled with: adb shell setprop log.tag.MessageCompressor DEBUG
+    private static final boolean LOG_MESSAGES = BuildConfig.DEBUG && Log.isLoggable(TAG, Log.DEBUG);
+    private static final String CAPABILITY = "z2";  // "z" + format version
+    // set in the header length byte when the original message was data instead of text
+    private static final int FLAG_DATA = 0x80;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    // the strings at the end are the cheapest to reference, so the most common ones are placed last
+    private static final byte[] DICTIONARY = (
+            "tomorrow tonight morning evening afternoon weekend please sorry thank you thanks " +
+            "what where when which who why how much many about because would could should " +
+            "there their they them then than this that these those with from have been will " +
+            "going come here now later soon today just know think want need like love good great " +
+            "ok okay yes no maybe sure right really nice cool lol haha :) :( " +
+            "can you I'm I am are you do you don't it's is it what's up how are you? see you later " +
+            "the and for you to of in on at is it a I ").getBytes(UTF_8);
+    private final Context context;
+    private final BroadcastDispatcher dispatcher;
+    private final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+    private final Inflater inflater = new Inflater(true);
+    private final byte[] buffer = new byte[1024];
+    private final HashSet<String> supportingPeers = new HashSet<>();
+    private boolean enabled = true;
+    private int threshold = DEFAULT_THRESHOLD;
+    // stats
+    private long compressedMessages = 0;
+    private long skippedMessages = 0;
+    private long totalOriginalBytes = 0;
+    private long totalCompressedBytes = 0;
+    private long totalEncodeNanos = 0;
+    private long totalDecodeNanos = 0;
+    private long decompressedMessages = 0;
+
+    public MessageCompressor(Context context, Transport transport, BroadcastDispatcher dispatcher, final MessageRouter router) {
+        this.context = context;
+        this.dispatcher = dispatcher;
+        router.register(CAPABILITIES_HEADER, new MessageRouter.MessageHandler() {
+            @Override
+            public void onMessage(Message message, boolean isData) {
+                if (!isData && message.getSender() != null) {
+                    synchronized (MessageCompressor.this) {
+                        if (CAPABILITY.equals(message.getText())) {
+                            supportingPeers.add(message.getSender().getUniqueName());
+                        } else {
+                            supportingPeers.remove(message.getSender().getUniqueName());
+                        }
+                    }
+                }
+            }
+        }, MessageRouter.THREAD_MAIN);
+        router.register(HEADER, new MessageRouter.MessageHandler() {
+            @Override
+            public void onMessage(Message data, boolean isData) {
+                if (isData) {
+                    // the decompressed message is routed with its original header
+                    Message message = decompress(data);
+                    if (message != null) {
+                        router.dispatch(message, (data.getData()[0] & FLAG_DATA) != 0);
+                    }
+                }
+            }
+        }, MessageRouter.THREAD_MAIN);
+        transport.addCallback(new BluetoothCommunicator.Callback() {
+            @Override
+            public void onConnectionSuccess(Peer peer, int source) {
+                super.onConnectionSuccess(peer, source);
+                announceCapabilities(peer);
+            }
+
+            @Override
+            public void onDisconnected(Peer peer, int peersLeft) {
+                super.onDisconnected(peer, peersLeft);
+                synchronized (MessageCompressor.this) {
+                    supportingPeers.remove(peer.getUniqueName());
+                }
+            }
+        });
+    }
+
+    private void announceCapabilities(Peer peer) {
+        dispatcher.sendMessage(new Message(context, CAPABILITIES_HEADER, CAPABILITY, peer));
+    }
+
+    public synchronized boolean isSupportedBy(Peer peer) {
+        return enabled && supportingPeers.contains(peer.getUniqueName());
+    }
+
+    /**
+     * Returns the payload of the compressed message (to send with HEADER as data) or null if the text is below
+     * the threshold or if compression does not reduce its size, in these cases the text must be sent as it is
+     **/
+    @Nullable
+    public byte[] compress(String header, String text) {
+        return compress(header, text.getBytes(UTF_8), false);
+    }
+
+    /**
+     * Like compress(header, text) but for a data message, decompress will rebuild a data message
+     **/
+    @Nullable
+    public byte[] compress(String header, byte[] data) {
+        return compress(header, data, true);
+    }
+
+    @Nullable
+    private synchronized byte[] compress(String header, byte[] raw, boolean isData) {
+        if (!enabled || raw.length < threshold || raw.length > MAX_SIZE) {
+            skippedMessages++;
+            return null;
+        }
+        long startTime = System.nanoTime();
+        ByteArrayOutputStream output = new ByteArrayOutputStream(raw.length);
+        byte[] headerBytes = header.getBytes(UTF_8);
+        output.write(headerBytes.length | (isData ? FLAG_DATA : 0));
+        output.write(headerBytes, 0, headerBytes.length);
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(raw);
+        deflater.finish();
+        while (!deflater.finished()) {
+            int length = deflater.deflate(buffer);
+            output.write(buffer, 0, length);
+        }
+        long encodeNanos = System.nanoTime() - startTime;
+        byte[] compressed = output.toByteArray();
+        if (compressed.length >= raw.length) {
+            skippedMessages++;
+            return null;
+        }
+        compressedMessages++;
+        totalOriginalBytes += raw.length;
+        totalCompressedBytes += compressed.length;
+        totalEncodeNanos += encodeNanos;
+        if (LOG_MESSAGES) {
+            Log.d(TAG, "compressed " + raw.length + " -> " + compressed.length + " bytes (ratio " + formatRatio(raw.length, compressed.length) + ") in " + (encodeNanos / 1000) + " us");
+        }
+        return compressed;
+    }
+
+    /**
+     * Rebuilds the original message (text or data) from a message received with HEADER, returns null if the payload is corrupted
+     * or if the original message would be bigger than MAX_SIZE
+     **/
+    @Nullable
+    public synchronized Message decompress(Message data) {
+        byte[] payload = data.getData();
+        if (payload == null || payload.length == 0) {
+            return null;
+        }
+        long startTime = System.nanoTime();
+        boolean isData = (payload[0] & FLAG_DATA) != 0;
+        int headerLength = payload[0] & 0x7F;
+        int offset = 1 + headerLength;
+        if (offset > payload.length) {
+            return null;
+        }
+        String header = new String(payload, 1, headerLength, UTF_8);
+        ByteArrayOutputStream output = new ByteArrayOutputStream(Math.min(payload.length * 3, MAX_SIZE));
+        inflater.reset();
+        inflater.setDictionary(DICTIONARY);
+        inflater.setInput(payload, offset, payload.length - offset);
+        try {
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && inflater.needsInput()) {
+                    break;
+                }
+                if (output.size() + length > MAX_SIZE) {
+                    Log.e(TAG, "compressed message bigger than " + MAX_SIZE + " bytes discarded");
+                    return null;
+                }
+                output.write(buffer, 0, length);
+            }
+        } catch (DataFormatException e) {
+            Log.e(TAG, "corrupted compressed message", e);
+            return null;
+        }
+        long decodeNanos = System.nanoTime() - startTime;
+        decompressedMessages++;
+        totalDecodeNanos += decodeNanos;
+        if (LOG_MESSAGES) {
+            Log.d(TAG, "decompressed " + payload.length + " -> " + output.size() + " bytes in " + (decodeNanos / 1000) + " us");
+        }
+        Message message;
+        if (isData) {
+            message = new Message(context, header, output.toByteArray(), null);
+        } else {
+            message = new Message(context, header, new String(output.toByteArray(), UTF_8), null);
+        }
+        message.setSender(data.getSender());
+        return message;
+    }
+
+    public synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    public synchronized void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public synchronized int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Messages whose text is shorter than threshold bytes are sent without compression
+     **/
+    public synchronized void setThreshold(int threshold) {
+        this.threshold = threshold;
+    }
+
+    public synchronized long getCompressedMessagesCount() {
+        return compressedMessages;
+    }
+
+    public synchronized long getSkippedMessagesCount() {
+        return skippedMessages;
+    }
+
+    /**
+     * Returns the average compressed size / original size of the compressed messages
+     **/
+    public synchronized float getAverageRatio() {
+        if (totalOriginalBytes == 0) {
+            return 1;
+        }
+        return (float) totalCompressedBytes / totalOriginalBytes;
+    }
+
+    public synchronized long getAverageEncodeMicros() {
+        return compressedMessages == 0 ? 0 : totalEncodeNanos / compressedMessages / 1000;
+    }
+
+    public synchronized long getAverageDecodeMicros() {
+        return decompressedMessages == 0 ? 0 : totalDecodeNanos / decompressedMessages / 1000;
+    }
+
+    private static String formatRatio(int originalLength, int compressedLength) {
+        return String.valueOf(Math.round(compressedLength * 100f / originalLength) / 100f);
+    }
+}
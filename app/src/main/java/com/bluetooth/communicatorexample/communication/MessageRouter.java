@@ -0,0 +1,206 @@
+/*
+ * Copyright 2016 Luca Martino.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copyFile of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bluetooth.communicatorexample.communication;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.Nullable;
+
+import com.bluetooth.communicator.BluetoothCommunicator;
+import com.bluetooth.communicator.Message;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Receives all the messages and data of the BluetoothCommunicator and dispatches each one to the handler registered
+ * for its header, so each message type has its own handler instead of a branch in every callback.
+ * The headers are single characters, so the lookup is an array indexed by the character (a map for the non ASCII ones).
+ * Each handler runs on the main thread or on a background thread (one for all the background handlers, so the messages
+ * of the same type are handled in order), and each route counts its messages and measures the time spent by its handler.
+ * The stages that unwrap messages (decompression, sequencing) pass the inner message to dispatch, so it is routed like the others
+ **/
+public class MessageRouter {
+    public static final int THREAD_MAIN = 0;
+    public static final int THREAD_BACKGROUND = 1;
+    private static final int TABLE_SIZE = 128;
+    private final Route[] table = new Route[TABLE_SIZE];
+    private final HashMap<String, Route> otherRoutes = new HashMap<>();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService background = Executors.newSingleThreadExecutor();
+    private long unhandled = 0;
+
+    public MessageRouter(Transport transport) {
+        transport.addCallback(new BluetoothCommunicator.Callback() {
+            @Override
+            public void onMessageReceived(Message message, int source) {
+                super.onMessageReceived(message, source);
+                dispatch(message, false);
+            }
+
+            @Override
+            public void onDataReceived(Message data, int source) {
+                super.onDataReceived(data, source);
+                dispatch(data, true);
+            }
+        });
+    }
+
+    /**
+     * Registers handler for the messages with header (replacing the previous one), thread is THREAD_MAIN or THREAD_BACKGROUND
+     **/
+    public synchronized void register(String header, MessageHandler handler, int thread) {
+        Route route = getRoute(header);
+        if (route == null) {
+            route = new Route(header);
+            if (isInTable(header)) {
+                table[header.charAt(0)] = route;
+            } else {
+                otherRoutes.put(header, route);
+            }
+        }
+        route.handler = handler;
+        route.thread = thread;
+    }
+
+    /**
+     * Removes handler, if it is still the one registered for header (the counters of the route are kept)
+     **/
+    public synchronized void unregister(String header, MessageHandler handler) {
+        Route route = getRoute(header);
+        if (route != null && route.handler == handler) {
+            route.handler = null;
+        }
+    }
+
+    /**
+     * Passes the message to the handler of its header, isData tells if it contains data or text
+     **/
+    public void dispatch(final Message message, final boolean isData) {
+        final Route route;
+        final MessageHandler handler;
+        int thread;
+        synchronized (this) {
+            route = getRoute(message.getHeader());
+            handler = route != null ? route.handler : null;
+            if (handler == null) {
+                unhandled++;
+                return;
+            }
+            thread = route.thread;
+            route.count++;
+        }
+        if (thread == THREAD_MAIN && Looper.myLooper() == Looper.getMainLooper()) {
+            handle(route, handler, message, isData);
+        } else {
+            Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                    handle(route, handler, message, isData);
+                }
+            };
+            if (thread == THREAD_MAIN) {
+                mainHandler.post(task);
+            } else {
+                background.execute(task);
+            }
+        }
+    }
+
+    private void handle(Route route, MessageHandler handler, Message message, boolean isData) {
+        long startTime = System.nanoTime();
+        handler.onMessage(message, isData);
+        route.latency.record(System.nanoTime() - startTime);
+    }
+
+    private static boolean isInTable(String header) {
+        return header.length() == 1 && header.charAt(0) < TABLE_SIZE;
+    }
+
+    @Nullable
+    private Route getRoute(String header) {
+        if (isInTable(header)) {
+            return table[header.charAt(0)];
+        }
+        return otherRoutes.get(header);
+    }
+
+    /**
+     * Returns the route of header with its counters, or null if no handler has ever been registered for it
+     **/
+    @Nullable
+    public synchronized Route getRouteStats(String header) {
+        return getRoute(header);
+    }
+
+    public synchronized ArrayList<Route> getRoutes() {
+        ArrayList<Route> routes = new ArrayList<>();
+        for (Route route : table) {
+            if (route != null) {
+                routes.add(route);
+            }
+        }
+        routes.addAll(otherRoutes.values());
+        return routes;
+    }
+
+    /**
+     * Number of messages received with a header without a registered handler
+     **/
+    public synchronized long getUnhandledCount() {
+        return unhandled;
+    }
+
+    public static class Route {
+        private final String header;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        @Nullable
+        private MessageHandler handler;
+        private int thread;
+        // written holding the lock of the router
+        private volatile long count = 0;
+
+        private Route(String header) {
+            this.header = header;
+        }
+
+        public String getHeader() {
+            return header;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Time spent by the handler for each message
+         **/
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+    }
+
+    public interface MessageHandler {
+        /**
+         * isData is true if the message was received with onDataReceived (use getData) and false for the text messages (use getText)
+         **/
+        void onMessage(Message message, boolean isData);
+    }
+}
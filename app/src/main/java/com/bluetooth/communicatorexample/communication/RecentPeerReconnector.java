@@ -0,0 +1,259 @@
+/*
+ * Copyright 2016 Luca Martino.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copyFile of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bluetooth.communicatorexample.communication;
+
+import android.bluetooth.BluetoothAdapter;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import androidx.annotation.Nullable;
+
+import com.bluetooth.communicator.BluetoothCommunicator;
+import com.bluetooth.communicator.Peer;
+import com.bluetooth.communicatorexample.storage.RecentPeers;
+
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Reconnects at launch to the peer of the RecentPeers most likely to accept, without waiting for the user to pick it:
+ * when the first discovery starts a connection is requested directly to the last address of the peer and, if that fails
+ * (the address can change) or is unknown, the peer is connected as soon as the discovery, which runs in parallel, finds it.
+ * The attempt ends at the first connection, when the user picks another peer or after RECONNECT_TIMEOUT, and in the last two
+ * cases the connection in progress to the peer is cancelled.
+ * It also records in RecentPeers the outcome and the duration of all the connections, and the time from the launch to the
+ * first connection, marked with whether the cache has been used, so the two cases can be compared (the reconnection can be
+ * disabled with setEnabled to collect the times without the cache). A connection to the peer that completes anyway after the
+ * attempt has been abandoned is closed (unless the user has requested that peer in the meantime) and is not recorded as the first one.
+ * The events of the communicator are handled on the background thread of the CommunicatorEventBus (where RecentPeers writes
+ * its file), the connections are requested on the main thread; the public methods must be called on the main thread
+ **/
+public class RecentPeerReconnector {
+    public static final long RECONNECT_TIMEOUT = 10000;
+    private final Transport transport;
+    private final RecentPeers recentPeers;
+    private final long launchTime;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // the fields below are guarded by this
+    // unique name -> uptime of the connection request
+    private final HashMap<String, Long> connectionStarts = new HashMap<>();
+    private boolean started = false;
+    private boolean attempted = false;
+    private boolean firstConnectionRecorded = false;
+    @Nullable
+    private RecentPeers.Entry target;
+    // the peer passed to connect, null if the target is not being connected
+    @Nullable
+    private Peer connectingPeer;
+    // unique name of the peer whose connection has been cancelled by abandon, null if there is not
+    @Nullable
+    private String abandonedPeer;
+    // unique names of the peers whose last connection has been closed because it completed after the abandon
+    private final HashSet<String> droppedPeers = new HashSet<>();
+    private final Runnable timeout = new Runnable() {
+        @Override
+        public void run() {
+            abandon();
+        }
+    };
+
+    /**
+     * launchTime is the SystemClock.uptimeMillis of the start of the app
+     **/
+    public RecentPeerReconnector(Transport transport, CommunicatorEventBus eventBus, RecentPeers recentPeers, long launchTime) {
+        this.transport = transport;
+        this.recentPeers = recentPeers;
+        this.launchTime = launchTime;
+        eventBus.addCallback(new BluetoothCommunicator.Callback() {
+            @Override
+            public void onDiscoveryStarted() {
+                super.onDiscoveryStarted();
+                onFirstDiscovery();
+            }
+
+            @Override
+            public void onPeerFound(Peer peer) {
+                super.onPeerFound(peer);
+                onTargetFound(peer);
+            }
+
+            @Override
+            public void onPeerUpdated(Peer peer, Peer newPeer) {
+                super.onPeerUpdated(peer, newPeer);
+                onTargetFound(newPeer);
+            }
+
+            @Override
+            public void onConnectionSuccess(Peer peer, int source) {
+                super.onConnectionSuccess(peer, source);
+                onSuccess(peer);
+            }
+
+            @Override
+            public void onConnectionFailed(Peer peer, int errorCode) {
+                super.onConnectionFailed(peer, errorCode);
+                onFailure(peer, errorCode);
+            }
+        }, CommunicatorEventBus.THREAD_BACKGROUND);
+    }
+
+    /**
+     * Enables or disables the reconnection at the next launches (for example to measure the time to the first connection without it),
+     * the setting is saved in the RecentPeers
+     **/
+    public void setEnabled(boolean enabled) {
+        recentPeers.setReconnectEnabled(enabled);
+    }
+
+    public boolean isEnabled() {
+        return recentPeers.isReconnectEnabled();
+    }
+
+    private synchronized void onFirstDiscovery() {
+        if (started) {
+            return;
+        }
+        started = true;
+        RecentPeers.Entry entry = recentPeers.getMostLikely();
+        if (!recentPeers.isReconnectEnabled() || entry == null || !transport.getConnectedPeersList().isEmpty()) {
+            return;
+        }
+        attempted = true;
+        target = entry;
+        mainHandler.postDelayed(timeout, RECONNECT_TIMEOUT);
+        BluetoothAdapter bluetoothAdapter = transport.getBluetoothAdapter();
+        if (bluetoothAdapter != null && BluetoothAdapter.checkBluetoothAddress(entry.getAddress())) {
+            connectToTarget(new Peer(bluetoothAdapter.getRemoteDevice(entry.getAddress()), entry.getUniqueName(), false));
+        }
+    }
+
+    private synchronized void onTargetFound(Peer peer) {
+        if (target != null && connectingPeer == null && peer.getUniqueName().equals(target.getUniqueName())) {
+            connectToTarget(peer);
+        }
+    }
+
+    private synchronized void onSuccess(final Peer peer) {
+        long now = SystemClock.uptimeMillis();
+        Long start = connectionStarts.remove(peer.getUniqueName());
+        String address = peer.getDevice() != null ? peer.getDevice().getAddress() : "";
+        recentPeers.recordSuccess(peer.getUniqueName(), peer.getName(), address, start != null ? now - start : -1);
+        if (peer.getUniqueName().equals(abandonedPeer)) {
+            // nobody wants this connection anymore
+            abandonedPeer = null;
+            droppedPeers.add(peer.getUniqueName());
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    transport.disconnect(peer);
+                }
+            });
+            return;
+        }
+        droppedPeers.remove(peer.getUniqueName());
+        if (!firstConnectionRecorded) {
+            firstConnectionRecorded = true;
+            recentPeers.recordTimeToFirstConnection(now - launchTime, attempted);
+        }
+        stop();
+    }
+
+    private synchronized void onFailure(Peer peer, int errorCode) {
+        connectionStarts.remove(peer.getUniqueName());
+        if (peer.getUniqueName().equals(abandonedPeer)) {
+            abandonedPeer = null;
+        }
+        recentPeers.recordFailure(peer.getUniqueName());
+        if (target != null && peer.getUniqueName().equals(target.getUniqueName())) {
+            if (errorCode == BluetoothCommunicator.CONNECTION_REJECTED) {
+                stop();
+            } else {
+                // we wait for the discovery to find the peer with its current address
+                connectingPeer = null;
+            }
+        }
+    }
+
+    // must be called holding the lock
+    private void connectToTarget(final Peer peer) {
+        connectingPeer = peer;
+        connectionStarts.put(peer.getUniqueName(), SystemClock.uptimeMillis());
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (RecentPeerReconnector.this) {
+                    if (connectingPeer != peer) {
+                        // abandoned in the meantime
+                        return;
+                    }
+                }
+                transport.connect(peer);
+            }
+        });
+    }
+
+    // ends the attempt cancelling the connection in progress to the target, called on the main thread
+    private synchronized void abandon() {
+        if (connectingPeer != null) {
+            abandonedPeer = connectingPeer.getUniqueName();
+            transport.disconnect(connectingPeer);
+        }
+        stop();
+    }
+
+    // must be called holding the lock
+    private void stop() {
+        target = null;
+        connectingPeer = null;
+        mainHandler.removeCallbacks(timeout);
+    }
+
+    /**
+     * To be called when the app requests a connection to peer, if it is not the peer we are reconnecting to the attempt is abandoned
+     **/
+    public synchronized void onConnectionRequested(Peer peer) {
+        connectionStarts.put(peer.getUniqueName(), SystemClock.uptimeMillis());
+        if (peer.getUniqueName().equals(abandonedPeer)) {
+            // now the user wants it
+            abandonedPeer = null;
+        }
+        droppedPeers.remove(peer.getUniqueName());
+        if (target != null && !peer.getUniqueName().equals(target.getUniqueName())) {
+            abandon();
+        }
+    }
+
+    /**
+     * Whether the last connection with peer is being closed because it completed after the reconnection was abandoned,
+     * in this case the gui must ignore its onConnectionSuccess (the THREAD_MAIN callbacks receive it after this class)
+     **/
+    public synchronized boolean isDropped(Peer peer) {
+        return droppedPeers.contains(peer.getUniqueName());
+    }
+
+    /**
+     * Whether the reconnection to a recent peer has been attempted in this launch
+     **/
+    public synchronized boolean isAttempted() {
+        return attempted;
+    }
+
+    public RecentPeers getRecentPeers() {
+        return recentPeers;
+    }
+}
@@ -0,0 +1,408 @@
+/*
+ * Copyright 2016 Luca Martino.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copyFile of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bluetooth.communicatorexample.communication;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.Nullable;
+
+import com.bluetooth.communicator.BluetoothCommunicator;
+import com.bluetooth.communicator.Message;
+import com.bluetooth.communicator.Peer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Gives the broadcast messages per-peer increasing sequence numbers, so that the messages lost or replayed while a
+ * connection is restored (STRATEGY_P2P_WITH_RECONNECTION) can be detected and recovered.
+ * Each message is wrapped in a HEADER data message together with its sequence number and the cumulative ack of the
+ * messages received from that peer; the receiver discards the duplicates with a sliding window of the last WINDOW sequence numbers.
+ * When the connection is resumed the outbound queue of the peer stays paused until the peer answers to our RESUME with its ack,
+ * then only the messages sent but not acknowledged are retransmitted, before the ones queued during the interruption.
+ * Sequencing is used only with the peers that have announced it (with a HELLO message at connection), the unwrapped messages
+ * are passed to the MessageRouter, so they reach the handlers of their headers
+ **/
+public class SequencedDelivery {
+    public static final String HEADER = "q";
+    public static final int WINDOW = 64;
+    private static final int MAX_UNACKED = 256;
+    private static final int ACK_EVERY = 16;
+    private static final long RESUME_TIMEOUT = 3000;
+    private static final byte TYPE_DATA = 0;
+    private static final byte TYPE_ACK = 1;
+    private static final byte TYPE_RESUME = 2;
+    private static final byte TYPE_HELLO = 3;
+    private static final byte FLAG_DATA = 1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private final Context context;
+    private final Transport transport;
+    private final BroadcastDispatcher dispatcher;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final HashMap<String, PeerState> states = new HashMap<>();
+    private final MessageRouter router;
+    // stats
+    private long duplicates = 0;
+    private long lost = 0;
+    private long retransmitted = 0;
+
+    public SequencedDelivery(Context context, Transport transport, BroadcastDispatcher dispatcher, MessageRouter router) {
+        this.context = context;
+        this.transport = transport;
+        this.dispatcher = dispatcher;
+        this.router = router;
+        router.register(HEADER, new MessageRouter.MessageHandler() {
+            @Override
+            public void onMessage(Message data, boolean isData) {
+                if (isData && data.getSender() != null) {
+                    onSequencedMessage(data.getSender(), ByteBuffer.wrap(data.getData()));
+                }
+            }
+        }, MessageRouter.THREAD_MAIN);
+        transport.addCallback(new BluetoothCommunicator.Callback() {
+            @Override
+            public void onConnectionSuccess(Peer peer, int source) {
+                super.onConnectionSuccess(peer, source);
+                // new connection, our sequence numbers start again from 1
+                synchronized (SequencedDelivery.this) {
+                    getState(peer).resetSendWindow();
+                }
+                SequencedDelivery.this.dispatcher.sendData(new Message(SequencedDelivery.this.context, HEADER, new byte[]{TYPE_HELLO}, peer));
+            }
+
+            @Override
+            public void onConnectionLost(Peer peer) {
+                super.onConnectionLost(peer);
+                synchronized (SequencedDelivery.this) {
+                    PeerState state = states.get(peer.getUniqueName());
+                    if (state != null) {
+                        // a new interruption, the RESUME of the peer for the previous one no longer counts
+                        state.peerResumed = false;
+                    }
+                }
+            }
+
+            @Override
+            public void onConnectionResumed(Peer peer) {
+                super.onConnectionResumed(peer);
+                startResume(peer);
+            }
+
+            @Override
+            public void onDisconnected(Peer peer, int peersLeft) {
+                super.onDisconnected(peer, peersLeft);
+                synchronized (SequencedDelivery.this) {
+                    PeerState state = states.remove(peer.getUniqueName());
+                    if (state != null) {
+                        state.cancelResume();
+                    }
+                }
+            }
+        });
+    }
+
+    public synchronized boolean isSupportedBy(Peer peer) {
+        PeerState state = states.get(peer.getUniqueName());
+        return state != null && state.supported;
+    }
+
+    /**
+     * Wraps the message for its receiver assigning it the next sequence number, the returned message must be sent as data.
+     * The message is kept until the receiver acknowledges it
+     **/
+    synchronized Message wrap(Message message, boolean isData) {
+        PeerState state = getState(message.getReceiver());
+        byte[] header = message.getHeader().getBytes(UTF_8);
+        byte[] payload = isData ? message.getData() : message.getText().getBytes(UTF_8);
+        int sequence = state.nextSequence++;
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 4 + 4 + 1 + 1 + header.length + payload.length);
+        buffer.put(TYPE_DATA);
+        buffer.putInt(sequence);
+        buffer.putInt(state.contiguous);
+        buffer.put(isData ? FLAG_DATA : 0);
+        buffer.put((byte) header.length);
+        buffer.put(header);
+        buffer.put(payload);
+        state.receivedSinceAck = 0;
+        Message wrapped = new Message(context, HEADER, buffer.array(), message.getReceiver());
+        state.unacked.add(new Outgoing(sequence, wrapped));
+        if (state.unacked.size() > MAX_UNACKED) {
+            // too old to be retransmitted, if it is lost the receiver will count it as lost
+            state.unacked.poll();
+        }
+        return wrapped;
+    }
+
+    /**
+     * Called by the BroadcastDispatcher after a HEADER message has been passed to the BluetoothCommunicator,
+     * only the messages already sent are retransmitted at resume (the queued ones will be sent anyway)
+     **/
+    synchronized void onSent(Message message) {
+        byte[] data = message.getData();
+        if (data.length >= 5 && data[0] == TYPE_DATA && message.getReceiver() != null) {
+            PeerState state = states.get(message.getReceiver().getUniqueName());
+            if (state != null) {
+                state.highestSent = Math.max(state.highestSent, ByteBuffer.wrap(data, 1, 4).getInt());
+            }
+        }
+    }
+
+    private void startResume(final Peer peer) {
+        int ack;
+        synchronized (this) {
+            PeerState state = states.get(peer.getUniqueName());
+            if (state == null || !state.supported) {
+                return;
+            }
+            // the timeout of a previous resume must not complete this one
+            state.cancelResume();
+            if (state.peerResumed) {
+                // the RESUME of the peer has arrived before this callback and our queue has already been resumed,
+                // so we only send our ack to the peer, without waiting (and retransmitting everything at the timeout)
+                state.peerResumed = false;
+            } else {
+                state.resumePending = true;
+                state.resumeTimeout = new Runnable() {
+                    @Override
+                    public void run() {
+                        // if the peer has not answered we retransmit all the messages not acknowledged
+                        completeResume(peer, 0, true);
+                    }
+                };
+                mainHandler.postDelayed(state.resumeTimeout, RESUME_TIMEOUT);
+            }
+            ack = state.contiguous;
+        }
+        // the RESUME bypasses our queue, which is paused until the answer of the peer
+        transport.sendData(new Message(context, HEADER, ByteBuffer.allocate(5).put(TYPE_RESUME).putInt(ack).array(), peer));
+    }
+
+    /**
+     * Retransmits the messages sent after ack and not acknowledged, in front of the queue of the peer, and resumes the queue
+     **/
+    private void completeResume(Peer peer, int ack, boolean timeout) {
+        ArrayList<Message> retransmissions = new ArrayList<>();
+        synchronized (this) {
+            PeerState state = states.get(peer.getUniqueName());
+            if (state == null || (timeout && !state.resumePending)) {
+                return;
+            }
+            if (!timeout && !state.resumePending) {
+                // the RESUME of the peer arrived before our onConnectionResumed, startResume must not wait for it again
+                state.peerResumed = true;
+            }
+            state.cancelResume();
+            acknowledge(state, ack);
+            for (Outgoing outgoing : state.unacked) {
+                if (outgoing.sequence <= state.highestSent) {
+                    retransmissions.add(outgoing.message);
+                }
+            }
+            retransmitted += retransmissions.size();
+        }
+        dispatcher.resume(peer, retransmissions);
+    }
+
+    private void onSequencedMessage(Peer sender, ByteBuffer buffer) {
+        byte type = buffer.get();
+        switch (type) {
+            case TYPE_HELLO:
+                synchronized (this) {
+                    // the peer has started a new session, its sequence numbers start again from 1
+                    PeerState state = getState(sender);
+                    state.supported = true;
+                    state.resetReceiveWindow();
+                }
+                break;
+            case TYPE_ACK:
+                synchronized (this) {
+                    acknowledge(getState(sender), buffer.getInt());
+                }
+                break;
+            case TYPE_RESUME:
+                completeResume(sender, buffer.getInt(), false);
+                break;
+            case TYPE_DATA:
+                onDataMessage(sender, buffer);
+                break;
+        }
+    }
+
+    private void onDataMessage(Peer sender, ByteBuffer buffer) {
+        int sequence = buffer.getInt();
+        int ack = buffer.getInt();
+        boolean sendAck = false;
+        int contiguous;
+        synchronized (this) {
+            PeerState state = getState(sender);
+            acknowledge(state, ack);
+            if (!state.accept(sequence)) {
+                duplicates++;
+                return;
+            }
+            contiguous = state.contiguous;
+            state.receivedSinceAck++;
+            if (state.receivedSinceAck >= ACK_EVERY) {
+                state.receivedSinceAck = 0;
+                sendAck = true;
+            }
+        }
+        if (sendAck) {
+            dispatcher.sendData(new Message(context, HEADER, ByteBuffer.allocate(5).put(TYPE_ACK).putInt(contiguous).array(), sender));
+        }
+
+        boolean isData = (buffer.get() & FLAG_DATA) != 0;
+        byte[] header = new byte[buffer.get()];
+        buffer.get(header);
+        byte[] payload = new byte[buffer.remaining()];
+        buffer.get(payload);
+        Message message;
+        if (isData) {
+            message = new Message(context, new String(header, UTF_8), payload, null);
+        } else {
+            message = new Message(context, new String(header, UTF_8), new String(payload, UTF_8), null);
+        }
+        message.setSender(sender);
+        router.dispatch(message, isData);
+    }
+
+    // must be called holding the lock
+    private void acknowledge(PeerState state, int ack) {
+        Iterator<Outgoing> iterator = state.unacked.iterator();
+        while (iterator.hasNext() && iterator.next().sequence <= ack) {
+            iterator.remove();
+        }
+    }
+
+    // must be called holding the lock
+    private PeerState getState(Peer peer) {
+        PeerState state = states.get(peer.getUniqueName());
+        if (state == null) {
+            state = new PeerState();
+            states.put(peer.getUniqueName(), state);
+        }
+        return state;
+    }
+
+    /**
+     * Number of received messages discarded because already received
+     **/
+    public synchronized long getDuplicatesCount() {
+        return duplicates;
+    }
+
+    /**
+     * Number of sequence numbers never received, detected when they leave the window of the receiver
+     **/
+    public synchronized long getLostCount() {
+        return lost;
+    }
+
+    public synchronized long getRetransmittedCount() {
+        return retransmitted;
+    }
+
+    private static class Outgoing {
+        private final int sequence;
+        private final Message message;
+
+        private Outgoing(int sequence, Message message) {
+            this.sequence = sequence;
+            this.message = message;
+        }
+    }
+
+    private class PeerState {
+        private boolean supported = false;
+        private boolean resumePending = false;
+        // set when the RESUME of the peer has been handled before our own onConnectionResumed
+        private boolean peerResumed = false;
+        // posted while resumePending, null otherwise
+        @Nullable
+        private Runnable resumeTimeout;
+        // sending side
+        private int nextSequence = 1;
+        private int highestSent = 0;
+        private final ArrayDeque<Outgoing> unacked = new ArrayDeque<>();
+        // receiving side: bit i of window is set if highest - i has been received,
+        // all the sequence numbers up to contiguous are received (or lost)
+        private int highest = 0;
+        private long window = 0;
+        private int contiguous = 0;
+        private int receivedSinceAck = 0;
+
+        private void resetSendWindow() {
+            nextSequence = 1;
+            highestSent = 0;
+            unacked.clear();
+            peerResumed = false;
+            cancelResume();
+        }
+
+        private void cancelResume() {
+            resumePending = false;
+            if (resumeTimeout != null) {
+                mainHandler.removeCallbacks(resumeTimeout);
+                resumeTimeout = null;
+            }
+        }
+
+        private void resetReceiveWindow() {
+            highest = 0;
+            window = 0;
+            contiguous = 0;
+            receivedSinceAck = 0;
+        }
+
+        /**
+         * Marks sequence as received, returns false if it was already received (or is too old to know it)
+         **/
+        private boolean accept(int sequence) {
+            if (sequence <= 0) {
+                return false;
+            }
+            if (sequence > highest) {
+                int shift = sequence - highest;
+                // the sequence numbers that leave the window without having been received are lost
+                for (int offset = Math.max(0, WINDOW - shift); offset < WINDOW; offset++) {
+                    if (highest - offset > contiguous && (window & (1L << offset)) == 0) {
+                        lost++;
+                    }
+                }
+                if (shift > WINDOW) {
+                    lost += shift - WINDOW;
+                }
+                window = shift >= WINDOW ? 0 : window << shift;
+                highest = sequence;
+                contiguous = Math.max(contiguous, highest - WINDOW);
+            } else if (highest - sequence >= WINDOW || (window & (1L << (highest - sequence))) != 0) {
+                return false;
+            }
+            window |= 1L << (highest - sequence);
+            while (contiguous < highest && (window & (1L << (highest - contiguous - 1))) != 0) {
+                contiguous++;
+            }
+            return true;
+        }
+    }
+}
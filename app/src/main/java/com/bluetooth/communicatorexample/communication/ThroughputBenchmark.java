@@ -0,0 +1,446 @@
+/*
+ * Copyright 2016 Luca Martino.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copyFile of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bluetooth.communicatorexample.communication;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.bluetooth.communicator.BluetoothCommunicator;
+import com.bluetooth.communicator.Message;
+import com.bluetooth.communicator.Peer;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Measures the throughput and the latency of the link with a connected peer, sending count messages of size bytes with at most
+ * concurrency messages waiting for an answer:
+ * - in MODE_FLOOD the peer answers each message with a small ack, so the data goes in one direction only
+ * - in MODE_PING_PONG the peer sends back the whole message
+ * The latency of each message is the time from its sending to its answer. The messages are sent in the bulk lane of the
+ * dispatcher and the answers in the control lane, the peer answers as long as the app is running, whatever the screen shown.
+ * The concurrency is limited to the capacity of a lane, and the messages deferred by the flow control of the dispatcher
+ * are sent again after FlowListener.onDrained, so no message is dropped by the dispatcher.
+ * Each message contains [byte type][int run id][int sequence][long send time] followed by padding up to size.
+ * All the methods must be called on the main thread
+ **/
+public class ThroughputBenchmark {
+    public static final String HEADER = "b";
+    public static final int MODE_FLOOD = 0;
+    public static final int MODE_PING_PONG = 1;
+    public static final int MIN_MESSAGE_SIZE = 1 + 4 + 4 + 8;
+    public static final int MAX_MESSAGE_SIZE = 64 * 1024;
+    private static final byte TYPE_DATA = 0;
+    private static final byte TYPE_ACK = 1;
+    private static final byte TYPE_PING = 2;
+    private static final byte TYPE_PONG = 3;
+    // the run fails if no answer arrives for this time
+    private static final long ANSWER_TIMEOUT = 10000;
+    private static final long PROGRESS_INTERVAL = 200;
+    private static final String TAG = "ThroughputBenchmark";
+    private final Context context;
+    private final BroadcastDispatcher dispatcher;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ArrayList<Result> results = new ArrayList<>();
+    private int lastRunId = 0;
+    @Nullable
+    private Run run;
+    @Nullable
+    private Listener listener;
+    // reason of the failure of the last run, null if it has completed
+    @Nullable
+    private String lastFailure;
+    private final Runnable timeout = new Runnable() {
+        @Override
+        public void run() {
+            fail("no answer from the peer for " + (ANSWER_TIMEOUT / 1000) + " seconds");
+        }
+    };
+
+    public ThroughputBenchmark(Context context, Transport transport, BroadcastDispatcher dispatcher, MessageRouter router) {
+        this.context = context;
+        this.dispatcher = dispatcher;
+        router.register(HEADER, new MessageRouter.MessageHandler() {
+            @Override
+            public void onMessage(Message data, boolean isData) {
+                if (isData && data.getSender() != null && data.getData().length >= MIN_MESSAGE_SIZE) {
+                    onBenchmarkMessage(data.getSender(), data.getData());
+                }
+            }
+        }, MessageRouter.THREAD_MAIN);
+        dispatcher.addFlowListener(new BroadcastDispatcher.FlowListener() {
+            @Override
+            public void onDrained(Peer peer) {
+                Run run = ThroughputBenchmark.this.run;
+                if (run != null && run.deferred && run.peer.equals(peer)) {
+                    run.deferred = false;
+                    fill(run);
+                }
+            }
+        });
+        transport.addCallback(new BluetoothCommunicator.Callback() {
+            @Override
+            public void onDisconnected(Peer peer, int peersLeft) {
+                super.onDisconnected(peer, peersLeft);
+                if (run != null && run.peer.equals(peer)) {
+                    fail("peer disconnected");
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts a run with peer, returns false if another run is in progress. The progress and the result are notified to listener
+     * (which can be replaced with setListener while the run goes on).
+     * messageSize is limited to [MIN_MESSAGE_SIZE, MAX_MESSAGE_SIZE] and concurrency to the queue capacity of the dispatcher
+     **/
+    public boolean start(Peer peer, int mode, int messageSize, int count, int concurrency, Listener listener) {
+        if (run != null) {
+            return false;
+        }
+        messageSize = Math.min(Math.max(messageSize, MIN_MESSAGE_SIZE), MAX_MESSAGE_SIZE);
+        concurrency = Math.min(Math.max(concurrency, 1), dispatcher.getQueueCapacity());
+        Run run = new Run(++lastRunId, peer, mode, messageSize, Math.max(count, 1), concurrency);
+        this.run = run;
+        this.listener = listener;
+        lastFailure = null;
+        run.startTime = System.nanoTime();
+        mainHandler.postDelayed(timeout, ANSWER_TIMEOUT);
+        fill(run);
+        return true;
+    }
+
+    public void cancel() {
+        if (run != null) {
+            fail("cancelled");
+        }
+    }
+
+    public boolean isRunning() {
+        return run != null;
+    }
+
+    /**
+     * Replaces the listener of the current and of the next runs, null stops the notifications without stopping the run
+     * (for example while the gui is not visible, it can read the state with the getters when it comes back)
+     **/
+    public void setListener(@Nullable Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Number of answers received in the current run, 0 if no run is in progress
+     **/
+    public int getAnsweredCount() {
+        return run != null ? run.answered : 0;
+    }
+
+    /**
+     * Number of messages of the current run, 0 if no run is in progress
+     **/
+    public int getCount() {
+        return run != null ? run.count : 0;
+    }
+
+    /**
+     * Returns the reason of the failure of the last run, or null if it has completed (or is still in progress)
+     **/
+    @Nullable
+    public String getLastFailure() {
+        return lastFailure;
+    }
+
+    /**
+     * Sends messages until concurrency of them are waiting for an answer, or until the dispatcher defers one
+     **/
+    private void fill(Run run) {
+        while (!run.deferred && run.sent < run.count && run.sent - run.answered < run.concurrency) {
+            ByteBuffer buffer = ByteBuffer.allocate(run.messageSize);
+            buffer.put(run.mode == MODE_FLOOD ? TYPE_DATA : TYPE_PING);
+            buffer.putInt(run.id);
+            buffer.putInt(run.sent);
+            buffer.putLong(System.nanoTime());
+            switch (dispatcher.offerData(new Message(context, HEADER, buffer.array(), run.peer), BroadcastDispatcher.LANE_BULK)) {
+                case BroadcastDispatcher.ACCEPTED:
+                    run.sent++;
+                    break;
+                case BroadcastDispatcher.DEFERRED:
+                    // the same sequence is sent again after onDrained
+                    run.deferred = true;
+                    break;
+                default:
+                    fail("message rejected by the dispatcher");
+                    return;
+            }
+        }
+    }
+
+    private void onBenchmarkMessage(Peer sender, byte[] data) {
+        switch (data[0]) {
+            case TYPE_DATA: {
+                // the ack contains only the header of the message
+                byte[] ack = new byte[MIN_MESSAGE_SIZE];
+                System.arraycopy(data, 0, ack, 0, MIN_MESSAGE_SIZE);
+                ack[0] = TYPE_ACK;
+                dispatcher.sendData(new Message(context, HEADER, ack, sender), BroadcastDispatcher.LANE_CONTROL);
+                break;
+            }
+            case TYPE_PING: {
+                byte[] pong = data.clone();
+                pong[0] = TYPE_PONG;
+                dispatcher.sendData(new Message(context, HEADER, pong, sender), BroadcastDispatcher.LANE_CONTROL);
+                break;
+            }
+            case TYPE_ACK:
+            case TYPE_PONG: {
+                ByteBuffer buffer = ByteBuffer.wrap(data, 1, MIN_MESSAGE_SIZE - 1);
+                int runId = buffer.getInt();
+                buffer.getInt();  // sequence
+                long sendTime = buffer.getLong();
+                Run run = this.run;
+                if (run != null && run.id == runId && run.peer.equals(sender)) {
+                    onAnswer(run, System.nanoTime() - sendTime);
+                }
+                break;
+            }
+        }
+    }
+
+    private void onAnswer(Run run, long latency) {
+        run.answered++;
+        run.latencies.record(latency);
+        mainHandler.removeCallbacks(timeout);
+        if (run.answered == run.count) {
+            finish(run);
+            return;
+        }
+        mainHandler.postDelayed(timeout, ANSWER_TIMEOUT);
+        fill(run);
+        if (this.run != run) {
+            // failed
+            return;
+        }
+        long now = System.nanoTime();
+        if (now - run.lastProgressTime > PROGRESS_INTERVAL * 1000000) {
+            run.lastProgressTime = now;
+            if (listener != null) {
+                listener.onProgress(run.answered, run.count);
+            }
+        }
+    }
+
+    private void finish(Run run) {
+        this.run = null;
+        Result result = new Result(run, System.nanoTime() - run.startTime);
+        results.add(result);
+        if (listener != null) {
+            listener.onFinished(result);
+        }
+    }
+
+    private void fail(String reason) {
+        Run run = this.run;
+        this.run = null;
+        mainHandler.removeCallbacks(timeout);
+        if (run != null) {
+            lastFailure = reason;
+            if (listener != null) {
+                listener.onFailed(reason);
+            }
+        }
+    }
+
+    /**
+     * Results of the completed runs since the start of the app, oldest first
+     **/
+    public ArrayList<Result> getResults() {
+        return new ArrayList<>(results);
+    }
+
+    /**
+     * Returns the results of all the completed runs as a JSON array
+     **/
+    public String exportResults() {
+        JSONArray array = new JSONArray();
+        for (int i = 0; i < results.size(); i++) {
+            array.put(results.get(i).toJson());
+        }
+        try {
+            return array.toString(2);
+        } catch (JSONException e) {
+            return array.toString();
+        }
+    }
+
+    private static class Run {
+        private final int id;
+        private final Peer peer;
+        private final int mode;
+        private final int messageSize;
+        private final int count;
+        private final int concurrency;
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        private int sent = 0;
+        private int answered = 0;
+        // whether the dispatcher has deferred a message and onDrained is awaited
+        private boolean deferred = false;
+        private long startTime;
+        private long lastProgressTime = 0;
+
+        private Run(int id, Peer peer, int mode, int messageSize, int count, int concurrency) {
+            this.id = id;
+            this.peer = peer;
+            this.mode = mode;
+            this.messageSize = messageSize;
+            this.count = count;
+            this.concurrency = concurrency;
+        }
+    }
+
+    public static class Result {
+        private final String peerName;
+        private final int mode;
+        private final int messageSize;
+        private final int count;
+        private final int concurrency;
+        private final long durationNanos;
+        private final long timestamp;
+        private final long p50Micros;
+        private final long p90Micros;
+        private final long p99Micros;
+        private final long maxMicros;
+        private final long averageMicros;
+
+        private Result(Run run, long durationNanos) {
+            this.peerName = run.peer.getName();
+            this.mode = run.mode;
+            this.messageSize = run.messageSize;
+            this.count = run.count;
+            this.concurrency = run.concurrency;
+            this.durationNanos = durationNanos;
+            this.timestamp = System.currentTimeMillis();
+            this.p50Micros = run.latencies.getPercentileMicros(50);
+            this.p90Micros = run.latencies.getPercentileMicros(90);
+            this.p99Micros = run.latencies.getPercentileMicros(99);
+            this.maxMicros = run.latencies.getMaxMicros();
+            this.averageMicros = run.latencies.getAverageMicros();
+        }
+
+        public int getMode() {
+            return mode;
+        }
+
+        public int getMessageSize() {
+            return messageSize;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public int getConcurrency() {
+            return concurrency;
+        }
+
+        public long getDurationMillis() {
+            return durationNanos / 1000000;
+        }
+
+        public double getMessagesPerSecond() {
+            return count * 1e9 / durationNanos;
+        }
+
+        /**
+         * Bytes of the messages sent per second (the answers are not counted)
+         **/
+        public double getBytesPerSecond() {
+            return (double) count * messageSize * 1e9 / durationNanos;
+        }
+
+        public long getPercentileMicros(int percentile) {
+            switch (percentile) {
+                case 50:
+                    return p50Micros;
+                case 90:
+                    return p90Micros;
+                case 99:
+                    return p99Micros;
+                default:
+                    throw new IllegalArgumentException("only 50, 90 and 99 are kept");
+            }
+        }
+
+        public long getMaxMicros() {
+            return maxMicros;
+        }
+
+        public long getAverageMicros() {
+            return averageMicros;
+        }
+
+        public JSONObject toJson() {
+            JSONObject json = new JSONObject();
+            try {
+                json.put("timestamp", timestamp);
+                json.put("device", Build.MANUFACTURER + " " + Build.MODEL);
+                json.put("sdk", Build.VERSION.SDK_INT);
+                json.put("peer", peerName);
+                json.put("mode", mode == MODE_FLOOD ? "flood" : "ping-pong");
+                json.put("messageSize", messageSize);
+                json.put("count", count);
+                json.put("concurrency", concurrency);
+                json.put("durationMillis", getDurationMillis());
+                json.put("messagesPerSecond", getMessagesPerSecond());
+                json.put("bytesPerSecond", getBytesPerSecond());
+                JSONObject latency = new JSONObject();
+                latency.put("averageMicros", averageMicros);
+                latency.put("p50Micros", p50Micros);
+                latency.put("p90Micros", p90Micros);
+                latency.put("p99Micros", p99Micros);
+                latency.put("maxMicros", maxMicros);
+                json.put("latency", latency);
+            } catch (JSONException e) {
+                // the keys are never null and the numbers are finite
+                Log.e(TAG, "cannot export the result", e);
+            }
+            return json;
+        }
+    }
+
+    public static abstract class Listener {
+        /**
+         * Called at most every PROGRESS_INTERVAL milliseconds
+         **/
+        public void onProgress(int answered, int count) {
+        }
+
+        public void onFinished(Result result) {
+        }
+
+        public void onFailed(String reason) {
+        }
+    }
+}
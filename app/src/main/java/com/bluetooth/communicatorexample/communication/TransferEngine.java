@@ -0,0 +1,629 @@
+/*
+ * Copyright 2016 Luca Martino.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copyFile of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bluetooth.communicatorexample.communication;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.bluetooth.communicator.BluetoothCommunicator;
+import com.bluetooth.communicator.Message;
+import com.bluetooth.communicator.Peer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams large payloads (logs, photos etc.) to a peer without loading them in memory: the stream is split in chunks,
+ * at most WINDOW_SIZE chunks are in flight at the same time and the receiver acknowledges them cumulatively,
+ * writing each chunk to disk as soon as it arrives.
+ * All the state of the transfers is confined to a single worker thread, the listeners are notified on the main thread
+ **/
+public class TransferEngine {
+    public static final String HEADER = "t";
+    public static final int CHUNK_SIZE = 8 * 1024;
+    public static final int WINDOW_SIZE = 8;
+    private static final int ACK_EVERY = WINDOW_SIZE / 2;
+    private static final long ACK_TIMEOUT = 10000;
+    private static final int MAX_RETRIES = 3;
+    private static final long PROGRESS_INTERVAL = 200;
+    private static final byte TYPE_OFFER = 0;
+    private static final byte TYPE_CHUNK = 1;
+    private static final byte TYPE_ACK = 2;
+    private static final byte TYPE_CANCEL = 3;
+    private static final byte FLAG_LAST = 1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private final Context context;
+    private final BroadcastDispatcher dispatcher;
+    private final File directory;
+    private final ScheduledExecutorService worker = Executors.newSingleThreadScheduledExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final HashMap<String, OutgoingTransfer> outgoingTransfers = new HashMap<>();
+    private final HashMap<String, IncomingTransfer> incomingTransfers = new HashMap<>();
+    private final ArrayList<Listener> listeners = new ArrayList<>();
+    private int nextId = new Random().nextInt();
+
+    public TransferEngine(Context context, Transport transport, BroadcastDispatcher dispatcher, MessageRouter router) {
+        this.context = context;
+        this.dispatcher = dispatcher;
+        this.directory = new File(context.getFilesDir(), "transfers");
+        router.register(HEADER, new MessageRouter.MessageHandler() {
+            @Override
+            public void onMessage(final Message data, boolean isData) {
+                if (isData) {
+                    // the messages are handled on the worker thread, which owns the state of the transfers
+                    worker.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            onTransferMessage(data.getSender(), ByteBuffer.wrap(data.getData()));
+                        }
+                    });
+                }
+            }
+        }, MessageRouter.THREAD_MAIN);
+        transport.addCallback(new BluetoothCommunicator.Callback() {
+
+            @Override
+            public void onDisconnected(final Peer peer, int peersLeft) {
+                super.onDisconnected(peer, peersLeft);
+                worker.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        failTransfersOf(peer);
+                    }
+                });
+            }
+        });
+        dispatcher.addFlowListener(new BroadcastDispatcher.FlowListener() {
+            @Override
+            public void onDrained(final Peer peer) {
+                worker.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        resumeTransfersOf(peer);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Starts streaming the content of input to peer, the stream is closed when the transfer ends.
+     * size can be -1 if unknown, in that case the progress will report only the bytes transferred.
+     * Returns the id of the transfer, used also in the notifications of the listeners
+     **/
+    public int send(final Peer peer, final InputStream input, final String name, final long size) {
+        final int id;
+        synchronized (this) {
+            id = nextId++;
+        }
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                OutgoingTransfer transfer = new OutgoingTransfer(id, peer, name, size, input);
+                outgoingTransfers.put(transfer.key, transfer);
+                byte[] nameBytes = name.getBytes(UTF_8);
+                ByteBuffer offer = ByteBuffer.allocate(1 + 4 + 8 + 2 + nameBytes.length);
+                offer.put(TYPE_OFFER).putInt(id).putLong(size).putShort((short) nameBytes.length).put(nameBytes);
+                send(peer, offer.array());
+                pump(transfer);
+                scheduleTimeoutCheck(transfer);
+            }
+        });
+        return id;
+    }
+
+    public void cancel(final Peer peer, final int id) {
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                OutgoingTransfer transfer = outgoingTransfers.get(key(peer, id));
+                if (transfer != null) {
+                    sendCancel(peer, id);
+                    fail(transfer);
+                }
+            }
+        });
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    private void onTransferMessage(Peer sender, ByteBuffer buffer) {
+        byte type = buffer.get();
+        int id = buffer.getInt();
+        String key = key(sender, id);
+        switch (type) {
+            case TYPE_OFFER: {
+                long size = buffer.getLong();
+                byte[] nameBytes = new byte[buffer.getShort()];
+                buffer.get(nameBytes);
+                startReceiving(sender, id, size, new String(nameBytes, UTF_8));
+                break;
+            }
+            case TYPE_CHUNK: {
+                IncomingTransfer transfer = incomingTransfers.get(key);
+                if (transfer != null) {
+                    int index = buffer.getInt();
+                    boolean last = (buffer.get() & FLAG_LAST) != 0;
+                    byte[] chunk = new byte[buffer.remaining()];
+                    buffer.get(chunk);
+                    onChunk(transfer, index, last, chunk);
+                }
+                break;
+            }
+            case TYPE_ACK: {
+                OutgoingTransfer transfer = outgoingTransfers.get(key);
+                if (transfer != null) {
+                    onAck(transfer, buffer.getInt());
+                }
+                break;
+            }
+            case TYPE_CANCEL: {
+                if (outgoingTransfers.containsKey(key)) {
+                    fail(outgoingTransfers.get(key));
+                }
+                if (incomingTransfers.containsKey(key)) {
+                    fail(incomingTransfers.get(key));
+                }
+                break;
+            }
+        }
+    }
+
+    // sender side
+
+    private void pump(OutgoingTransfer transfer) {
+        try {
+            while ((!transfer.endOfStream || transfer.deferredChunk != null) && transfer.nextIndex - transfer.ackedIndex < WINDOW_SIZE) {
+                byte[] chunk = transfer.deferredChunk;
+                transfer.deferredChunk = null;
+                if (chunk == null) {
+                    byte[] buffer = new byte[CHUNK_SIZE];
+                    int read = readFully(transfer.input, buffer);
+                    // a chunk shorter than CHUNK_SIZE (even empty) marks the end of the stream
+                    transfer.endOfStream = read < CHUNK_SIZE;
+                    chunk = read == CHUNK_SIZE ? buffer : copyOf(buffer, read);
+                }
+                transfer.inFlight.addLast(chunk);
+                if (!sendChunk(transfer, transfer.nextIndex, chunk)) {
+                    // backpressure, we stop reading until the queue of the peer drains
+                    transfer.inFlight.pollLast();
+                    transfer.deferredChunk = chunk;
+                    return;
+                }
+                transfer.nextIndex++;
+            }
+        } catch (IOException e) {
+            sendCancel(transfer.peer, transfer.id);
+            fail(transfer);
+        }
+    }
+
+    /**
+     * Returns false if the chunk has been deferred by the flow control of the dispatcher
+     **/
+    private boolean sendChunk(OutgoingTransfer transfer, int index, byte[] chunk) {
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 4 + 4 + 1 + chunk.length);
+        buffer.put(TYPE_CHUNK).putInt(transfer.id).putInt(index).put(isLastChunk(transfer, index) ? FLAG_LAST : 0).put(chunk);
+        // the chunks use the bulk lane, the other messages of the transfer are control messages
+        Message message = new Message(context, HEADER, buffer.array(), transfer.peer);
+        // if rejected (queue full) the chunk will be resent at the ack timeout
+        return dispatcher.offerData(message, BroadcastDispatcher.LANE_BULK) != BroadcastDispatcher.DEFERRED;
+    }
+
+    private boolean isLastChunk(OutgoingTransfer transfer, int index) {
+        // the last chunk is the last one read, which is always the tail of inFlight
+        return transfer.endOfStream && index == transfer.ackedIndex + transfer.inFlight.size() - 1;
+    }
+
+    private void onAck(OutgoingTransfer transfer, int ackIndex) {
+        if (ackIndex <= transfer.ackedIndex) {
+            return;
+        }
+        while (transfer.ackedIndex < ackIndex && !transfer.inFlight.isEmpty()) {
+            transfer.bytesTransferred += transfer.inFlight.pollFirst().length;
+            transfer.ackedIndex++;
+        }
+        transfer.lastAckTime = System.currentTimeMillis();
+        transfer.retries = 0;
+        if (transfer.endOfStream && transfer.inFlight.isEmpty()) {
+            complete(transfer, null);
+        } else {
+            notifyProgress(transfer, false);
+            pump(transfer);
+        }
+    }
+
+    private void scheduleTimeoutCheck(final OutgoingTransfer transfer) {
+        worker.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (outgoingTransfers.get(transfer.key) != transfer) {
+                    return;  // transfer ended
+                }
+                if (System.currentTimeMillis() - transfer.lastAckTime >= ACK_TIMEOUT) {
+                    if (transfer.retries >= MAX_RETRIES) {
+                        sendCancel(transfer.peer, transfer.id);
+                        fail(transfer);
+                        return;
+                    }
+                    // go-back-n: we resend all the chunks not yet acknowledged
+                    transfer.retries++;
+                    transfer.lastAckTime = System.currentTimeMillis();
+                    int index = transfer.ackedIndex;
+                    for (byte[] chunk : transfer.inFlight) {
+                        sendChunk(transfer, index, chunk);
+                        index++;
+                    }
+                }
+                scheduleTimeoutCheck(transfer);
+            }
+        }, ACK_TIMEOUT / 2, TimeUnit.MILLISECONDS);
+    }
+
+    // receiver side
+
+    private void startReceiving(Peer sender, int id, long size, String name) {
+        try {
+            if (!directory.exists() && !directory.mkdirs()) {
+                throw new IOException("cannot create " + directory);
+            }
+            File file = uniqueFile(name);
+            IncomingTransfer transfer = new IncomingTransfer(id, sender, name, size, file);
+            incomingTransfers.put(transfer.key, transfer);
+            notifyProgress(transfer, true);
+        } catch (IOException e) {
+            sendCancel(sender, id);
+        }
+    }
+
+    private void onChunk(IncomingTransfer transfer, int index, boolean last, byte[] chunk) {
+        if (index < transfer.expectedIndex) {
+            // duplicate of a chunk already written (retransmission), we repeat the ack
+            sendAck(transfer);
+            return;
+        }
+        if (index >= transfer.expectedIndex + WINDOW_SIZE) {
+            return;
+        }
+        if (last) {
+            transfer.lastIndex = index;
+        }
+        transfer.pending.put(index, chunk);
+        try {
+            byte[] next;
+            while ((next = transfer.pending.remove(transfer.expectedIndex)) != null) {
+                transfer.output.write(next);
+                transfer.bytesTransferred += next.length;
+                transfer.expectedIndex++;
+            }
+        } catch (IOException e) {
+            sendCancel(transfer.peer, transfer.id);
+            fail(transfer);
+            return;
+        }
+        boolean finished = transfer.lastIndex != -1 && transfer.expectedIndex > transfer.lastIndex;
+        if (finished || transfer.expectedIndex - transfer.lastAckedIndex >= ACK_EVERY) {
+            sendAck(transfer);
+        }
+        if (finished) {
+            complete(transfer, transfer.file);
+        } else {
+            notifyProgress(transfer, false);
+        }
+    }
+
+    private void sendAck(IncomingTransfer transfer) {
+        transfer.lastAckedIndex = transfer.expectedIndex;
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 4 + 4);
+        buffer.put(TYPE_ACK).putInt(transfer.id).putInt(transfer.expectedIndex);
+        send(transfer.peer, buffer.array());
+    }
+
+    private File uniqueFile(String name) {
+        String safeName = name.replaceAll("[^\\w.\\-]", "_");
+        File file = new File(directory, safeName);
+        for (int i = 1; file.exists(); i++) {
+            file = new File(directory, i + "_" + safeName);
+        }
+        return file;
+    }
+
+    // common
+
+    private void send(Peer peer, byte[] payload) {
+        dispatcher.sendData(new Message(context, HEADER, payload, peer));
+    }
+
+    private void sendCancel(Peer peer, int id) {
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 4);
+        buffer.put(TYPE_CANCEL).putInt(id);
+        send(peer, buffer.array());
+    }
+
+    private void resumeTransfersOf(Peer peer) {
+        for (OutgoingTransfer transfer : new ArrayList<>(outgoingTransfers.values())) {
+            if (transfer.deferredChunk != null && transfer.peer.getUniqueName().equals(peer.getUniqueName())) {
+                pump(transfer);
+            }
+        }
+    }
+
+    private void failTransfersOf(Peer peer) {
+        for (Transfer transfer : new ArrayList<Transfer>(outgoingTransfers.values())) {
+            if (transfer.peer.getUniqueName().equals(peer.getUniqueName())) {
+                fail(transfer);
+            }
+        }
+        for (Transfer transfer : new ArrayList<Transfer>(incomingTransfers.values())) {
+            if (transfer.peer.getUniqueName().equals(peer.getUniqueName())) {
+                fail(transfer);
+            }
+        }
+    }
+
+    private void complete(Transfer transfer, final File file) {
+        end(transfer);
+        notifyProgress(transfer, true);
+        final Progress progress = transfer.getProgress();
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < listeners.size(); i++) {
+                    listeners.get(i).onTransferCompleted(progress, file);
+                }
+            }
+        });
+    }
+
+    private void fail(Transfer transfer) {
+        end(transfer);
+        if (transfer instanceof IncomingTransfer) {
+            // we don't leave partial files on disk
+            ((IncomingTransfer) transfer).file.delete();
+        }
+        final Progress progress = transfer.getProgress();
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < listeners.size(); i++) {
+                    listeners.get(i).onTransferFailed(progress);
+                }
+            }
+        });
+    }
+
+    private void end(Transfer transfer) {
+        if (transfer instanceof OutgoingTransfer) {
+            outgoingTransfers.remove(transfer.key);
+        } else {
+            incomingTransfers.remove(transfer.key);
+        }
+        transfer.close();
+    }
+
+    private void notifyProgress(Transfer transfer, boolean force) {
+        long now = System.currentTimeMillis();
+        if (!force && now - transfer.lastProgressTime < PROGRESS_INTERVAL) {
+            return;
+        }
+        transfer.lastProgressTime = now;
+        final Progress progress = transfer.getProgress();
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < listeners.size(); i++) {
+                    listeners.get(i).onTransferProgress(progress);
+                }
+            }
+        });
+    }
+
+    private static String key(Peer peer, int id) {
+        return peer.getUniqueName() + "/" + id;
+    }
+
+    private static int readFully(InputStream input, byte[] buffer) throws IOException {
+        int total = 0;
+        while (total < buffer.length) {
+            int read = input.read(buffer, total, buffer.length - total);
+            if (read == -1) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    private static byte[] copyOf(byte[] buffer, int length) {
+        byte[] copy = new byte[length];
+        System.arraycopy(buffer, 0, copy, 0, length);
+        return copy;
+    }
+
+    private abstract static class Transfer {
+        final int id;
+        final String key;
+        final Peer peer;
+        final String name;
+        final long size;
+        final long startTime = System.currentTimeMillis();
+        long bytesTransferred = 0;
+        long lastProgressTime = 0;
+
+        Transfer(int id, Peer peer, String name, long size) {
+            this.id = id;
+            this.key = key(peer, id);
+            this.peer = peer;
+            this.name = name;
+            this.size = size;
+        }
+
+        Progress getProgress() {
+            long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+            return new Progress(id, peer, name, this instanceof IncomingTransfer, bytesTransferred, size, bytesTransferred * 1000 / elapsed);
+        }
+
+        abstract void close();
+    }
+
+    private static class OutgoingTransfer extends Transfer {
+        final InputStream input;
+        final ArrayDeque<byte[]> inFlight = new ArrayDeque<>();
+        int nextIndex = 0;
+        int ackedIndex = 0;
+        int retries = 0;
+        boolean endOfStream = false;
+        // chunk read but deferred by the backpressure of the dispatcher
+        byte[] deferredChunk = null;
+        long lastAckTime = System.currentTimeMillis();
+
+        OutgoingTransfer(int id, Peer peer, String name, long size, InputStream input) {
+            super(id, peer, name, size);
+            this.input = input;
+        }
+
+        @Override
+        void close() {
+            inFlight.clear();
+            deferredChunk = null;
+            try {
+                input.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static class IncomingTransfer extends Transfer {
+        final File file;
+        final FileOutputStream output;
+        final HashMap<Integer, byte[]> pending = new HashMap<>();
+        int expectedIndex = 0;
+        int lastAckedIndex = 0;
+        int lastIndex = -1;
+
+        IncomingTransfer(int id, Peer peer, String name, long size, File file) throws IOException {
+            super(id, peer, name, size);
+            this.file = file;
+            this.output = new FileOutputStream(file);
+        }
+
+        @Override
+        void close() {
+            pending.clear();
+            try {
+                output.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Snapshot of the state of a transfer, passed to the listeners
+     **/
+    public static class Progress {
+        private final int id;
+        private final Peer peer;
+        private final String name;
+        private final boolean incoming;
+        private final long bytesTransferred;
+        private final long totalBytes;
+        private final long bytesPerSecond;
+
+        private Progress(int id, Peer peer, String name, boolean incoming, long bytesTransferred, long totalBytes, long bytesPerSecond) {
+            this.id = id;
+            this.peer = peer;
+            this.name = name;
+            this.incoming = incoming;
+            this.bytesTransferred = bytesTransferred;
+            this.totalBytes = totalBytes;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public Peer getPeer() {
+            return peer;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isIncoming() {
+            return incoming;
+        }
+
+        public long getBytesTransferred() {
+            return bytesTransferred;
+        }
+
+        /**
+         * Returns -1 if the size of the stream is unknown
+         **/
+        public long getTotalBytes() {
+            return totalBytes;
+        }
+
+        /**
+         * Returns the percentage of completion or -1 if the size of the stream is unknown
+         **/
+        public int getPercentage() {
+            if (totalBytes <= 0) {
+                return -1;
+            }
+            return (int) (bytesTransferred * 100 / totalBytes);
+        }
+
+        public long getBytesPerSecond() {
+            return bytesPerSecond;
+        }
+    }
+
+    public static abstract class Listener {
+        public void onTransferProgress(Progress progress) {
+        }
+
+        /**
+         * file is the received file for the incoming transfers and null for the outgoing ones
+         **/
+        public void onTransferCompleted(Progress progress, File file) {
+        }
+
+        public void onTransferFailed(Progress progress) {
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2016 Luca Martino.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copyFile of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bluetooth.communicatorexample.communication;
+
+import android.bluetooth.BluetoothAdapter;
+
+import androidx.annotation.Nullable;
+
+import com.bluetooth.communicator.BluetoothCommunicator;
+import com.bluetooth.communicator.Message;
+import com.bluetooth.communicator.Peer;
+
+import java.util.ArrayList;
+
+/**
+ * The operations of the BluetoothCommunicator used by the app, so that the app can run with the real Bluetooth
+ * (BluetoothTransport) or with simulated peers (LoopbackTransport). The callbacks and the return codes are the ones of the
+ * BluetoothCommunicator, and the callbacks are always called on the main thread
+ **/
+public interface Transport {
+    void addCallback(BluetoothCommunicator.Callback callback);
+
+    void removeCallback(BluetoothCommunicator.Callback callback);
+
+    String getName();
+
+    String getUniqueName();
+
+    ArrayList<Peer> getConnectedPeersList();
+
+    /**
+     * Can be called from any thread
+     **/
+    void sendMessage(Message message);
+
+    /**
+     * Can be called from any thread
+     **/
+    void sendData(Message data);
+
+    int isBluetoothLeSupported();
+
+    int startAdvertising();
+
+    int stopAdvertising(boolean tryRestoreBluetoothStatus);
+
+    int startDiscovery();
+
+    int stopDiscovery(boolean tryRestoreBluetoothStatus);
+
+    boolean isAdvertising();
+
+    boolean isDiscovering();
+
+    void connect(Peer peer);
+
+    void acceptConnection(Peer peer);
+
+    void rejectConnection(Peer peer);
+
+    int disconnect(Peer peer);
+
+    void disconnectFromAll();
+
+    /**
+     * Returns null if the transport does not use Bluetooth
+     **/
+    @Nullable
+    BluetoothAdapter getBluetoothAdapter();
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2016 Luca Martino.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copyFile of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bluetooth.communicatorexample.fragments;
+
+
+import android.animation.Animator;
+
+import android.content.Intent;
+import android.os.Bundle;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.WindowInsets;
+import android.widget.Button;
+import android.widget.CheckBox;
+import android.widget.CompoundButton;
+import android.widget.EditText;
+import android.widget.RadioGroup;
+import android.widget.TextView;
+import android.widget.Toast;
+import android.widget.Toolbar;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.constraintlayout.widget.ConstraintLayout;
+import androidx.fragment.app.Fragment;
+
+import com.bluetooth.communicator.BluetoothCommunicator;
+import com.bluetooth.communicator.Peer;
+import com.bluetooth.communicatorexample.Global;
+import com.bluetooth.communicatorexample.MainActivity;
+import com.bluetooth.communicatorexample.R;
+import com.bluetooth.communicatorexample.communication.CommunicatorEventBus;
+import com.bluetooth.communicatorexample.communication.ThroughputBenchmark;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+
+/**
+ * Screen that runs the ThroughputBenchmark with the first connected peer and shows the results of all the runs.
+ * It also enables or disables the reconnection at launch of the RecentPeerReconnector, to compare the times to the first connection
+ **/
+public class BenchmarkFragment extends Fragment {
+    private EditText messageSize;
+    private EditText messageCount;
+    private EditText concurrency;
+    private RadioGroup mode;
+    private CheckBox reconnect;
+    private Button startButton;
+    private Button exportButton;
+    private TextView status;
+    private TextView results;
+    private ConstraintLayout constraintLayout;
+    private BluetoothCommunicator.Callback communicatorCallback;
+    private ThroughputBenchmark.Listener benchmarkListener;
+    private Global global;
+    private MainActivity activity;
+
+    public BenchmarkFragment() {
+        //an empty constructor is always needed for fragments
+    }
+
+    @Override
+    public void onCreate(@Nullable Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        communicatorCallback = new BluetoothCommunicator.Callback() {
+            @Override
+            public void onDisconnected(Peer peer, int peersLeft) {
+                super.onDisconnected(peer, peersLeft);
+                if (peersLeft == 0) {
+                    activity.setFragment(MainActivity.DEFAULT_FRAGMENT);
+                }
+            }
+        };
+        benchmarkListener = new ThroughputBenchmark.Listener() {
+            @Override
+            public void onProgress(int answered, int count) {
+                super.onProgress(answered, count);
+                status.setText("Running: " + answered + "/" + count);
+            }
+
+            @Override
+            public void onFinished(ThroughputBenchmark.Result result) {
+                super.onFinished(result);
+                status.setText("Completed in " + result.getDurationMillis() + " ms");
+                setRunning(false);
+                showResults();
+            }
+
+            @Override
+            public void onFailed(String reason) {
+                super.onFailed(reason);
+                status.setText("Failed: " + reason);
+                setRunning(false);
+            }
+        };
+    }
+
+    @Override
+    public View onCreateView(@NonNull LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
+        // Inflate the layout for this fragment
+        return inflater.inflate(R.layout.fragment_benchmark, container, false);
+    }
+
+    @Override
+    public void onViewCreated(@NonNull View view, @Nullable Bundle savedInstanceState) {
+        super.onViewCreated(view, savedInstanceState);
+        messageSize = view.findViewById(R.id.editMessageSize);
+        messageCount = view.findViewById(R.id.editMessageCount);
+        concurrency = view.findViewById(R.id.editConcurrency);
+        mode = view.findViewById(R.id.radioGroupMode);
+        reconnect = view.findViewById(R.id.checkReconnect);
+        startButton = view.findViewById(R.id.buttonStartBenchmark);
+        exportButton = view.findViewById(R.id.buttonExportBenchmark);
+        status = view.findViewById(R.id.textBenchmarkStatus);
+        results = view.findViewById(R.id.textBenchmarkResults);
+        constraintLayout = view.findViewById(R.id.containerBenchmark);
+    }
+
+    @Override
+    public void onActivityCreated(@Nullable Bundle savedInstanceState) {
+        super.onActivityCreated(savedInstanceState);
+        activity = (MainActivity) requireActivity();
+        global = (Global) activity.getApplication();
+        // the callback receives the events while this fragment is resumed
+        global.getEventBus().addCallback(communicatorCallback, CommunicatorEventBus.THREAD_MAIN, this);
+        Toolbar toolbar = activity.findViewById(R.id.toolbarBenchmark);
+        activity.setActionBar(toolbar);
+        // same as in ConversationFragment, the insets are not passed to the layout if started with a Transaction
+        WindowInsets windowInsets = activity.getFragmentContainer().getRootWindowInsets();
+        if (windowInsets != null) {
+            constraintLayout.dispatchApplyWindowInsets(windowInsets.replaceSystemWindowInsets(windowInsets.getSystemWindowInsetLeft(), windowInsets.getSystemWindowInsetTop(), windowInsets.getSystemWindowInsetRight(), 0));
+        }
+
+        startButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                ThroughputBenchmark benchmark = global.getThroughputBenchmark();
+                if (benchmark.isRunning()) {
+                    benchmark.cancel();
+                    return;
+                }
+                ArrayList<Peer> connectedPeers = global.getTransport().getConnectedPeersList();
+                if (connectedPeers.isEmpty()) {
+                    Toast.makeText(activity, "No connected peers", Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                int selectedMode = mode.getCheckedRadioButtonId() == R.id.radioPingPong ? ThroughputBenchmark.MODE_PING_PONG : ThroughputBenchmark.MODE_FLOOD;
+                if (benchmark.start(connectedPeers.get(0), selectedMode, readNumber(messageSize, 512), readNumber(messageCount, 1000), readNumber(concurrency, 8), benchmarkListener)) {
+                    status.setText("Running with " + connectedPeers.get(0).getName());
+                    setRunning(true);
+                }
+            }
+        });
+        reconnect.setChecked(global.getReconnector().isEnabled());
+        reconnect.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                // applied from the next launch
+                global.getReconnector().setEnabled(isChecked);
+            }
+        });
+        exportButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                if (global.getThroughputBenchmark().getResults().isEmpty()) {
+                    Toast.makeText(activity, "No results to export", Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                Intent intent = new Intent(Intent.ACTION_SEND);
+                intent.setType("application/json");
+                intent.putExtra(Intent.EXTRA_TEXT, global.getThroughputBenchmark().exportResults());
+                startActivity(Intent.createChooser(intent, "Export benchmark results"));
+            }
+        });
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        // the run may have progressed or ended while this fragment was paused
+        ThroughputBenchmark benchmark = global.getThroughputBenchmark();
+        benchmark.setListener(benchmarkListener);
+        if (benchmark.isRunning()) {
+            status.setText("Running: " + benchmark.getAnsweredCount() + "/" + benchmark.getCount());
+        } else if (benchmark.getLastFailure() != null) {
+            status.setText("Failed: " + benchmark.getLastFailure());
+        } else if (!benchmark.getResults().isEmpty()) {
+            ArrayList<ThroughputBenchmark.Result> allResults = benchmark.getResults();
+            status.setText("Completed in " + allResults.get(allResults.size() - 1).getDurationMillis() + " ms");
+        }
+        setRunning(benchmark.isRunning());
+        showResults();
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        // the listener refers to the views of this fragment, the run goes on without it
+        global.getThroughputBenchmark().setListener(null);
+    }
+
+    private void setRunning(boolean running) {
+        startButton.setText(running ? "Cancel" : "Start");
+    }
+
+    private void showResults() {
+        ArrayList<ThroughputBenchmark.Result> allResults = global.getThroughputBenchmark().getResults();
+        StringBuilder builder = new StringBuilder();
+        // the newest first
+        for (int i = allResults.size() - 1; i >= 0; i--) {
+            ThroughputBenchmark.Result result = allResults.get(i);
+            builder.append(result.getMode() == ThroughputBenchmark.MODE_FLOOD ? "Flood" : "Ping-pong")
+                    .append(", ").append(result.getCount()).append(" x ").append(result.getMessageSize()).append(" bytes")
+                    .append(", concurrency ").append(result.getConcurrency()).append("\n")
+                    .append(String.format(Locale.US, "%.1f messages/s, %.1f KB/s", result.getMessagesPerSecond(), result.getBytesPerSecond() / 1024)).append("\n")
+                    .append(String.format(Locale.US, "latency p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms",
+                            result.getPercentileMicros(50) / 1000.0, result.getPercentileMicros(90) / 1000.0,
+                            result.getPercentileMicros(99) / 1000.0, result.getMaxMicros() / 1000.0)).append("\n\n");
+        }
+        results.setText(builder.toString());
+    }
+
+    private static int readNumber(EditText editText, int defaultValue) {
+        try {
+            return Integer.parseInt(editText.getText().toString().trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
@@ -18,7 +18,13 @@ package com.bluetooth.communicatorexample.fragments;
 
 
 import android.animation.Animator;
+import android.app.Activity;
+import android.content.DialogInterface;
+import android.content.Intent;
+import android.database.Cursor;
+import android.net.Uri;
 import android.os.Bundle;
+import android.provider.OpenableColumns;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -38,10 +44,21 @@ import com.bluetooth.communicator.Peer;
 import com.bluetooth.communicatorexample.Global;
 import com.bluetooth.communicatorexample.MainActivity;
 import com.bluetooth.communicatorexample.R;
+import com.bluetooth.communicatorexample.communication.CommunicatorEventBus;
+import com.bluetooth.communicatorexample.communication.Envelope;
+import com.bluetooth.communicatorexample.communication.EnvelopeCodec;
+import com.bluetooth.communicatorexample.communication.LatencyHistogram;
+import com.bluetooth.communicatorexample.communication.LatencyProbe;
+import com.bluetooth.communicatorexample.communication.MessageRouter;
+import com.bluetooth.communicatorexample.communication.TransferEngine;
 import com.bluetooth.communicatorexample.gui.CustomAnimator;
 import com.bluetooth.communicatorexample.gui.GuiTools;
+import com.bluetooth.communicatorexample.gui.MessageIngestBuffer;
 import com.bluetooth.communicatorexample.gui.MessagesAdapter;
+import com.bluetooth.communicatorexample.storage.RecentPeers;
+import com.bluetooth.communicatorexample.storage.SearchIndex;
 
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.widget.AppCompatImageButton;
 import androidx.constraintlayout.widget.ConstraintLayout;
 import androidx.fragment.app.Fragment;
@@ -49,20 +66,38 @@ import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.LinearSmoothScroller;
 import androidx.recyclerview.widget.RecyclerView;
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
 
 public class ConversationFragment extends Fragment {
     private ProgressBar loading;
     private static final float LOADING_SIZE_DP = 24;
+    private static final int REQUEST_CODE_PICK_FILE = 3;
+    public static final String CHAT_HEADER = "m";
     private EditText editText;
     private AppCompatImageButton sendButton;
     private RecyclerView mRecyclerView;
     protected TextView description;
     private ConstraintLayout constraintLayout;
+    private Toolbar toolbar;
     private BluetoothCommunicator.Callback communicatorCallback;
+    private TransferEngine.Listener transferListener;
+    private MessageRouter.MessageHandler chatHandler;
     private Global global;
     private MainActivity activity;
     private MessagesAdapter mAdapter;
+    // last searched text and position of the match shown, searching it again shows the previous match
+    @Nullable
+    private String lastQuery;
+    private int lastMatch = -1;
+    private MessageIngestBuffer ingestBuffer;
     private RecyclerView.SmoothScroller smoothScroller;
+    // used only on the main thread, reused for all the sent and received messages
+    private final EnvelopeCodec envelopeCodec = new EnvelopeCodec();
+    private final Envelope envelope = new Envelope();
 
     public ConversationFragment() {
         //an empty constructor is always needed for fragments
@@ -84,19 +119,6 @@ public class ConversationFragment extends Fragment {
                 Toast.makeText(activity,"Connection resumed",Toast.LENGTH_LONG).show();
             }
 
-            @Override
-            public void onMessageReceived(Message message, int source) {
-                super.onMessageReceived(message, source);
-                /* means that we have received a message containing TEXT, for know the sender we can call message.getSender() that return
-                the peer that have sent the message, we can ignore source, it indicate only if we have received the message
-                as clients or as servers
-                 */
-                mAdapter.addMessage(message);
-                //smooth scroll
-                smoothScroller.setTargetPosition(mAdapter.getItemCount() - 1);
-                mRecyclerView.getLayoutManager().startSmoothScroll(smoothScroller);
-            }
-
             @Override
             public void onDisconnected(Peer peer, int peersLeft) {
                 super.onDisconnected(peer, peersLeft);
@@ -107,6 +129,45 @@ public class ConversationFragment extends Fragment {
                 }
             }
         };
+        /* the router passes here the chat messages already decompressed and without duplicates, for know the sender we can
+        call message.getSender() that return the peer that have sent the message
+         */
+        chatHandler = new MessageRouter.MessageHandler() {
+            @Override
+            public void onMessage(Message message, boolean isData) {
+                if (isData) {
+                    onChatDataReceived(message);
+                } else {
+                    // sent as text by the older versions
+                    onChatMessageReceived(message);
+                }
+            }
+        };
+        transferListener = new TransferEngine.Listener() {
+            @Override
+            public void onTransferProgress(TransferEngine.Progress progress) {
+                super.onTransferProgress(progress);
+                toolbar.setSubtitle(formatProgress(progress));
+            }
+
+            @Override
+            public void onTransferCompleted(TransferEngine.Progress progress, File file) {
+                super.onTransferCompleted(progress, file);
+                toolbar.setSubtitle(null);
+                if (progress.isIncoming()) {
+                    Toast.makeText(activity, "Received " + file.getName() + " from " + progress.getPeer().getName(), Toast.LENGTH_LONG).show();
+                } else {
+                    Toast.makeText(activity, progress.getName() + " sent to " + progress.getPeer().getName(), Toast.LENGTH_SHORT).show();
+                }
+            }
+
+            @Override
+            public void onTransferFailed(TransferEngine.Progress progress) {
+                super.onTransferFailed(progress);
+                toolbar.setSubtitle(null);
+                Toast.makeText(activity, "Transfer of " + progress.getName() + " failed", Toast.LENGTH_SHORT).show();
+            }
+        };
     }
 
     @Override
@@ -131,8 +192,25 @@ public class ConversationFragment extends Fragment {
         super.onActivityCreated(savedInstanceState);
         activity = (MainActivity) requireActivity();
         global = (Global) activity.getApplication();
-        Toolbar toolbar = activity.findViewById(R.id.toolbarConversation);
+        // the callback receives the events while this fragment is resumed
+        global.getEventBus().addCallback(communicatorCallback, CommunicatorEventBus.THREAD_MAIN, this);
+        toolbar = activity.findViewById(R.id.toolbarConversation);
         activity.setActionBar(toolbar);
+        // a click on the toolbar shows the round trip times measured with each peer, and from there the benchmark screen
+        toolbar.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                showLinkStats();
+            }
+        });
+        // a long click searches the messages, and scrolls to the most recent one that matches
+        toolbar.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                showSearch();
+                return true;
+            }
+        });
         // we give the constraint layout the information on the system measures (status bar etc.), which has the fragmentContainer,
         // because they are not passed to it if started with a Transaction and therefore it overlaps the status bar because it fitsSystemWindows does not work
         WindowInsets windowInsets = activity.getFragmentContainer().getRootWindowInsets();
@@ -150,7 +228,8 @@ public class ConversationFragment extends Fragment {
             }
         };
 
-        mAdapter = new MessagesAdapter(global.getBluetoothCommunicator().getUniqueName(), new MessagesAdapter.Callback() {
+        // the messages are kept in the conversation log of Global, so they survive the replacement of this fragment
+        mAdapter = new MessagesAdapter(global.getConversationLog(), global.getSearchIndex(), global.getTextLayoutExecutor(), global.getTransport().getUniqueName(), new MessagesAdapter.Callback() {
             @Override
             public void onFirstItemAdded() {
                 description.setVisibility(View.GONE);
@@ -158,38 +237,234 @@ public class ConversationFragment extends Fragment {
             }
         });
         mRecyclerView.setAdapter(mAdapter);
+        // the messages are inserted in the list at most once per frame, with at most one scroll
+        ingestBuffer = new MessageIngestBuffer(mAdapter, mRecyclerView, smoothScroller);
 
         sendButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                if (global.getBluetoothCommunicator().getConnectedPeersList().size() > 0) {
+                if (global.getTransport().getConnectedPeersList().size() > 0) {
                     //sending message
                     if (editText.getText().length() > 0) {
                         //the sender will be inserted by the receiver device, so you don't need to enter it
-                        Message message = new Message(global, "m", editText.getText().toString(), global.getBluetoothCommunicator().getConnectedPeersList().get(0));
-                        global.getBluetoothCommunicator().sendMessage(message);
+                        Message message = new Message(global, CHAT_HEADER, editText.getText().toString(), global.getTransport().getConnectedPeersList().get(0));
+                        //the text is sent in a binary envelope, the dispatcher sends a copy of it to each connected peer
+                        envelope.reset();
+                        envelope.setType(Envelope.TYPE_TEXT);
+                        envelope.setSenderId(Envelope.senderIdOf(global.getTransport().getUniqueName()));
+                        envelope.setTimestamp(System.currentTimeMillis());
+                        envelope.setText(message.getText());
+                        global.getBroadcastDispatcher().broadcastData(CHAT_HEADER, envelopeCodec.encodeToByteArray(envelope));
                         editText.setText("");
                         //aggiunta del messaggio alla lista dei messaggi
-                        mAdapter.addMessage(message);
-                        //smooth scroll
-                        smoothScroller.setTargetPosition(mAdapter.getItemCount() - 1);
-                        mRecyclerView.getLayoutManager().startSmoothScroll(smoothScroller);
+                        ingestBuffer.add(message);
                     }
                 }
             }
         });
+        // a long click on the send button sends a file instead of a text message
+        sendButton.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                if (global.getTransport().getConnectedPeersList().size() > 0) {
+                    Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+                    intent.setType("*/*");
+                    intent.addCategory(Intent.CATEGORY_OPENABLE);
+                    startActivityForResult(intent, REQUEST_CODE_PICK_FILE);
+                    return true;
+                }
+                return false;
+            }
+        });
+    }
+
+    private void onChatMessageReceived(Message message) {
+        ingestBuffer.add(message);
+    }
+
+    private void onChatDataReceived(Message data) {
+        // the chat messages sent as data contain a binary envelope
+        if (envelopeCodec.decode(data.getData(), envelope) && envelope.getType() == Envelope.TYPE_TEXT) {
+            Message message = new Message(global, CHAT_HEADER, envelope.getText(), null);
+            message.setSender(data.getSender());
+            onChatMessageReceived(message);
+        }
+    }
+
+    @Override
+    public void onActivityResult(int requestCode, int resultCode, @Nullable Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (requestCode == REQUEST_CODE_PICK_FILE && resultCode == Activity.RESULT_OK && data != null && data.getData() != null) {
+            sendFile(data.getData());
+        }
+    }
+
+    private void sendFile(Uri uri) {
+        String name = uri.getLastPathSegment();
+        long size = -1;
+        Cursor cursor = activity.getContentResolver().query(uri, null, null, null, null);
+        if (cursor != null) {
+            try {
+                if (cursor.moveToFirst()) {
+                    name = cursor.getString(cursor.getColumnIndex(OpenableColumns.DISPLAY_NAME));
+                    size = cursor.getLong(cursor.getColumnIndex(OpenableColumns.SIZE));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        // each peer needs its own stream, because the transfers proceed independently
+        ArrayList<Peer> connectedPeers = global.getTransport().getConnectedPeersList();
+        for (int i = 0; i < connectedPeers.size(); i++) {
+            try {
+                InputStream input = activity.getContentResolver().openInputStream(uri);
+                if (input != null) {
+                    global.getTransferEngine().send(connectedPeers.get(i), input, name, size);
+                }
+            } catch (FileNotFoundException e) {
+                Toast.makeText(activity, "Cannot open the file", Toast.LENGTH_SHORT).show();
+                return;
+            }
+        }
+    }
+
+    private void showLinkStats() {
+        ArrayList<LatencyProbe.PeerStats> allStats = global.getLatencyProbe().getAllStats();
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < allStats.size(); i++) {
+            LatencyProbe.PeerStats stats = allStats.get(i);
+            LatencyHistogram roundTrips = stats.getRoundTrips();
+            if (i > 0) {
+                builder.append("\n\n");
+            }
+            builder.append(stats.getName()).append("\n");
+            if (roundTrips.getCount() == 0) {
+                builder.append("no replies yet");
+            } else {
+                builder.append("last ").append(formatMillis(stats.getLastRoundTripMicros()))
+                        .append(", p50 ").append(formatMillis(roundTrips.getPercentileMicros(50)))
+                        .append(", p90 ").append(formatMillis(roundTrips.getPercentileMicros(90)))
+                        .append(", p99 ").append(formatMillis(roundTrips.getPercentileMicros(99)))
+                        .append(", max ").append(formatMillis(roundTrips.getMaxMicros()));
+            }
+            builder.append("\n").append(stats.getReceivedCount()).append("/").append(stats.getSentCount()).append(" pings answered");
+            if (stats.getUnansweredCount() > 1) {
+                builder.append(", last ").append(stats.getUnansweredCount()).append(" unanswered");
+            }
+        }
+        if (allStats.isEmpty()) {
+            builder.append("No connected peers");
+        }
+        RecentPeers recentPeers = global.getReconnector().getRecentPeers();
+        builder.append("\n\nFirst connection after launch (median)\n")
+                .append("with recent peers: ").append(formatFirstConnection(recentPeers, true)).append("\n")
+                .append("without: ").append(formatFirstConnection(recentPeers, false));
+        CommunicatorEventBus eventBus = global.getEventBus();
+        builder.append("\n\nEvents of the communicator\n")
+                .append("to the worker: ").append(formatLag(eventBus.getQueueLag())).append("\n")
+                .append("to the main thread: ").append(formatLag(eventBus.getMainLag())).append("\n")
+                .append("queue ").append(eventBus.getQueueSize()).append(" (max ").append(eventBus.getMaxQueueSize()).append("), ")
+                .append(eventBus.getDroppedCount()).append(" sightings dropped, ").append(eventBus.getMainPostsCount()).append(" main thread posts");
+        new AlertDialog.Builder(activity).setTitle("Round trip times").setMessage(builder.toString()).setPositiveButton(android.R.string.ok, null)
+                .setNegativeButton(R.string.benchmark, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        activity.setFragment(MainActivity.BENCHMARK_FRAGMENT);
+                    }
+                }).create().show();
+    }
+
+    private void showSearch() {
+        final EditText queryText = new EditText(activity);
+        queryText.setSingleLine(true);
+        queryText.setText(lastQuery);
+        new AlertDialog.Builder(activity).setTitle("Search messages").setView(queryText)
+                .setPositiveButton(android.R.string.search_go, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        search(queryText.getText().toString());
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null).create().show();
+    }
+
+    private void search(String query) {
+        global.getSearchIndex().search(query, new SearchIndex.Callback() {
+            @Override
+            public void onResults(String query, int[] positions) {
+                if (getView() == null) {
+                    // the view of this fragment has been destroyed in the meantime
+                    return;
+                }
+                // the results of a repeated query start before the match shown, the others from the most recent message
+                int start = query.equals(lastQuery) && lastMatch != -1 ? lastMatch : mAdapter.getItemCount();
+                int index = -1;
+                for (int i = positions.length - 1; i >= 0; i--) {
+                    if (positions[i] < start) {
+                        index = i;
+                        break;
+                    }
+                }
+                if (index == -1 && positions.length > 0 && positions[positions.length - 1] < mAdapter.getItemCount()) {
+                    // we start again from the most recent
+                    index = positions.length - 1;
+                }
+                lastQuery = query;
+                if (index == -1) {
+                    lastMatch = -1;
+                    Toast.makeText(activity, "No messages found", Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                lastMatch = positions[index];
+                mRecyclerView.scrollToPosition(lastMatch);
+                Toast.makeText(activity, "Match " + (positions.length - index) + " of " + positions.length, Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+
+    private static String formatFirstConnection(RecentPeers recentPeers, boolean withCache) {
+        int count = recentPeers.getTimeToFirstConnectionCount(withCache);
+        if (count == 0) {
+            return "no launches yet";
+        }
+        return recentPeers.getMedianTimeToFirstConnection(withCache) + " ms (" + count + " launches)";
+    }
+
+    private static String formatLag(LatencyHistogram lag) {
+        if (lag.getCount() == 0) {
+            return "no events yet";
+        }
+        return "p50 " + formatMillis(lag.getPercentileMicros(50)) + ", p99 " + formatMillis(lag.getPercentileMicros(99)) + ", max " + formatMillis(lag.getMaxMicros());
+    }
+
+    private static String formatMillis(long micros) {
+        return (micros / 1000) + "." + ((micros % 1000) / 100) + " ms";
+    }
+
+    private static String formatProgress(TransferEngine.Progress progress) {
+        StringBuilder builder = new StringBuilder();
+        builder.append(progress.isIncoming() ? "Receiving " : "Sending ").append(progress.getName());
+        if (progress.getPercentage() != -1) {
+            builder.append(" ").append(progress.getPercentage()).append("%");
+        }
+        builder.append(" - ").append(progress.getBytesPerSecond() / 1024).append(" KB/s");
+        return builder.toString();
     }
 
     @Override
     public void onResume() {
         super.onResume();
-        global.getBluetoothCommunicator().addCallback(communicatorCallback);
+        global.getTransferEngine().addListener(transferListener);
+        global.getMessageRouter().register(CHAT_HEADER, chatHandler, MessageRouter.THREAD_MAIN);
     }
 
     @Override
     public void onPause() {
         super.onPause();
-        global.getBluetoothCommunicator().removeCallback(communicatorCallback);
+        global.getTransferEngine().removeListener(transferListener);
+        global.getMessageRouter().unregister(CHAT_HEADER, chatHandler);
+        // the pending messages are saved in the conversation log before the fragment stops receiving them
+        ingestBuffer.flush();
     }
 
     @Override
@@ -17,15 +17,12 @@
 package com.bluetooth.communicatorexample.fragments;
 
 import android.animation.Animator;
-import android.bluetooth.BluetoothAdapter;
 import android.content.DialogInterface;
 import android.os.Bundle;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.WindowInsets;
-import android.widget.AdapterView;
-import android.widget.ListView;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -35,13 +32,17 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.constraintlayout.widget.ConstraintLayout;
 import androidx.fragment.app.Fragment;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 
 import com.bluetooth.communicator.tools.Timer;
 import com.bluetooth.communicatorexample.Global;
 import com.bluetooth.communicatorexample.MainActivity;
 import com.bluetooth.communicatorexample.R;
+import com.bluetooth.communicatorexample.communication.CommunicatorEventBus;
 import com.bluetooth.communicatorexample.gui.ButtonSearch;
 import com.bluetooth.communicatorexample.gui.CustomAnimator;
+import com.bluetooth.communicatorexample.gui.DiscoveryBatcher;
 import com.bluetooth.communicatorexample.gui.GuiTools;
 import com.bluetooth.communicatorexample.gui.PeerListAdapter;
 import com.bluetooth.communicatorexample.gui.RequestDialog;
@@ -60,16 +61,19 @@ public class PairingFragment extends Fragment {
     private RequestDialog connectionConfirmDialog;
     private ConstraintLayout constraintLayout;
     private Peer confirmConnectionPeer;
-    private ListView listViewGui;
+    private RecyclerView listViewGui;
     private Timer connectionTimer;
     @Nullable
     private PeerListAdapter listView;
+    // read by the background thread of the event bus
+    @Nullable
+    private volatile DiscoveryBatcher discoveryBatcher;
     private TextView discoveryDescription;
     private TextView noDevices;
     private TextView noPermissions;
     private TextView noBluetoothLe;
-    private final Object lock = new Object();
     private MainActivity.Callback communicatorCallback;
+    private BluetoothCommunicator.Callback discoveryCallback;
     private CustomAnimator animator = new CustomAnimator();
     private Peer connectingPeer;
     protected Global global;
@@ -129,6 +133,10 @@ public class PairingFragment extends Fragment {
             @Override
             public void onConnectionSuccess(Peer peer, int source) {
                 super.onConnectionSuccess(peer, source);
+                if (global.getReconnector().isDropped(peer)) {
+                    // a late connection of the abandoned reconnection, which is being closed
+                    return;
+                }
                 connectingPeer = null;
                 resetConnectionTimer();
                 activity.setFragment(MainActivity.CONVERSATION_FRAGMENT);
@@ -157,46 +165,14 @@ public class PairingFragment extends Fragment {
                 }
             }
 
-            @Override
-            public void onPeerFound(Peer peer) {
-                super.onPeerFound(peer);
-                synchronized (lock) {
-                    if (listView != null) {
-                        BluetoothAdapter bluetoothAdapter = global.getBluetoothCommunicator().getBluetoothAdapter();
-                        int index = listView.indexOfPeer(peer.getUniqueName());
-                        if (index == -1) {
-                            listView.add(peer);
-                        } else {
-                            Peer peer1 = listView.get(index);
-                            if (peer.isBonded(bluetoothAdapter)) {
-                                listView.set(index, peer);
-                            } else if (peer1.isBonded(bluetoothAdapter)) {
-                                listView.set(index, listView.get(index));
-                            } else {
-                                listView.set(index, peer);
-                            }
-                        }
-                    }
-                }
-            }
-
-            @Override
-            public void onPeerUpdated(Peer peer, Peer newPeer) {
-                super.onPeerUpdated(peer, newPeer);
-                onPeerFound(newPeer);
-            }
-
             @Override
             public void onPeerLost(Peer peer) {
-               synchronized (lock) {
-                    if (listView != null) {
-                        listView.remove(peer);
-                        if (peer.equals(getConfirmConnectionPeer())) {
-                            RequestDialog requestDialog = getConnectionConfirmDialog();
-                            if (requestDialog != null) {
-                                requestDialog.cancel();
-                            }
-                        }
+                super.onPeerLost(peer);
+                // the list is updated by discoveryCallback
+                if (peer.equals(getConfirmConnectionPeer())) {
+                    RequestDialog requestDialog = getConnectionConfirmDialog();
+                    if (requestDialog != null) {
+                        requestDialog.cancel();
                     }
                 }
             }
@@ -235,6 +211,33 @@ public class PairingFragment extends Fragment {
                 startSearch();
             }
         };
+        // the sightings are checked, merged and ranked on the background thread of the event bus, the batcher posts to the
+        // main thread only the updates of the list
+        discoveryCallback = new BluetoothCommunicator.Callback() {
+            @Override
+            public void onPeerFound(Peer peer) {
+                super.onPeerFound(peer);
+                DiscoveryBatcher batcher = discoveryBatcher;
+                if (batcher != null) {
+                    batcher.onPeerFound(peer);
+                }
+            }
+
+            @Override
+            public void onPeerUpdated(Peer peer, Peer newPeer) {
+                super.onPeerUpdated(peer, newPeer);
+                onPeerFound(newPeer);
+            }
+
+            @Override
+            public void onPeerLost(Peer peer) {
+                super.onPeerLost(peer);
+                DiscoveryBatcher batcher = discoveryBatcher;
+                if (batcher != null) {
+                    batcher.onPeerLost(peer);
+                }
+            }
+        };
     }
 
     @Override
@@ -248,6 +251,9 @@ public class PairingFragment extends Fragment {
         super.onViewCreated(view, savedInstanceState);
         constraintLayout = view.findViewById(R.id.container);
         listViewGui = view.findViewById(R.id.list_view);
+        listViewGui.setLayoutManager(new LinearLayoutManager(requireContext()));
+        // the size of the list does not depend on its rows
+        listViewGui.setHasFixedSize(true);
         discoveryDescription = view.findViewById(R.id.discoveryDescription);
         noDevices = view.findViewById(R.id.noDevices);
         noPermissions = view.findViewById(R.id.noPermission);
@@ -261,6 +267,9 @@ public class PairingFragment extends Fragment {
         super.onActivityCreated(savedInstanceState);
         activity = (MainActivity) requireActivity();
         global = (Global) activity.getApplication();
+        // the callback receives the events while this fragment is resumed
+        activity.addCallback(communicatorCallback, this);
+        global.getEventBus().addCallback(discoveryCallback, CommunicatorEventBus.THREAD_BACKGROUND, this);
         Toolbar toolbar = activity.findViewById(R.id.toolbarPairing);
         activity.setActionBar(toolbar);
         // we give the constraint layout the information on the system measures (status bar etc.), which has the fragmentContainer,
@@ -272,22 +281,6 @@ public class PairingFragment extends Fragment {
 
         // setting of array adapter
         initializePeerList();
-        listViewGui.setOnItemClickListener(new AdapterView.OnItemClickListener() {
-            @Override
-            public void onItemClick(AdapterView<?> adapterView, View view, int i, long l) {
-                synchronized (lock) {
-                    if (listView != null) {
-                        // start the pop up and then connect to the peer
-                        if (listView.isClickable()) {
-                            Peer item = listView.get(i);
-                            connect(item);
-                        } else {
-                            listView.getCallback().onClickNotAllowed(listView.getShowToast());
-                        }
-                    }
-                }
-            }
-        });
     }
 
     @Override
@@ -318,8 +311,10 @@ public class PairingFragment extends Fragment {
     public void onResume() {
         super.onResume();
         clearFoundPeers();
+        if (discoveryBatcher != null) {
+            discoveryBatcher.start();
+        }
 
-        activity.addCallback(communicatorCallback);
         // if you have permission to search it is activated from here
         if (Tools.hasPermissions(activity, MainActivity.REQUIRED_PERMISSIONS)) {
             startSearch();
@@ -329,8 +324,11 @@ public class PairingFragment extends Fragment {
     @Override
     public void onPause() {
         super.onPause();
-        activity.removeCallback(communicatorCallback);
         stopSearch();
+        // the pending flush and the expiry checks would keep this fragment alive and update its list while it is not shown
+        if (discoveryBatcher != null) {
+            discoveryBatcher.stop();
+        }
         //communicatorCallback.onSearchStopped();
         if (connectingPeer != null) {
             activity.disconnect(connectingPeer);
@@ -429,6 +427,13 @@ public class PairingFragment extends Fragment {
                 }
             }
 
+            @Override
+            public void onPeerClicked(Peer peer) {
+                super.onPeerClicked(peer);
+                // start the pop up and then connect to the peer
+                connect(peer);
+            }
+
             @Override
             public void onClickNotAllowed(boolean showToast) {
                 super.onClickNotAllowed(showToast);
@@ -438,9 +443,17 @@ public class PairingFragment extends Fragment {
 
         listView = new PeerListAdapter(activity, new ArrayList<Peer>(), callback);
         listViewGui.setAdapter(listView);
+        if (discoveryBatcher != null) {
+            discoveryBatcher.stop();
+        }
+        // the discovery events are applied to the list in batches
+        discoveryBatcher = new DiscoveryBatcher(listView, global.getTransport().getBluetoothAdapter());
     }
 
     public void clearFoundPeers() {
+        if (discoveryBatcher != null) {
+            discoveryBatcher.clear();
+        }
         if (listView != null) {
             listView.clear();
         }
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2016 Luca Martino.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copyFile of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bluetooth.communicatorexample.gui;
+
+import android.bluetooth.BluetoothAdapter;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import androidx.annotation.Nullable;
+
+import com.bluetooth.communicator.Peer;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Collects the discovery events (peer found, updated or lost) for WINDOW milliseconds, merging the ones of the same peer
+ * (only its last state counts), and applies them to the PeerListAdapter all together, so the list is diffed once per batch,
+ * and a batch that changes nothing visible (for example the same peer found again) does not touch the list.
+ * Between two versions of the same peer the bonded one is kept, as the discovery did before.
+ * Each sighting is recorded in a PeerRanking, which gives the position of the peers seen in the batch, and the peers not seen
+ * for PeerRanking.DEFAULT_EXPIRY are removed as if lost, checking the expirations every EXPIRY_CHECK_INTERVAL.
+ * onPeerFound and onPeerLost can be called from any thread (the check of the bond and the ranking are done there, they are
+ * meant for the background thread of the CommunicatorEventBus), the batches are applied on the main thread.
+ * The other methods must be called on the main thread
+ **/
+public class DiscoveryBatcher {
+    public static final long WINDOW = 150;
+    public static final long EXPIRY_CHECK_INTERVAL = 1000;
+    private final PeerListAdapter adapter;
+    @Nullable
+    private final BluetoothAdapter bluetoothAdapter;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // the fields below are guarded by this lock, except the ones used only on the main thread
+    private final Object lock = new Object();
+    // unique name -> last sighting, or null if the peer has been lost
+    private final LinkedHashMap<String, Sighting> pending = new LinkedHashMap<>();
+    private final PeerRanking ranking = new PeerRanking(SystemClock.uptimeMillis());
+    // unique names of the peers shown in their bonded version, used only on the main thread
+    private final HashSet<String> bondedShown = new HashSet<>();
+    private final Runnable expiryTask = new Runnable() {
+        @Override
+        public void run() {
+            expire();
+        }
+    };
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+    private boolean flushScheduled = false;
+    private boolean expiryScheduled = false;
+    // the events received while stopped are ignored
+    private boolean stopped = false;
+    // stats
+    private long eventsCount = 0;
+    private long batchesCount = 0;
+    private long skippedBatchesCount = 0;
+    private long expiredCount = 0;
+
+    public DiscoveryBatcher(PeerListAdapter adapter, @Nullable BluetoothAdapter bluetoothAdapter) {
+        this.adapter = adapter;
+        this.bluetoothAdapter = bluetoothAdapter;
+    }
+
+    public void onPeerFound(Peer peer) {
+        // the LoopbackTransport has no adapter and its peers are never bonded
+        boolean bonded = bluetoothAdapter != null && peer.isBonded(bluetoothAdapter);
+        String uniqueName = peer.getUniqueName();
+        synchronized (lock) {
+            if (stopped) {
+                return;
+            }
+            eventsCount++;
+            ranking.onSighting(uniqueName, bonded, SystemClock.uptimeMillis());
+            scheduleExpiry();
+            // even if the list already shows this version the peer can go up in the ranking
+            Sighting current = pending.get(uniqueName);
+            if (current == null || bonded || !current.bonded) {
+                pending.put(uniqueName, new Sighting(peer, bonded));
+            }
+            scheduleFlush();
+        }
+    }
+
+    public void onPeerLost(Peer peer) {
+        synchronized (lock) {
+            if (stopped) {
+                return;
+            }
+            eventsCount++;
+            ranking.remove(peer.getUniqueName());
+            // if the list does not show it (found and lost within the same window) the batch ignores it
+            pending.put(peer.getUniqueName(), null);
+            scheduleFlush();
+        }
+    }
+
+    private void expire() {
+        ArrayList<String> expired = new ArrayList<>();
+        synchronized (lock) {
+            expiryScheduled = false;
+            ranking.expire(SystemClock.uptimeMillis(), expired);
+            expiredCount += expired.size();
+            for (int i = 0; i < expired.size(); i++) {
+                pending.put(expired.get(i), null);
+            }
+            if (!expired.isEmpty()) {
+                scheduleFlush();
+            }
+            scheduleExpiry();
+        }
+    }
+
+    // must be called holding the lock
+    private void scheduleExpiry() {
+        if (!expiryScheduled && !ranking.isEmpty()) {
+            expiryScheduled = true;
+            mainHandler.postDelayed(expiryTask, EXPIRY_CHECK_INTERVAL);
+        }
+    }
+
+    // must be called holding the lock
+    private void scheduleFlush() {
+        if (!flushScheduled) {
+            flushScheduled = true;
+            mainHandler.postDelayed(flushTask, WINDOW);
+        }
+    }
+
+    /**
+     * Applies immediately the pending events
+     **/
+    public void flush() {
+        synchronized (lock) {
+            if (flushScheduled) {
+                mainHandler.removeCallbacks(flushTask);
+                flushScheduled = false;
+            }
+            if (pending.isEmpty()) {
+                return;
+            }
+            ArrayList<Peer> found = new ArrayList<>();
+            ArrayList<String> lost = new ArrayList<>();
+            for (Map.Entry<String, Sighting> entry : pending.entrySet()) {
+                String uniqueName = entry.getKey();
+                Sighting sighting = entry.getValue();
+                if (sighting == null) {
+                    lost.add(uniqueName);
+                    bondedShown.remove(uniqueName);
+                } else if (!sighting.bonded && bondedShown.contains(uniqueName) && adapter.getPeer(uniqueName) != null) {
+                    // the bonded version shown is kept, the peer is only ranked again
+                    found.add(adapter.getPeer(uniqueName));
+                } else {
+                    found.add(sighting.peer);
+                    if (sighting.bonded) {
+                        bondedShown.add(uniqueName);
+                    } else {
+                        bondedShown.remove(uniqueName);
+                    }
+                }
+            }
+            pending.clear();
+            batchesCount++;
+            // the ranking is read by the adapter, so the lock is held until the batch is applied (the diff is asynchronous)
+            if (!adapter.applyBatch(found, lost, ranking)) {
+                skippedBatchesCount++;
+            }
+        }
+    }
+
+    /**
+     * Discards the pending events and the ranking, to be called when the list is cleared
+     **/
+    public void clear() {
+        synchronized (lock) {
+            if (flushScheduled) {
+                mainHandler.removeCallbacks(flushTask);
+                flushScheduled = false;
+            }
+            if (expiryScheduled) {
+                mainHandler.removeCallbacks(expiryTask);
+                expiryScheduled = false;
+            }
+            pending.clear();
+            ranking.clear();
+            bondedShown.clear();
+        }
+    }
+
+    /**
+     * Clears the batcher and ignores the events until start, so nothing is posted to the main thread while the list is not shown
+     **/
+    public void stop() {
+        synchronized (lock) {
+            stopped = true;
+            clear();
+        }
+    }
+
+    public void start() {
+        synchronized (lock) {
+            stopped = false;
+        }
+    }
+
+    public long getEventsCount() {
+        synchronized (lock) {
+            return eventsCount;
+        }
+    }
+
+    public long getBatchesCount() {
+        synchronized (lock) {
+            return batchesCount;
+        }
+    }
+
+    /**
+     * Number of batches that did not change anything visible
+     **/
+    public long getSkippedBatchesCount() {
+        synchronized (lock) {
+            return skippedBatchesCount;
+        }
+    }
+
+    /**
+     * Number of peers removed because not seen for the expiry
+     **/
+    public long getExpiredCount() {
+        synchronized (lock) {
+            return expiredCount;
+        }
+    }
+
+    private static class Sighting {
+        private final Peer peer;
+        private final boolean bonded;
+
+        private Sighting(Peer peer, boolean bonded) {
+            this.peer = peer;
+            this.bonded = bonded;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2016 Luca Martino.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copyFile of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bluetooth.communicatorexample.gui;
+
+import android.view.Choreographer;
+
+import androidx.recyclerview.widget.RecyclerView;
+
+import com.bluetooth.communicator.Message;
+
+import java.util.ArrayList;
+
+/**
+ * Collects the messages added within the same display frame and inserts them in the MessagesAdapter all together
+ * at the next frame, with a single notifyItemRangeInserted and at most one scroll.
+ * When messages arrive faster than jumpRateThreshold per second the list jumps to the bottom instead of smooth scrolling,
+ * because a smooth scroll would be restarted before it ends anyway.
+ * Must be used only from the main thread
+ **/
+public class MessageIngestBuffer {
+    public static final int DEFAULT_JUMP_RATE_THRESHOLD = 8;  // messages per second
+    private static final long RATE_WINDOW_NANOS = 1000000000L;
+    private final MessagesAdapter adapter;
+    private final RecyclerView recyclerView;
+    private final RecyclerView.SmoothScroller smoothScroller;
+    private final ArrayList<Message> pendingMessages = new ArrayList<>();
+    private final Choreographer.FrameCallback frameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            frameScheduled = false;
+            flush(frameTimeNanos);
+        }
+    };
+    private boolean frameScheduled = false;
+    private int jumpRateThreshold = DEFAULT_JUMP_RATE_THRESHOLD;
+    // the rate is the max between the messages of the current second and of the previous one
+    private long rateWindowStart = 0;
+    private int rateWindowCount = 0;
+    private int previousRateWindowCount = 0;
+
+    public MessageIngestBuffer(MessagesAdapter adapter, RecyclerView recyclerView, RecyclerView.SmoothScroller smoothScroller) {
+        this.adapter = adapter;
+        this.recyclerView = recyclerView;
+        this.smoothScroller = smoothScroller;
+    }
+
+    public void add(Message message) {
+        pendingMessages.add(message);
+        if (!frameScheduled) {
+            frameScheduled = true;
+            Choreographer.getInstance().postFrameCallback(frameCallback);
+        }
+    }
+
+    /**
+     * Inserts immediately the pending messages, for example before the fragment is paused
+     **/
+    public void flush() {
+        if (frameScheduled) {
+            Choreographer.getInstance().removeFrameCallback(frameCallback);
+            frameScheduled = false;
+        }
+        flush(System.nanoTime());
+    }
+
+    private void flush(long frameTimeNanos) {
+        if (pendingMessages.isEmpty()) {
+            return;
+        }
+        int count = pendingMessages.size();
+        adapter.addMessages(pendingMessages);
+        pendingMessages.clear();
+        int rate = updateRate(frameTimeNanos, count);
+        int lastPosition = adapter.getItemCount() - 1;
+        if (rate > jumpRateThreshold) {
+            recyclerView.scrollToPosition(lastPosition);
+        } else {
+            smoothScroller.setTargetPosition(lastPosition);
+            recyclerView.getLayoutManager().startSmoothScroll(smoothScroller);
+        }
+    }
+
+    private int updateRate(long nowNanos, int count) {
+        long elapsed = nowNanos - rateWindowStart;
+        if (elapsed >= RATE_WINDOW_NANOS) {
+            previousRateWindowCount = elapsed < 2 * RATE_WINDOW_NANOS ? rateWindowCount : 0;
+            rateWindowStart = nowNanos;
+            rateWindowCount = 0;
+        }
+        rateWindowCount += count;
+        return Math.max(rateWindowCount, previousRateWindowCount);
+    }
+
+    public int getJumpRateThreshold() {
+        return jumpRateThreshold;
+    }
+
+    public void setJumpRateThreshold(int jumpRateThreshold) {
+        this.jumpRateThreshold = jumpRateThreshold;
+    }
+}
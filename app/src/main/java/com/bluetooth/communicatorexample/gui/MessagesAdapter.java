@@ -16,6 +16,8 @@
 
 package com.bluetooth.communicatorexample.gui;
 
+import android.os.Handler;
+import android.os.Looper;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -23,40 +25,104 @@ import android.widget.LinearLayout;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.cardview.widget.CardView;
+import androidx.core.text.PrecomputedTextCompat;
+import androidx.core.widget.TextViewCompat;
+import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.bluetooth.communicatorexample.R;
 import com.bluetooth.communicator.Message;
+import com.bluetooth.communicatorexample.storage.ConversationLog;
+import com.bluetooth.communicatorexample.storage.PagedMessageSource;
+import com.bluetooth.communicatorexample.storage.SearchIndex;
+import com.bluetooth.communicatorexample.storage.SenderRegistry;
 
-import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 
 /**
- * Is used to connect to the RecycleView, which functions as a ListView, a list of strings, which will be inserted in the ViewHolder layout and this will be inserted in the list
+ * Is used to connect to the RecycleView, which functions as a ListView, a list of strings, which will be inserted in the ViewHolder layout and this will be inserted in the list.
+ * The messages are not kept in memory, they are appended to the conversation log and read back from it through
+ * a PagedMessageSource, which keeps decoded only the messages around the visible range
  **/
 public class MessagesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
     private static final int MINE = 0;
     private static final int NON_MINE = 1;
-    private ArrayList<Message> mResults = new ArrayList<>();
+    private ConversationLog log;
+    private SearchIndex searchIndex;
+    private PagedMessageSource messages;
+    private TextLayoutCache textLayoutCache;
+    @Nullable
+    private RecyclerView recyclerView;
     private Callback callback;
     private String myUniqueName;
+    private int mySenderId;
+    private RecyclerView.OnScrollListener scrollListener = new RecyclerView.OnScrollListener() {
+        @Override
+        public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+            super.onScrolled(recyclerView, dx, dy);
+            if (recyclerView.getLayoutManager() instanceof LinearLayoutManager) {
+                LinearLayoutManager layoutManager = (LinearLayoutManager) recyclerView.getLayoutManager();
+                int firstVisible = layoutManager.findFirstVisibleItemPosition();
+                if (firstVisible != RecyclerView.NO_POSITION) {
+                    messages.setVisibleRange(firstVisible, layoutManager.findLastVisibleItemPosition());
+                }
+            }
+        }
+    };
 
 
-    public MessagesAdapter(String myUniqueName, @NonNull Callback callback) {
-        this.myUniqueName = myUniqueName;
-        this.callback = callback;
-    }
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable clearTask = new Runnable() {
+        @Override
+        public void run() {
+            // the decoded pages and the measured texts refer to the old messages
+            messages.clear();
+            textLayoutCache.clear();
+            notifyDataSetChanged();
+        }
+    };
+    private ConversationLog.ClearListener clearListener = new ConversationLog.ClearListener() {
+        @Override
+        public void onCleared() {
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                clearTask.run();
+            } else {
+                mainHandler.post(clearTask);
+            }
+        }
+    };
+    private PagedMessageSource.PageListener pageListener = new PagedMessageSource.PageListener() {
+        @Override
+        public void onPageLoaded(int position, List<ConversationLog.Record> records) {
+            // the texts of the history are measured in background as soon as their page is loaded, before they are bound
+            for (int i = 0; i < records.size(); i++) {
+                if (!textLayoutCache.contains(position + i)) {
+                    ConversationLog.Record record = records.get(i);
+                    textLayoutCache.precompute(position + i, record.getText(), record.isMine() ? MINE : NON_MINE);
+                }
+            }
+        }
+    };
+
 
-    public MessagesAdapter(ArrayList<Message> messages, String myUniqueName, @NonNull Callback callback) {
+    /**
+     * textLayoutExecutor measures the texts in background, it is not owned by the adapter (see Global.getTextLayoutExecutor)
+     **/
+    public MessagesAdapter(ConversationLog log, SearchIndex searchIndex, Executor textLayoutExecutor, String myUniqueName, @NonNull Callback callback) {
+        this.log = log;
+        this.searchIndex = searchIndex;
+        this.textLayoutCache = new TextLayoutCache(textLayoutExecutor);
+        this.messages = new PagedMessageSource(log);
+        this.messages.setPageListener(pageListener);
         this.myUniqueName = myUniqueName;
+        this.mySenderId = log.getSenderRegistry().getId(myUniqueName);
         this.callback = callback;
-        if (messages != null) {
-            if (messages.size() > 0) {
-                callback.onFirstItemAdded();
-            }
-            mResults.addAll(messages);
-            notifyItemRangeInserted(0, messages.size() - 1);
+        if (log.size() > 0) {
+            callback.onFirstItemAdded();
         }
     }
 
@@ -75,20 +141,26 @@ public class MessagesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolde
     @Override
     public void onBindViewHolder(@NonNull RecyclerView.ViewHolder holder, int position) {
         if (holder instanceof MessageHolder) {
-            Message message = mResults.get(position);
-            if (holder instanceof ReceivedHolder && message.getSender() != null && message.getSender().getUniqueName().equals(myUniqueName)) {
+            ConversationLog.Record message = messages.get(position);
+            // the senders are compared by their int id
+            if (holder instanceof ReceivedHolder && message.getSenderId() != SenderRegistry.NO_SENDER && message.getSenderId() == mySenderId) {
                 ((ReceivedHolder) holder).text.setVisibility(View.GONE);
                 ((ReceivedHolder) holder).containerSender.setVisibility(View.VISIBLE);
-                ((ReceivedHolder) holder).sender.setText(message.getSender().getName());
+                ((ReceivedHolder) holder).sender.setText(log.getSenderRegistry().getName(message.getSenderId()));
             }
-            ((MessageHolder) holder).setText(message.getText());
+            MessageHolder messageHolder = (MessageHolder) holder;
+            int viewType = holder.getItemViewType();
+            if (recyclerView != null) {
+                textLayoutCache.updateMetrics(viewType, messageHolder.getTextView(), recyclerView.getWidth(), holder.itemView.getResources().getConfiguration().fontScale);
+            }
+            // if the text was already measured in background we use the result
+            messageHolder.setText(message.getText(), textLayoutCache.get(position, viewType));
         }
     }
 
     @Override
     public int getItemViewType(int position) {
-        Message message = mResults.get(position);
-        if (message.getSender() == null || message.getSender().getUniqueName().equals(myUniqueName)) {
+        if (messages.isMine(position)) {
             return MINE;
         } else {
             return NON_MINE;
@@ -102,7 +174,33 @@ public class MessagesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolde
 
     @Override
     public int getItemCount() {
-        return mResults.size();
+        return log.size();
+    }
+
+    @Override
+    public void onAttachedToRecyclerView(@NonNull RecyclerView recyclerView) {
+        super.onAttachedToRecyclerView(recyclerView);
+        this.recyclerView = recyclerView;
+        recyclerView.addOnScrollListener(scrollListener);
+        log.addClearListener(clearListener);
+        // the metrics are read from a holder of each type, which is then reused by the list, so the texts can be measured before the first bind
+        for (int viewType = MINE; viewType <= NON_MINE; viewType++) {
+            RecyclerView.ViewHolder holder = createViewHolder(recyclerView, viewType);
+            textLayoutCache.setDefaultMetrics(viewType, ((MessageHolder) holder).getTextView());
+            recyclerView.getRecycledViewPool().putRecycledView(holder);
+        }
+        // the list starts from the end, so we load the last messages, measuring them, before the first layout
+        messages.prefetch(log.size() - 1);
+        messages.prefetch(log.size() - 1 - PagedMessageSource.PREFETCH_DISTANCE);
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(@NonNull RecyclerView recyclerView) {
+        super.onDetachedFromRecyclerView(recyclerView);
+        this.recyclerView = null;
+        recyclerView.removeOnScrollListener(scrollListener);
+        log.removeClearListener(clearListener);
+        mainHandler.removeCallbacks(clearTask);
     }
 
     @Override
@@ -119,20 +217,55 @@ public class MessagesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolde
         if (getItemCount() == 0) {
             callback.onFirstItemAdded();
         }
-        mResults.add(message);
+        append(message);
         notifyItemInserted(getItemCount() - 1);
     }
 
-    public Message getMessage(int index) {
-        return mResults.get(index);
+    /**
+     * Appends all the messages with a single notification
+     **/
+    public void addMessages(List<Message> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        if (getItemCount() == 0) {
+            callback.onFirstItemAdded();
+        }
+        int start = getItemCount();
+        for (int i = 0; i < messages.size(); i++) {
+            append(messages.get(i));
+        }
+        notifyItemRangeInserted(start, messages.size());
+    }
+
+    private void append(Message message) {
+        boolean mine = isMine(message);
+        int position = log.append(message, mine);
+        if (mySenderId == SenderRegistry.NO_SENDER && message.getSender() != null && mine) {
+            // our unique name has just been registered as a sender
+            mySenderId = log.getSenderRegistry().getId(myUniqueName);
+        }
+        // the text is measured in background, so it will be ready when the message is bound
+        textLayoutCache.precompute(position, message.getText(), mine ? MINE : NON_MINE);
+        searchIndex.index(position, message.getText());
+    }
+
+    /**
+     * The only string comparison of the sender, done once when the message is ingested
+     **/
+    private boolean isMine(Message message) {
+        return message.getSender() == null || message.getSender().getUniqueName().equals(myUniqueName);
     }
 
-    public int indexOf(Message message) {
-        return mResults.indexOf(message);
+    public ConversationLog.Record getMessage(int index) {
+        return messages.get(index);
     }
 
-    public ArrayList<Message> getMessages() {
-        return mResults;
+    /**
+     * Gives access to the memory budget and to the hit/miss metrics of the decoded pages
+     **/
+    public PagedMessageSource getMessageSource() {
+        return messages;
     }
 
     /**
@@ -156,9 +289,18 @@ public class MessagesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolde
         }
 
         @Override
-        public void setText(String text) {
+        public void setText(String text, @Nullable PrecomputedTextCompat precomputedText) {
             this.textSender.setText(text);
-            this.text.setText(text);
+            if (precomputedText != null) {
+                TextViewCompat.setPrecomputedText(this.text, precomputedText);
+            } else {
+                this.text.setText(text);
+            }
+        }
+
+        @Override
+        public TextView getTextView() {
+            return text;
         }
     }
 
@@ -176,13 +318,24 @@ public class MessagesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolde
         }
 
         @Override
-        public void setText(String text) {
-            this.text.setText(text);
+        public void setText(String text, @Nullable PrecomputedTextCompat precomputedText) {
+            if (precomputedText != null) {
+                TextViewCompat.setPrecomputedText(this.text, precomputedText);
+            } else {
+                this.text.setText(text);
+            }
+        }
+
+        @Override
+        public TextView getTextView() {
+            return text;
         }
     }
 
     interface MessageHolder {
-        void setText(String text);
+        void setText(String text, @Nullable PrecomputedTextCompat precomputedText);
+
+        TextView getTextView();
     }
 
     public interface Callback {
@@ -20,133 +20,190 @@ import android.app.Activity;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.BaseAdapter;
 import android.widget.TextView;
 
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.recyclerview.widget.AsyncListDiffer;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.RecyclerView;
+
 import com.bluetooth.communicatorexample.R;
 import com.bluetooth.communicator.Peer;
 
 import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Adapter of the RecyclerView of the found peers. The peers are kept in a PeerStore, each change of the store publishes
+ * a new list of immutable rows to an AsyncListDiffer, which compares it with the shown one on a background thread and then
+ * notifies only the rows inserted, removed, moved or changed, so the discovery animates only the rows that have changed.
+ * The rows have the stable ids of the PeerStore.
+ * Must be used only from the main thread
+ **/
+public class PeerListAdapter extends RecyclerView.Adapter<PeerListAdapter.PeerViewHolder> {
+    private static final DiffUtil.ItemCallback<Row> DIFF_CALLBACK = new DiffUtil.ItemCallback<Row>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull Row oldRow, @NonNull Row newRow) {
+            return oldRow.id == newRow.id;
+        }
 
-public class PeerListAdapter extends BaseAdapter {
-    public static final int HOST = 1;
-    private ArrayList<Peer> array;
+        @Override
+        public boolean areContentsTheSame(@NonNull Row oldRow, @NonNull Row newRow) {
+            // only the name is shown
+            return oldRow.name.equals(newRow.name);
+        }
+    };
+    private final PeerStore peers = new PeerStore();
+    private final AsyncListDiffer<Row> differ;
     private LayoutInflater inflater;
     private Callback callback;
-    private CustomAnimator animator = new CustomAnimator();
-    private Activity activity;
     private boolean isClickable = true;
     private boolean showToast = false;
 
     public PeerListAdapter(Activity activity, ArrayList<Peer> array, Callback callback) {
-        this.array = array;
+        for (int i = 0; i < array.size(); i++) {
+            peers.put(array.get(i));
+        }
         this.callback = callback;
-        if (array.size() > 0) {
+        if (peers.size() > 0) {
             callback.onFirstItemAdded();
         }
-        this.activity = activity;
-        notifyDataSetChanged();
+        setHasStableIds(true);
+        differ = new AsyncListDiffer<>(this, DIFF_CALLBACK);
         inflater = activity.getLayoutInflater();
+        publish();
     }
 
     @Override
-    public int getCount() {
-        return array.size();
-    }
-
-    @Override
-    public Object getItem(int i) {
-        return array.get(i);
-    }
-
-    @Override
-    public long getItemId(int i) {
-        return i;
+    public int getItemCount() {
+        return differ.getCurrentList().size();
     }
 
     @Override
-    public boolean hasStableIds() {
-        return true;
+    public long getItemId(int position) {
+        return differ.getCurrentList().get(position).id;
     }
 
+    @NonNull
     @Override
-    public int getItemViewType(int position) {
-        return HOST;
+    public PeerViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        return new PeerViewHolder(inflater.inflate(R.layout.component_row, parent, false));
     }
 
     @Override
-    public int getViewTypeCount() {
-        return 1;
+    public void onBindViewHolder(@NonNull PeerViewHolder holder, int position) {
+        holder.name.setText(differ.getCurrentList().get(position).name);
     }
 
-    @Override
-    public View getView(int position, View view, ViewGroup viewGroup) {
-        final Object item = getItem(position);
-        int itemType = getItemViewType(position);
-        if (itemType == HOST) {
-            Peer guiPeer = (Peer) item;
-            String peerName = ((Peer) item).getName();
-            if (view == null) {
-                view = inflater.inflate(R.layout.component_row, null);
-            }
-            ((TextView) view.findViewById(R.id.textRow)).setText(peerName);
-
+    private void onRowClicked(int position) {
+        if (position == RecyclerView.NO_POSITION) {
+            return;
         }
-        return view;
-    }
-
-    public synchronized void add(Peer peer) {
-        if (array.size() == 0) {
-            callback.onFirstItemAdded();
+        if (isClickable) {
+            callback.onPeerClicked(get(position));
+        } else {
+            callback.onClickNotAllowed(showToast);
         }
-        array.add(peer);
-        notifyDataSetChanged();
     }
 
-    public synchronized void set(int index, Peer item) {
-        array.set(index, item);
-        notifyDataSetChanged();
+    /**
+     * Returns the peer shown at position, in its last version
+     **/
+    public Peer get(int position) {
+        Row row = differ.getCurrentList().get(position);
+        Peer peer = peers.get(row.uniqueName);
+        return peer != null ? peer : row.peer;
     }
 
-    public Peer get(int i) {
-        return array.get(i);
+    /**
+     * Returns the peer with uniqueName, or null if it is not in the list
+     **/
+    @Nullable
+    public Peer getPeer(String uniqueName) {
+        return peers.get(uniqueName);
     }
 
-    public int indexOf(Peer object) {
-        return array.indexOf(object);
+    public void add(Peer peer) {
+        if (peers.size() == 0) {
+            callback.onFirstItemAdded();
+        }
+        peers.put(peer);
+        publish();
     }
 
-    public int indexOfPeer(String uniqueName) {
-        for (int i = 0; i < array.size(); i++) {
-            Peer peer = array.get(i);
-            String uniqueName1 = peer.getUniqueName();
-            if (uniqueName1.length() > 0 && uniqueName1.equals(uniqueName)) {
-                return i;
+    /**
+     * Adds or updates the found peers and removes the lost ones (by unique name) with a single diff of the list,
+     * the found peers are moved to the position given by ranking.
+     * Returns false if nothing visible has changed, in that case the list is not diffed
+     **/
+    public boolean applyBatch(List<Peer> found, List<String> lost, PeerRanking ranking) {
+        int previousSize = peers.size();
+        boolean changed = false;
+        for (int i = 0; i < lost.size(); i++) {
+            if (peers.remove(lost.get(i)) != -1) {
+                changed = true;
             }
         }
-        return -1;
+        for (int i = 0; i < found.size(); i++) {
+            Peer peer = found.get(i);
+            Peer current = peers.get(peer.getUniqueName());
+            // the new version is kept in any case, but only the name is shown
+            peers.put(peer);
+            if (current == null || !current.getName().equals(peer.getName())) {
+                changed = true;
+            }
+        }
+        // only the peers seen can go up in the ranking, the others keep their order
+        for (int i = 0; i < found.size(); i++) {
+            int position = peers.indexOf(found.get(i).getUniqueName());
+            int newPosition = ranking.positionFor(peers, position);
+            if (newPosition != position) {
+                peers.move(position, newPosition);
+                changed = true;
+            }
+        }
+        if (previousSize == 0 && peers.size() > 0) {
+            callback.onFirstItemAdded();
+        }
+        if (changed) {
+            publish();
+        }
+        if (previousSize > 0 && peers.size() == 0) {
+            callback.onLastItemRemoved();
+        }
+        return changed;
     }
 
-    public synchronized void remove(Peer peer) {
-        if (array.remove(peer)) {
-            notifyDataSetChanged();
+    public void remove(Peer peer) {
+        if (peers.remove(peer.getUniqueName()) != -1) {
+            publish();
         }
-        if (array.size() == 0) {
+        if (peers.size() == 0) {
             // deleting the listview
             callback.onLastItemRemoved();
         }
     }
 
-    public synchronized void clear() {
-        array.clear();
-        notifyDataSetChanged();
-        if (array.size() == 0) {
-            callback.onLastItemRemoved();
+    public void clear() {
+        peers.clear();
+        publish();
+        callback.onLastItemRemoved();
+    }
+
+    private void publish() {
+        ArrayList<Row> rows = new ArrayList<>(peers.size());
+        for (int i = 0; i < peers.size(); i++) {
+            rows.add(new Row(peers.getId(i), peers.get(i)));
         }
+        differ.submitList(rows);
     }
 
+    /**
+     * Number of peers in the list, including the ones not yet shown because the diff is in progress
+     **/
     public int size() {
-        return array.size();
+        return peers.size();
     }
 
     public void setCallback(Callback callback) {
@@ -174,6 +231,36 @@ public class PeerListAdapter extends BaseAdapter {
         return callback;
     }
 
+    public class PeerViewHolder extends RecyclerView.ViewHolder {
+        private final TextView name;
+
+        private PeerViewHolder(@NonNull View itemView) {
+            super(itemView);
+            name = itemView.findViewById(R.id.textRow);
+            itemView.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View v) {
+                    onRowClicked(getAdapterPosition());
+                }
+            });
+        }
+    }
+
+    // immutable, so the diff can read it from the background thread
+    private static class Row {
+        private final long id;
+        private final String uniqueName;
+        private final String name;
+        private final Peer peer;
+
+        private Row(long id, Peer peer) {
+            this.id = id;
+            this.uniqueName = peer.getUniqueName();
+            this.name = peer.getName();
+            this.peer = peer;
+        }
+    }
+
     public static abstract class Callback {
         public void onFirstItemAdded() {
         }
@@ -181,6 +268,9 @@ public class PeerListAdapter extends BaseAdapter {
         public void onLastItemRemoved() {
         }
 
+        public void onPeerClicked(Peer peer) {
+        }
+
         public void onClickNotAllowed(boolean showToast) {
         }
     }
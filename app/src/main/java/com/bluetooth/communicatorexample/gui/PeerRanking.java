@@ -0,0 +1,133 @@
+/*
+ * Copyright 2016 Luca Martino.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copyFile of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bluetooth.communicatorexample.gui;
+
+import com.bluetooth.communicatorexample.tools.TimingWheel;
+
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Ranks the discovered peers by proximity and freshness and expires the ones not seen for expiryMillis.
+ * The BluetoothCommunicator does not give the signal strength of the peers, so the proximity is estimated with the frequency
+ * of their sightings (found or updated), which falls with the signal as more advertisements are missed: each peer has a score
+ * that grows by 1 at each sighting and halves every HALF_LIFE milliseconds. The rank of a peer is log2(score) + time / HALF_LIFE
+ * at its last sighting (plus BONDED_BONUS for the bonded peers), which orders the peers as their current scores do but does not
+ * change with time, so the order of the peers not seen does not have to be recalculated: at each sighting only the peer seen
+ * can move, upwards, and it passes the peers above only if its rank exceeds theirs by at least HYSTERESIS, so the list stays stable.
+ * A peer never seen again falls as the others are seen, and after expiryMillis it is expired by a TimingWheel shared by all the peers.
+ * It has no dependencies on Android so it can be measured on the JVM, it is not thread safe
+ **/
+public class PeerRanking {
+    public static final long DEFAULT_EXPIRY = 30000;
+    public static final long HALF_LIFE = 10000;
+    public static final double BONDED_BONUS = 2;
+    public static final double HYSTERESIS = 0.5;
+    private static final long WHEEL_TICK = 1000;
+    private static final int WHEEL_SLOTS = 64;
+    private final HashMap<String, Stats> stats = new HashMap<>();
+    private final TimingWheel<String> expirations;
+    // the times are relative to the creation, so the ranks keep their precision
+    private final long startMillis;
+    private long expiryMillis = DEFAULT_EXPIRY;
+
+    public PeerRanking(long nowMillis) {
+        this.startMillis = nowMillis;
+        this.expirations = new TimingWheel<>(WHEEL_SLOTS, WHEEL_TICK, nowMillis);
+    }
+
+    public void setExpiry(long expiryMillis) {
+        this.expiryMillis = expiryMillis;
+    }
+
+    /**
+     * Records a sighting of the peer with uniqueName and postpones its expiry
+     **/
+    public void onSighting(String uniqueName, boolean bonded, long nowMillis) {
+        Stats peerStats = stats.get(uniqueName);
+        if (peerStats == null) {
+            peerStats = new Stats();
+            stats.put(uniqueName, peerStats);
+        }
+        double elapsedHalfLives = (double) (nowMillis - peerStats.lastSeen) / HALF_LIFE;
+        peerStats.score = peerStats.score * Math.pow(2, -elapsedHalfLives) + 1;
+        peerStats.lastSeen = nowMillis;
+        peerStats.bonded = bonded;
+        peerStats.rank = Math.log(peerStats.score) / Math.log(2) + (double) (nowMillis - startMillis) / HALF_LIFE + (bonded ? BONDED_BONUS : 0);
+        expirations.schedule(uniqueName, nowMillis + expiryMillis);
+    }
+
+    public void remove(String uniqueName) {
+        stats.remove(uniqueName);
+        expirations.cancel(uniqueName);
+    }
+
+    public void clear() {
+        stats.clear();
+        expirations.clear();
+    }
+
+    public boolean isEmpty() {
+        return stats.isEmpty();
+    }
+
+    /**
+     * Removes the peers not seen for the expiry and adds their unique names to expired
+     **/
+    public void expire(long nowMillis, List<String> expired) {
+        int first = expired.size();
+        expirations.advance(nowMillis, expired);
+        for (int i = first; i < expired.size(); i++) {
+            stats.remove(expired.get(i));
+        }
+    }
+
+    /**
+     * Returns the rank of the peer with uniqueName, higher for the nearest and most recently seen peers
+     **/
+    public double getRank(String uniqueName) {
+        Stats peerStats = stats.get(uniqueName);
+        return peerStats != null ? peerStats.rank : Double.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * Returns the position where the peer at position should be in peers, which is sorted by decreasing rank
+     * (with the tolerance of the hysteresis), searching it with a binary search among the peers above it
+     **/
+    public int positionFor(PeerStore peers, int position) {
+        double threshold = getRank(peers.get(position).getUniqueName()) - HYSTERESIS;
+        // first position in [0, position) whose rank is under threshold
+        int low = 0;
+        int high = position;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (getRank(peers.get(middle).getUniqueName()) < threshold) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+        return low;
+    }
+
+    private static class Stats {
+        private double score = 0;
+        private long lastSeen = 0;
+        private double rank;
+        private boolean bonded;
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2016 Luca Martino.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copyFile of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bluetooth.communicatorexample.gui;
+
+import com.bluetooth.communicator.Peer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Peers shown in a list, in the order in which they have been added, indexed by unique name: the search, the addition and
+ * the update of a peer take constant time, even with hundreds of peers discovered.
+ * Each entry keeps its position in the list; a removal shifts the following entries (a single array copy) and their positions
+ * are recalculated only when one of them is searched, so a series of removals costs a single pass.
+ * Each peer receives an id that does not change while the peer remains in the store, to be used as the id of its row.
+ * It has no dependencies on the views so it can be measured on the JVM, it is not thread safe
+ **/
+public class PeerStore {
+    private final HashMap<String, Entry> entries = new HashMap<>();
+    private final ArrayList<Entry> order = new ArrayList<>();
+    // the positions of the entries before this index are correct
+    private int validPositions = 0;
+    private long lastId = 0;
+
+    public int size() {
+        return order.size();
+    }
+
+    public Peer get(int position) {
+        return order.get(position).peer;
+    }
+
+    public long getId(int position) {
+        return order.get(position).id;
+    }
+
+    /**
+     * Returns the peer with uniqueName, or null if there is not
+     **/
+    public Peer get(String uniqueName) {
+        Entry entry = entries.get(uniqueName);
+        return entry != null ? entry.peer : null;
+    }
+
+    public boolean contains(String uniqueName) {
+        return entries.containsKey(uniqueName);
+    }
+
+    /**
+     * Returns the position of the peer with uniqueName, or -1 if there is not
+     **/
+    public int indexOf(String uniqueName) {
+        Entry entry = entries.get(uniqueName);
+        if (entry == null) {
+            return -1;
+        }
+        return positionOf(entry);
+    }
+
+    /**
+     * Adds peer at the end of the list, or replaces the peer with the same unique name keeping its position and its id.
+     * Returns the position of the peer
+     **/
+    public int put(Peer peer) {
+        Entry entry = entries.get(peer.getUniqueName());
+        if (entry != null) {
+            entry.peer = peer;
+            return positionOf(entry);
+        }
+        entry = new Entry(peer, ++lastId);
+        entry.position = order.size();
+        if (validPositions == order.size()) {
+            validPositions++;
+        }
+        order.add(entry);
+        entries.put(peer.getUniqueName(), entry);
+        return entry.position;
+    }
+
+    /**
+     * Replaces the peer at position with peer, which keeps the id of the row
+     **/
+    public void set(int position, Peer peer) {
+        Entry entry = order.get(position);
+        String uniqueName = peer.getUniqueName();
+        if (!entry.peer.getUniqueName().equals(uniqueName)) {
+            Entry old = entries.get(uniqueName);
+            if (old != null) {
+                // the unique name can be only in one position
+                removeAt(positionOf(old));
+            }
+            entries.remove(entry.peer.getUniqueName());
+            entries.put(uniqueName, entry);
+        }
+        entry.peer = peer;
+    }
+
+    /**
+     * Removes the peer with uniqueName and returns its position, or -1 if there is not
+     **/
+    public int remove(String uniqueName) {
+        Entry entry = entries.get(uniqueName);
+        if (entry == null) {
+            return -1;
+        }
+        int position = positionOf(entry);
+        removeAt(position);
+        return position;
+    }
+
+    /**
+     * Moves the peer at from to the position to, shifting the peers in between
+     **/
+    public void move(int from, int to) {
+        if (from != to) {
+            order.add(to, order.remove(from));
+            validPositions = Math.min(validPositions, Math.min(from, to));
+        }
+    }
+
+    private void removeAt(int position) {
+        Entry entry = order.remove(position);
+        entries.remove(entry.peer.getUniqueName());
+        validPositions = Math.min(validPositions, position);
+    }
+
+    public void clear() {
+        entries.clear();
+        order.clear();
+        validPositions = 0;
+    }
+
+    /**
+     * Returns a copy of the peers in the order of the list
+     **/
+    public ArrayList<Peer> toList() {
+        ArrayList<Peer> peers = new ArrayList<>(order.size());
+        for (int i = 0; i < order.size(); i++) {
+            peers.add(order.get(i).peer);
+        }
+        return peers;
+    }
+
+    private int positionOf(Entry entry) {
+        if (entry.position >= validPositions) {
+            for (int i = validPositions; i < order.size(); i++) {
+                order.get(i).position = i;
+            }
+            validPositions = order.size();
+        }
+        return entry.position;
+    }
+
+    private static class Entry {
+        private Peer peer;
+        private final long id;
+        private int position;
+
+        private Entry(Peer peer, long id) {
+            this.peer = peer;
+            this.id = id;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2016 Luca Martino.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copyFile of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bluetooth.communicatorexample.gui;
+
+import android.widget.TextView;
+
+import androidx.annotation.Nullable;
+import androidx.core.text.PrecomputedTextCompat;
+import androidx.core.widget.TextViewCompat;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Measures the text of the messages on a background thread as soon as they arrive (with PrecomputedTextCompat),
+ * so that binding a message bubble only has to apply the cached result instead of measuring the text on the UI thread.
+ * The text metrics are read from the first bound TextView of each view type (or before the first bind from a TextView set
+ * with setDefaultMetrics), all the cached results are discarded when the width of the list or the font scale changes,
+ * because the metrics (and the bubble size) are no longer valid
+ **/
+public class TextLayoutCache {
+    private static final int MAX_ENTRIES = 200;
+    private static final int VIEW_TYPES = 2;
+    private final Executor executor;
+    private final LinkedHashMap<Integer, PrecomputedTextCompat> cache = new LinkedHashMap<Integer, PrecomputedTextCompat>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, PrecomputedTextCompat> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    // positions submitted to the executor and not measured yet
+    private final HashSet<Integer> pending = new HashSet<>();
+    private final PrecomputedTextCompat.Params[] params = new PrecomputedTextCompat.Params[VIEW_TYPES];
+    private int width = -1;
+    private float fontScale = -1;
+    // incremented at each invalidation, the results computed before are discarded
+    private int generation = 0;
+
+    /**
+     * The texts are measured with executor, which can be shared by more caches
+     **/
+    public TextLayoutCache(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Must be called on the main thread, reads the text metrics of viewType from textView if they are not known yet,
+     * so the texts can be measured before the first bind (textView must be configured like the bound ones)
+     **/
+    public void setDefaultMetrics(int viewType, TextView textView) {
+        synchronized (this) {
+            if (params[viewType] != null) {
+                return;
+            }
+        }
+        PrecomputedTextCompat.Params textParams = TextViewCompat.getTextMetricsParams(textView);
+        synchronized (this) {
+            if (params[viewType] == null) {
+                params[viewType] = textParams;
+            }
+        }
+    }
+
+    /**
+     * Must be called on the main thread before binding a text, reads the text metrics of textView if they are not known
+     * or if width or fontScale have changed (in this case the cache is invalidated)
+     **/
+    public void updateMetrics(int viewType, TextView textView, int width, float fontScale) {
+        synchronized (this) {
+            // the first width and font scale don't invalidate the texts measured with the default metrics
+            if (this.width != -1 && (width != this.width || fontScale != this.fontScale)) {
+                invalidate();
+            }
+            this.width = width;
+            this.fontScale = fontScale;
+            if (params[viewType] != null) {
+                return;
+            }
+        }
+        PrecomputedTextCompat.Params textParams = TextViewCompat.getTextMetricsParams(textView);
+        synchronized (this) {
+            params[viewType] = textParams;
+        }
+    }
+
+    /**
+     * Starts the measurement of the text of the message in position, does nothing if the metrics of viewType are not known yet
+     **/
+    public void precompute(final int position, final String text, int viewType) {
+        final PrecomputedTextCompat.Params textParams;
+        final int requestGeneration;
+        synchronized (this) {
+            textParams = params[viewType];
+            requestGeneration = generation;
+            if (textParams == null) {
+                return;
+            }
+            pending.add(position);
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                PrecomputedTextCompat precomputedText = PrecomputedTextCompat.create(text, textParams);
+                synchronized (TextLayoutCache.this) {
+                    if (requestGeneration == generation) {
+                        pending.remove(position);
+                        cache.put(position, precomputedText);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns whether the text of the message in position is already measured or being measured
+     **/
+    public synchronized boolean contains(int position) {
+        return cache.containsKey(position) || pending.contains(position);
+    }
+
+    /**
+     * Returns the measured text of the message in position, or null if it is not ready or was measured with different metrics
+     **/
+    @Nullable
+    public synchronized PrecomputedTextCompat get(int position, int viewType) {
+        PrecomputedTextCompat precomputedText = cache.get(position);
+        if (precomputedText != null && params[viewType] != null && precomputedText.getParams().equals(params[viewType])) {
+            return precomputedText;
+        }
+        return null;
+    }
+
+    /**
+     * Discards the measured texts keeping the metrics, for example when the positions are reused
+     **/
+    public synchronized void clear() {
+        generation++;
+        cache.clear();
+        pending.clear();
+    }
+
+    public synchronized void invalidate() {
+        clear();
+        for (int i = 0; i < params.length; i++) {
+            params[i] = null;
+        }
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2016 Luca Martino.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copyFile of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bluetooth.communicatorexample.storage;
+
+import com.bluetooth.communicator.Message;
+import com.bluetooth.communicator.Peer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Persistent append-only log of the messages of the conversation. Each message is written once as a length-prefixed
+ * binary record in a memory-mapped data file, and its offset is appended to a memory-mapped index file, so
+ * any record can be read back in O(1) and reopening the log only reads the header, whatever the number of messages.
+ * <p>
+ * Data file: header (magic, version, record count, end of the records) followed by the records, each one is
+ * [int length][byte flags][long timestamp][int sender id][short + header][int + text] (strings in UTF-8).
+ * The senders are stored once in the SenderRegistry of the log, the records contain only their id (NO_SENDER for our messages).
+ * The count in the header is updated after the record and its offset are written, so a record interrupted by a crash is ignored
+ **/
+public class ConversationLog implements Closeable {
+    private static final int MAGIC = 0x42434c47;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 16;
+    private static final int COUNT_POSITION = 8;
+    private static final int END_POSITION = 12;
+    private static final int INITIAL_DATA_CAPACITY = 256 * 1024;
+    private static final int INITIAL_INDEX_CAPACITY = 16 * 1024;
+    private static final byte FLAG_MINE = 1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private final RandomAccessFile dataFile;
+    private final RandomAccessFile indexFile;
+    private final FileChannel dataChannel;
+    private final FileChannel indexChannel;
+    private final SenderRegistry senderRegistry;
+    private final CopyOnWriteArrayList<ClearListener> clearListeners = new CopyOnWriteArrayList<>();
+    private MappedByteBuffer data;
+    private MappedByteBuffer index;
+    private int count;
+    private int end;
+
+    /**
+     * Opens the log stored in file (the index and the senders are stored in files with the same name and the .idx and .senders extensions),
+     * creating it if it does not exist
+     **/
+    public ConversationLog(File file) throws IOException {
+        senderRegistry = new SenderRegistry(new File(file.getPath() + ".senders"));
+        dataFile = new RandomAccessFile(file, "rw");
+        indexFile = new RandomAccessFile(new File(file.getPath() + ".idx"), "rw");
+        dataChannel = dataFile.getChannel();
+        indexChannel = indexFile.getChannel();
+        data = dataChannel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(dataChannel.size(), INITIAL_DATA_CAPACITY));
+        index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(indexChannel.size(), INITIAL_INDEX_CAPACITY));
+        if (data.getInt(0) == MAGIC && data.getInt(4) == VERSION && isValid(data.getInt(COUNT_POSITION), data.getInt(END_POSITION))) {
+            count = data.getInt(COUNT_POSITION);
+            end = data.getInt(END_POSITION);
+        } else {
+            // new or unreadable log, we start from scratch
+            reset();
+        }
+    }
+
+    private boolean isValid(int count, int end) {
+        return count >= 0 && (long) count * 4 <= index.capacity() && end >= HEADER_SIZE && end <= data.capacity();
+    }
+
+    private void reset() {
+        data.putInt(0, MAGIC);
+        data.putInt(4, VERSION);
+        count = 0;
+        end = HEADER_SIZE;
+        commit();
+    }
+
+    private void commit() {
+        data.putInt(COUNT_POSITION, count);
+        data.putInt(END_POSITION, end);
+    }
+
+    /**
+     * Appends the message and returns its position
+     **/
+    public synchronized int append(Message message, boolean mine) {
+        Peer sender = message.getSender();
+        int senderId = sender != null ? senderRegistry.register(sender.getUniqueName(), sender.getName()) : SenderRegistry.NO_SENDER;
+        byte[] header = message.getHeader().getBytes(UTF_8);
+        byte[] text = message.getText().getBytes(UTF_8);
+        int length = 1 + 8 + 4 + 2 + header.length + 4 + text.length;
+
+        ensureDataCapacity(end + 4 + length);
+        ensureIndexCapacity((count + 1) * 4);
+        data.position(end);
+        data.putInt(length);
+        data.put(mine ? FLAG_MINE : 0);
+        data.putLong(System.currentTimeMillis());
+        data.putInt(senderId);
+        data.putShort((short) header.length);
+        data.put(header);
+        data.putInt(text.length);
+        data.put(text);
+        index.putInt(count * 4, end);
+
+        int position = count;
+        end += 4 + length;
+        count++;
+        commit();
+        return position;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Reads only the flags of the record, cheaper than get(position)
+     **/
+    public synchronized boolean isMine(int position) {
+        checkPosition(position);
+        return (data.get(index.getInt(position * 4) + 4) & FLAG_MINE) != 0;
+    }
+
+    public synchronized Record get(int position) {
+        checkPosition(position);
+        data.position(index.getInt(position * 4) + 4);
+        boolean mine = (data.get() & FLAG_MINE) != 0;
+        long timestamp = data.getLong();
+        int senderId = data.getInt();
+        byte[] header = new byte[data.getShort()];
+        data.get(header);
+        byte[] text = new byte[data.getInt()];
+        data.get(text);
+        return new Record(mine, timestamp, senderId, new String(header, UTF_8), new String(text, UTF_8));
+    }
+
+    public SenderRegistry getSenderRegistry() {
+        return senderRegistry;
+    }
+
+    /**
+     * Deletes all the records, the positions will be reused by the next messages, so the ClearListeners must discard
+     * what they know about the old ones
+     **/
+    public void clear() {
+        synchronized (this) {
+            reset();
+        }
+        for (ClearListener listener : clearListeners) {
+            listener.onCleared();
+        }
+    }
+
+    public void addClearListener(ClearListener listener) {
+        clearListeners.add(listener);
+    }
+
+    public void removeClearListener(ClearListener listener) {
+        clearListeners.remove(listener);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        data.force();
+        index.force();
+        dataChannel.close();
+        indexChannel.close();
+        dataFile.close();
+        indexFile.close();
+    }
+
+    private void checkPosition(int position) {
+        if (position < 0 || position >= count) {
+            throw new IndexOutOfBoundsException("position " + position + ", size " + count);
+        }
+    }
+
+    private void ensureDataCapacity(int capacity) {
+        if (capacity > data.capacity()) {
+            data = remap(dataChannel, data.capacity(), capacity);
+        }
+    }
+
+    private void ensureIndexCapacity(int capacity) {
+        if (capacity > index.capacity()) {
+            index = remap(indexChannel, index.capacity(), capacity);
+        }
+    }
+
+    private static MappedByteBuffer remap(FileChannel channel, int oldCapacity, int minCapacity) {
+        long newCapacity = Math.max((long) oldCapacity * 2, minCapacity);
+        if (newCapacity > Integer.MAX_VALUE) {
+            throw new IllegalStateException("conversation log too big");
+        }
+        try {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, newCapacity);
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot grow the conversation log", e);
+        }
+    }
+
+    public interface ClearListener {
+        /**
+         * Called on the thread that has cleared the log
+         **/
+        void onCleared();
+    }
+
+    public static class Record {
+        private final boolean mine;
+        private final long timestamp;
+        private final int senderId;
+        private final String header;
+        private final String text;
+
+        private Record(boolean mine, long timestamp, int senderId, String header, String text) {
+            this.mine = mine;
+            this.timestamp = timestamp;
+            this.senderId = senderId;
+            this.header = header;
+            this.text = text;
+        }
+
+        public boolean isMine() {
+            return mine;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * Returns the id of the sender in the SenderRegistry of the log, NO_SENDER for the messages sent by this device
+         **/
+        public int getSenderId() {
+            return senderId;
+        }
+
+        public String getHeader() {
+            return header;
+        }
+
+        public String getText() {
+            return text;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2016 Luca Martino.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copyFile of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bluetooth.communicatorexample.storage;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps in memory only a window of decoded messages around the range visible in the RecyclerView.
+ * The messages are decoded from the ConversationLog in pages of PAGE_SIZE records, when the decoded pages exceed the
+ * memory budget the pages farthest from the visible range are evicted, and they are decoded again if the user scrolls back to them.
+ * The page beyond each end of the visible range is loaded in advance, when the range gets near to it, and the PageListener
+ * is notified of the records of each loaded page
+ **/
+public class PagedMessageSource {
+    public static final int PAGE_SIZE = 50;
+    public static final int PREFETCH_DISTANCE = PAGE_SIZE / 2;
+    public static final int DEFAULT_MEMORY_BUDGET = 512 * 1024;  // bytes
+    // rough estimation of the memory used by a decoded record, excluding the characters
+    private static final int RECORD_OVERHEAD = 120;
+    private final ConversationLog log;
+    private final HashMap<Integer, Page> pages = new HashMap<>();
+    private int memoryBudget;
+    private int usedMemory = 0;
+    private int firstVisible = 0;
+    private int lastVisible = 0;
+    @Nullable
+    private PageListener pageListener;
+    // stats
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    public PagedMessageSource(ConversationLog log) {
+        this(log, DEFAULT_MEMORY_BUDGET);
+    }
+
+    public PagedMessageSource(ConversationLog log, int memoryBudget) {
+        this.log = log;
+        this.memoryBudget = memoryBudget;
+    }
+
+    public int size() {
+        return log.size();
+    }
+
+    public boolean isMine(int position) {
+        Page page = pages.get(position / PAGE_SIZE);
+        if (page != null && position - page.start < page.records.size()) {
+            return page.records.get(position - page.start).isMine();
+        }
+        // we don't decode a page just for the flags
+        return log.isMine(position);
+    }
+
+    public ConversationLog.Record get(int position) {
+        int pageIndex = position / PAGE_SIZE;
+        Page page = pages.get(pageIndex);
+        if (page != null && position - page.start < page.records.size()) {
+            hits++;
+            return page.records.get(position - page.start);
+        }
+        misses++;
+        if (page == null) {
+            page = new Page(pageIndex * PAGE_SIZE);
+            pages.put(pageIndex, page);
+        }
+        load(page);
+        ConversationLog.Record record = page.records.get(position - page.start);
+        evictIfNeeded(pageIndex);
+        return record;
+    }
+
+    // loads the page up to the end of the log (the last page fills as new messages are appended)
+    private void load(Page page) {
+        int loadStart = page.records.size();
+        int pageEnd = Math.min(page.start + PAGE_SIZE, log.size());
+        for (int i = page.start + loadStart; i < pageEnd; i++) {
+            ConversationLog.Record record = log.get(i);
+            page.records.add(record);
+            int recordSize = estimateSize(record);
+            page.size += recordSize;
+            usedMemory += recordSize;
+        }
+        if (pageListener != null && page.records.size() > loadStart) {
+            pageListener.onPageLoaded(page.start + loadStart, page.records.subList(loadStart, page.records.size()));
+        }
+    }
+
+    /**
+     * Loads the page that contains position, if it is not loaded yet
+     **/
+    public void prefetch(int position) {
+        if (position < 0 || position >= log.size()) {
+            return;
+        }
+        int pageIndex = position / PAGE_SIZE;
+        Page page = pages.get(pageIndex);
+        if (page != null && position - page.start < page.records.size()) {
+            return;
+        }
+        if (page == null) {
+            page = new Page(pageIndex * PAGE_SIZE);
+            pages.put(pageIndex, page);
+        }
+        load(page);
+        evictIfNeeded(pageIndex);
+    }
+
+    /**
+     * Must be called when the visible range of the RecyclerView changes, the eviction keeps the pages nearest to this range
+     **/
+    public void setVisibleRange(int firstVisible, int lastVisible) {
+        this.firstVisible = firstVisible;
+        this.lastVisible = lastVisible;
+        evictIfNeeded(-1);
+        // the pages are loaded PREFETCH_DISTANCE records before they become visible
+        prefetch(firstVisible - PREFETCH_DISTANCE);
+        prefetch(lastVisible + PREFETCH_DISTANCE);
+    }
+
+    public void setPageListener(@Nullable PageListener pageListener) {
+        this.pageListener = pageListener;
+    }
+
+    private void evictIfNeeded(int pageInUse) {
+        while (usedMemory > memoryBudget && pages.size() > 1) {
+            // the pages loaded in advance are kept like the visible ones, otherwise they would be loaded again at each scroll
+            int firstVisiblePage = Math.max(0, firstVisible - PREFETCH_DISTANCE) / PAGE_SIZE;
+            int lastVisiblePage = (lastVisible + PREFETCH_DISTANCE) / PAGE_SIZE;
+            Map.Entry<Integer, Page> farthest = null;
+            int maxDistance = -1;
+            for (Map.Entry<Integer, Page> entry : pages.entrySet()) {
+                int pageIndex = entry.getKey();
+                if (pageIndex == pageInUse) {
+                    continue;
+                }
+                int distance = Math.max(firstVisiblePage - pageIndex, pageIndex - lastVisiblePage);
+                if (distance > maxDistance) {
+                    maxDistance = distance;
+                    farthest = entry;
+                }
+            }
+            if (farthest == null || maxDistance <= 0) {
+                return;  // only visible (or about to be visible) pages are left, we don't evict them even if they exceed the budget
+            }
+            usedMemory -= farthest.getValue().size;
+            pages.remove(farthest.getKey());
+            evictions++;
+        }
+    }
+
+    /**
+     * Releases all the decoded pages
+     **/
+    public void clear() {
+        pages.clear();
+        usedMemory = 0;
+    }
+
+    private static int estimateSize(ConversationLog.Record record) {
+        return RECORD_OVERHEAD + (record.getText().length() + record.getHeader().length()) * 2;
+    }
+
+    public int getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public void setMemoryBudget(int memoryBudget) {
+        this.memoryBudget = memoryBudget;
+        evictIfNeeded(-1);
+    }
+
+    public int getUsedMemory() {
+        return usedMemory;
+    }
+
+    public int getLoadedPagesCount() {
+        return pages.size();
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public interface PageListener {
+        /**
+         * Called on the main thread when the records starting at position have been decoded
+         **/
+        void onPageLoaded(int position, List<ConversationLog.Record> records);
+    }
+
+    private static class Page {
+        private final int start;
+        private final ArrayList<ConversationLog.Record> records = new ArrayList<>(PAGE_SIZE);
+        private int size = 0;
+
+        private Page(int start) {
+            this.start = start;
+        }
+    }
+}
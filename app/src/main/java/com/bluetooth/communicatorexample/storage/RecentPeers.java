@@ -0,0 +1,292 @@
+/*
+ * Copyright 2016 Luca Martino.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copyFile of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bluetooth.communicatorexample.storage;
+
+import androidx.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Small cache of the peers connected recently (at most MAX_PEERS, the least recent is forgotten), with the outcome and the
+ * duration of their last connection, used to reconnect to the most likely peer at launch without waiting for the discovery.
+ * It also keeps the last MAX_SAMPLES times from the launch to the first connection, separately for the launches in which the
+ * cache has been used and for the other ones, to compare them, and whether the reconnection at launch is enabled (it can be
+ * disabled to collect the times without the cache).
+ * The file is rewritten at each change (it is less than a kilobyte) in a temporary file then renamed, so a crash leaves the old version
+ **/
+public class RecentPeers {
+    public static final int MAX_PEERS = 8;
+    public static final int MAX_SAMPLES = 32;
+    private static final int VERSION = 2;
+    private final File file;
+    // most recent first
+    private final ArrayList<Entry> entries = new ArrayList<>();
+    private final ArrayList<Long> firstConnectionWithCache = new ArrayList<>();
+    private final ArrayList<Long> firstConnectionWithoutCache = new ArrayList<>();
+    private boolean reconnectEnabled = true;
+
+    public RecentPeers(File file) {
+        this.file = file;
+        if (file.exists()) {
+            load();
+        }
+    }
+
+    private void load() {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (input.readInt() != VERSION) {
+                return;
+            }
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                Entry entry = new Entry(input.readUTF(), input.readUTF(), input.readUTF());
+                entry.lastAttemptTime = input.readLong();
+                entry.successes = input.readInt();
+                entry.failures = input.readInt();
+                entry.lastSucceeded = input.readBoolean();
+                entry.lastConnectMillis = input.readLong();
+                entries.add(entry);
+            }
+            readSamples(input, firstConnectionWithCache);
+            readSamples(input, firstConnectionWithoutCache);
+            reconnectEnabled = input.readBoolean();
+        } catch (IOException e) {
+            // the cache is only an optimization, what has been read is kept
+        }
+    }
+
+    private static void readSamples(DataInputStream input, ArrayList<Long> samples) throws IOException {
+        int count = input.readInt();
+        for (int i = 0; i < count; i++) {
+            samples.add(input.readLong());
+        }
+    }
+
+    private void save() {
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)))) {
+            output.writeInt(VERSION);
+            output.writeInt(entries.size());
+            for (int i = 0; i < entries.size(); i++) {
+                Entry entry = entries.get(i);
+                output.writeUTF(entry.uniqueName);
+                output.writeUTF(entry.name);
+                output.writeUTF(entry.address);
+                output.writeLong(entry.lastAttemptTime);
+                output.writeInt(entry.successes);
+                output.writeInt(entry.failures);
+                output.writeBoolean(entry.lastSucceeded);
+                output.writeLong(entry.lastConnectMillis);
+            }
+            writeSamples(output, firstConnectionWithCache);
+            writeSamples(output, firstConnectionWithoutCache);
+            output.writeBoolean(reconnectEnabled);
+        } catch (IOException e) {
+            // the cache of this session remains valid in memory
+            return;
+        }
+        if (!temporaryFile.renameTo(file)) {
+            temporaryFile.delete();
+        }
+    }
+
+    private static void writeSamples(DataOutputStream output, ArrayList<Long> samples) throws IOException {
+        output.writeInt(samples.size());
+        for (int i = 0; i < samples.size(); i++) {
+            output.writeLong(samples.get(i));
+        }
+    }
+
+    /**
+     * Records a successful connection with the peer, connectMillis is the time from the connection request (or -1 if unknown)
+     **/
+    public synchronized void recordSuccess(String uniqueName, String name, String address, long connectMillis) {
+        Entry entry = take(uniqueName, name);
+        entry.name = name;
+        if (address.length() > 0) {
+            entry.address = address;
+        }
+        entry.lastAttemptTime = System.currentTimeMillis();
+        entry.successes++;
+        entry.lastSucceeded = true;
+        if (connectMillis >= 0) {
+            entry.lastConnectMillis = connectMillis;
+        }
+        save();
+    }
+
+    /**
+     * Records a failed connection with a peer already in the cache (the peers never connected are not added)
+     **/
+    public synchronized void recordFailure(String uniqueName) {
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            if (entry.uniqueName.equals(uniqueName)) {
+                entry.lastAttemptTime = System.currentTimeMillis();
+                entry.failures++;
+                entry.lastSucceeded = false;
+                save();
+                return;
+            }
+        }
+    }
+
+    // removes the entry of uniqueName (creating it if missing) and puts it first
+    private Entry take(String uniqueName, String name) {
+        Entry entry = null;
+        for (int i = 0; i < entries.size(); i++) {
+            if (entries.get(i).uniqueName.equals(uniqueName)) {
+                entry = entries.remove(i);
+                break;
+            }
+        }
+        if (entry == null) {
+            entry = new Entry(uniqueName, name, "");
+            if (entries.size() == MAX_PEERS) {
+                entries.remove(entries.size() - 1);
+            }
+        }
+        entries.add(0, entry);
+        return entry;
+    }
+
+    /**
+     * Returns the peer to which a reconnection is most likely to succeed: the most recent one whose last connection
+     * succeeded, otherwise the most recent with the best ratio of successes, or null if the cache is empty
+     **/
+    @Nullable
+    public synchronized Entry getMostLikely() {
+        Entry best = null;
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            if (entry.lastSucceeded) {
+                return entry;
+            }
+            if (best == null || entry.getSuccessRate() > best.getSuccessRate()) {
+                best = entry;
+            }
+        }
+        return best;
+    }
+
+    public synchronized ArrayList<Entry> getEntries() {
+        return new ArrayList<>(entries);
+    }
+
+    public synchronized void recordTimeToFirstConnection(long millis, boolean withCache) {
+        ArrayList<Long> samples = withCache ? firstConnectionWithCache : firstConnectionWithoutCache;
+        if (samples.size() == MAX_SAMPLES) {
+            samples.remove(0);
+        }
+        samples.add(millis);
+        save();
+    }
+
+    /**
+     * Returns the median of the times to the first connection of the launches with or without the cache, or -1 if there are not
+     **/
+    public synchronized long getMedianTimeToFirstConnection(boolean withCache) {
+        ArrayList<Long> samples = withCache ? firstConnectionWithCache : firstConnectionWithoutCache;
+        if (samples.isEmpty()) {
+            return -1;
+        }
+        long[] sorted = new long[samples.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = samples.get(i);
+        }
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    public synchronized int getTimeToFirstConnectionCount(boolean withCache) {
+        return withCache ? firstConnectionWithCache.size() : firstConnectionWithoutCache.size();
+    }
+
+    public synchronized boolean isReconnectEnabled() {
+        return reconnectEnabled;
+    }
+
+    public synchronized void setReconnectEnabled(boolean enabled) {
+        if (reconnectEnabled != enabled) {
+            reconnectEnabled = enabled;
+            save();
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        save();
+    }
+
+    public static class Entry {
+        private final String uniqueName;
+        private String name;
+        // empty if unknown
+        private String address;
+        private long lastAttemptTime = 0;
+        private int successes = 0;
+        private int failures = 0;
+        private boolean lastSucceeded = false;
+        private long lastConnectMillis = -1;
+
+        private Entry(String uniqueName, String name, String address) {
+            this.uniqueName = uniqueName;
+            this.name = name;
+            this.address = address;
+        }
+
+        public String getUniqueName() {
+            return uniqueName;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public long getLastAttemptTime() {
+            return lastAttemptTime;
+        }
+
+        public boolean hasLastSucceeded() {
+            return lastSucceeded;
+        }
+
+        /**
+         * Duration of the last successful connection in milliseconds, or -1 if unknown
+         **/
+        public long getLastConnectMillis() {
+            return lastConnectMillis;
+        }
+
+        public double getSuccessRate() {
+            return (double) successes / (successes + failures + 1);
+        }
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2016 Luca Martino.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copyFile of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bluetooth.communicatorexample.storage;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Incremental inverted index of the words of the messages in the ConversationLog, used to find old messages without scanning them.
+ * Each word (lowercase letters and digits) maps to the ascending list of the positions of the messages that contain it,
+ * the words are kept sorted, so a prefix query only visits the words that start with the prefix.
+ * The index is persisted in an append-only journal next to the log (for each message [int position][int words count][UTF words]),
+ * replayed when the index is opened and completed with the messages of the log not yet indexed.
+ * All the indexing and the queries run on a single background thread, the results are returned on the main thread
+ **/
+public class SearchIndex {
+    private final ConversationLog log;
+    private final File file;
+    private final ExecutorService worker = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // the following fields are used only by the worker thread
+    private final TreeMap<String, Postings> terms = new TreeMap<>();
+    private DataOutputStream journal;
+    private int lastIndexed = -1;
+
+    public SearchIndex(ConversationLog log, File file) {
+        this.log = log;
+        this.file = file;
+        // the positions of a cleared log are reused, the old ones must no longer be found
+        log.addClearListener(new ConversationLog.ClearListener() {
+            @Override
+            public void onCleared() {
+                clear();
+            }
+        });
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                open();
+            }
+        });
+    }
+
+    private void open() {
+        if (file.exists()) {
+            load();
+        }
+        if (lastIndexed >= log.size()) {
+            // the log has been cleared or recreated, the journal no longer matches it
+            terms.clear();
+            lastIndexed = -1;
+            file.delete();
+        }
+        try {
+            journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        } catch (IOException e) {
+            journal = null;  // the index will work only in memory
+        }
+        // messages appended to the log but not indexed (for example if the app was killed before the journal was written)
+        int size = log.size();
+        for (int i = lastIndexed + 1; i < size; i++) {
+            add(i, log.get(i).getText());
+        }
+    }
+
+    private void load() {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                int position = input.readInt();
+                int count = input.readInt();
+                for (int i = 0; i < count; i++) {
+                    addPosting(input.readUTF(), position);
+                }
+                lastIndexed = position;
+            }
+        } catch (EOFException e) {
+            // end of the journal (a message truncated by a crash will be indexed again from the log)
+        } catch (IOException e) {
+            // we keep the messages read until now
+        }
+    }
+
+    /**
+     * Indexes the text of the message in position (on the background thread), must be called in order of position
+     **/
+    public void index(final int position, final String text) {
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (position > lastIndexed) {
+                    add(position, text);
+                }
+            }
+        });
+    }
+
+    private void add(int position, String text) {
+        ArrayList<String> words = tokenize(text);
+        for (int i = 0; i < words.size(); i++) {
+            addPosting(words.get(i), position);
+        }
+        lastIndexed = position;
+        if (journal != null) {
+            try {
+                journal.writeInt(position);
+                journal.writeInt(words.size());
+                for (int i = 0; i < words.size(); i++) {
+                    journal.writeUTF(words.get(i));
+                }
+                journal.flush();
+            } catch (IOException e) {
+                journal = null;
+            }
+        }
+    }
+
+    private void addPosting(String word, int position) {
+        Postings postings = terms.get(word);
+        if (postings == null) {
+            postings = new Postings();
+            terms.put(word, postings);
+        }
+        postings.add(position);
+    }
+
+    /**
+     * Searches the messages that contain, for each word of query, a word that starts with it; callback receives
+     * on the main thread their positions in ascending order, to which the RecyclerView can scroll
+     **/
+    public void search(final String query, final Callback callback) {
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                final int[] positions = find(query);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onResults(query, positions);
+                    }
+                });
+            }
+        });
+    }
+
+    private int[] find(String query) {
+        ArrayList<String> prefixes = tokenize(query);
+        if (prefixes.isEmpty()) {
+            return new int[0];
+        }
+        BitSet result = null;
+        for (int i = 0; i < prefixes.size(); i++) {
+            BitSet matches = new BitSet(lastIndexed + 1);
+            String prefix = prefixes.get(i);
+            SortedMap<String, Postings> range = terms.subMap(prefix, prefix + Character.MAX_VALUE);
+            for (Map.Entry<String, Postings> entry : range.entrySet()) {
+                Postings postings = entry.getValue();
+                for (int j = 0; j < postings.size; j++) {
+                    matches.set(postings.positions[j]);
+                }
+            }
+            if (result == null) {
+                result = matches;
+            } else {
+                result.and(matches);
+            }
+            if (result.isEmpty()) {
+                break;
+            }
+        }
+        int[] positions = new int[result.cardinality()];
+        int j = 0;
+        for (int position = result.nextSetBit(0); position >= 0; position = result.nextSetBit(position + 1)) {
+            positions[j++] = position;
+        }
+        return positions;
+    }
+
+    /**
+     * Splits text in lowercase words of letters and digits, without duplicates
+     **/
+    static ArrayList<String> tokenize(String text) {
+        ArrayList<String> words = new ArrayList<>();
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                word.append(Character.toLowerCase(c));
+            } else if (word.length() > 0) {
+                String string = word.toString();
+                if (!words.contains(string)) {
+                    words.add(string);
+                }
+                word.setLength(0);
+            }
+        }
+        return words;
+    }
+
+    /**
+     * Deletes the index and its journal, it is called automatically when the ConversationLog is cleared
+     **/
+    public void clear() {
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                terms.clear();
+                lastIndexed = -1;
+                try {
+                    if (journal != null) {
+                        journal.close();
+                    }
+                    journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, false)));
+                } catch (IOException e) {
+                    journal = null;
+                }
+            }
+        });
+    }
+
+    // growable list of ascending positions
+    private static class Postings {
+        private int[] positions = new int[2];
+        private int size = 0;
+
+        private void add(int position) {
+            if (size > 0 && positions[size - 1] == position) {
+                return;
+            }
+            if (size == positions.length) {
+                int[] newPositions = new int[size * 2];
+                System.arraycopy(positions, 0, newPositions, 0, size);
+                positions = newPositions;
+            }
+            positions[size++] = position;
+        }
+    }
+
+    public interface Callback {
+        void onResults(String query, int[] positions);
+    }
+}
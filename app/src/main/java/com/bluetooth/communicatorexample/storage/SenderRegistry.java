@@ -0,0 +1,116 @@
+/*
+ * Copyright 2016 Luca Martino.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copyFile of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bluetooth.communicatorexample.storage;
+
+import androidx.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Gives each sender (identified by its unique name) a small int id when its first message is ingested, so the messages
+ * store only the id and comparing senders is an int comparison. The names are kept once here, in memory and in an
+ * append-only file (each entry is [UTF unique name][UTF name], a later entry with the same unique name updates the name)
+ **/
+public class SenderRegistry {
+    public static final int NO_SENDER = -1;
+    private final File file;
+    private final HashMap<String, Integer> ids = new HashMap<>();
+    private final ArrayList<String> uniqueNames = new ArrayList<>();
+    private final ArrayList<String> names = new ArrayList<>();
+
+    public SenderRegistry(File file) {
+        this.file = file;
+        if (file.exists()) {
+            load();
+        }
+    }
+
+    private void load() {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                String uniqueName = input.readUTF();
+                String name = input.readUTF();
+                put(uniqueName, name);
+            }
+        } catch (EOFException e) {
+            // end of the entries (an entry truncated by a crash is ignored)
+        } catch (IOException e) {
+            // we keep the entries read until now
+        }
+    }
+
+    /**
+     * Returns the id of the sender, registering it (or updating its name) if needed
+     **/
+    public synchronized int register(String uniqueName, String name) {
+        Integer id = ids.get(uniqueName);
+        if (id != null && names.get(id).equals(name)) {
+            return id;
+        }
+        try (DataOutputStream output = new DataOutputStream(new FileOutputStream(file, true))) {
+            output.writeUTF(uniqueName);
+            output.writeUTF(name);
+        } catch (IOException e) {
+            // the id remains valid for this session
+        }
+        return put(uniqueName, name);
+    }
+
+    private int put(String uniqueName, String name) {
+        Integer id = ids.get(uniqueName);
+        if (id == null) {
+            id = uniqueNames.size();
+            ids.put(uniqueName, id);
+            uniqueNames.add(uniqueName);
+            names.add(name);
+        } else {
+            names.set(id, name);
+        }
+        return id;
+    }
+
+    /**
+     * Returns NO_SENDER if the sender is not registered
+     **/
+    public synchronized int getId(String uniqueName) {
+        Integer id = ids.get(uniqueName);
+        return id != null ? id : NO_SENDER;
+    }
+
+    @Nullable
+    public synchronized String getName(int id) {
+        return id >= 0 && id < names.size() ? names.get(id) : null;
+    }
+
+    @Nullable
+    public synchronized String getUniqueName(int id) {
+        return id >= 0 && id < uniqueNames.size() ? uniqueNames.get(id) : null;
+    }
+
+    public synchronized int size() {
+        return uniqueNames.size();
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2016 Luca Martino.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copyFile of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bluetooth.communicatorexample.tools;
+
+import java.util.List;
+
+/**
+ * Checks on the name of this device, without dependencies on Android so they can be measured on the JVM
+ **/
+public class DeviceNames {
+    public static final int MAX_LENGTH = 18;
+
+    /**
+     * Returns true if all the characters of name are in supportedCharacters (the characters that the BluetoothCommunicator can send)
+     **/
+    public static boolean hasOnlySupportedCharacters(String name, List<Character> supportedCharacters) {
+        for (int i = 0; i < name.length(); i++) {
+            if (!supportedCharacters.contains(Character.valueOf(name.charAt(i)))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2016 Luca Martino.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copyFile of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bluetooth.communicatorexample.tools;
+
+/**
+ * Conversion of durations in hours, minutes and seconds, without dependencies on Android so it can be measured on the JVM
+ **/
+public class DurationConverter {
+    private static final long hourMillis=3600000;
+    private static final long minuteMillis=60000;
+    private static final long secondMillis=1000;
+
+    /**
+     * Returns {hours, minutes, seconds} of millis
+     **/
+    public static int[] convertIntoDate(long millis){
+        int hours=0;
+        int minutes=0;
+        int seconds=0;
+        if(millis>hourMillis){
+            long rest=millis%hourMillis;
+            hours= (int) ((millis-rest)/hourMillis);
+            millis=rest;
+        }
+        if(millis>minuteMillis){
+            long rest=millis%minuteMillis;
+            minutes= (int) ((millis-rest)/minuteMillis);
+            millis=rest;
+        }
+        if(millis>secondMillis){
+            long rest=millis%secondMillis;
+            seconds= (int) ((millis-rest)/secondMillis);
+        }
+
+        return new int[]{hours,minutes,seconds};
+    }
+}
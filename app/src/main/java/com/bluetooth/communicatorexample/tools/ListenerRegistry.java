@@ -0,0 +1,119 @@
+/*
+ * Copyright 2016 Luca Martino.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copyFile of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bluetooth.communicatorexample.tools;
+
+import androidx.lifecycle.Lifecycle;
+import androidx.lifecycle.LifecycleEventObserver;
+import androidx.lifecycle.LifecycleOwner;
+
+/**
+ * List of listeners that can be notified from any thread while other threads add or remove listeners:
+ * each change creates a new array (the changes are rare) and the notification iterates the last array without locks and
+ * without allocations, so a listener added or removed during a notification is considered from the next one.
+ * The listeners added with a LifecycleOwner are registered only while the owner is resumed and are forgotten when it is
+ * destroyed, so they do not need to be removed
+ **/
+public class ListenerRegistry<T> {
+    private static final Object[] EMPTY = new Object[0];
+    private volatile Object[] listeners = EMPTY;
+
+    /**
+     * Adds listener, if it is not already registered
+     **/
+    public synchronized void add(T listener) {
+        Object[] current = listeners;
+        if (indexOf(current, listener) == -1) {
+            Object[] newListeners = new Object[current.length + 1];
+            System.arraycopy(current, 0, newListeners, 0, current.length);
+            newListeners[current.length] = listener;
+            listeners = newListeners;
+        }
+    }
+
+    /**
+     * Registers listener while owner is resumed (from ON_RESUME to ON_PAUSE), must be called on the main thread
+     **/
+    public void add(final T listener, LifecycleOwner owner) {
+        owner.getLifecycle().addObserver(new LifecycleEventObserver() {
+            @Override
+            public void onStateChanged(LifecycleOwner source, Lifecycle.Event event) {
+                switch (event) {
+                    case ON_RESUME:
+                        add(listener);
+                        break;
+                    case ON_PAUSE:
+                        remove(listener);
+                        break;
+                    case ON_DESTROY:
+                        remove(listener);
+                        source.getLifecycle().removeObserver(this);
+                        break;
+                }
+            }
+        });
+    }
+
+    public synchronized void remove(T listener) {
+        Object[] current = listeners;
+        int index = indexOf(current, listener);
+        if (index != -1) {
+            if (current.length == 1) {
+                listeners = EMPTY;
+            } else {
+                Object[] newListeners = new Object[current.length - 1];
+                System.arraycopy(current, 0, newListeners, 0, index);
+                System.arraycopy(current, index + 1, newListeners, index, current.length - index - 1);
+                listeners = newListeners;
+            }
+        }
+    }
+
+    /**
+     * Calls action for each listener registered when the call starts
+     **/
+    @SuppressWarnings("unchecked")
+    public void forEach(Action<T> action) {
+        Object[] snapshot = listeners;
+        for (int i = 0; i < snapshot.length; i++) {
+            action.run((T) snapshot[i]);
+        }
+    }
+
+    public int size() {
+        return listeners.length;
+    }
+
+    public boolean isEmpty() {
+        return listeners.length == 0;
+    }
+
+    private static int indexOf(Object[] array, Object listener) {
+        for (int i = 0; i < array.length; i++) {
+            if (array[i] == listener) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The actions can be kept in constants, so the notifications do not allocate anything
+     **/
+    public interface Action<T> {
+        void run(T listener);
+    }
+}
@@ -23,9 +23,6 @@ import com.bluetooth.communicator.tools.CustomCountDownTimer;
 
 
 public class Timer {
-    private final long hourMillis=3600000;
-    private final long minuteMillis=60000;
-    private final long secondMillis=1000;
     private CustomCountDownTimer timer;
     private long duration;
     private Handler mainHandler;
@@ -86,25 +83,7 @@ public class Timer {
     }
 
     private int[] convertIntoDate(long millis){
-        int hours=0;
-        int minutes=0;
-        int seconds=0;
-        if(millis>hourMillis){
-            long rest=millis%hourMillis;
-            hours= (int) ((millis-rest)/hourMillis);
-            millis=rest;
-        }
-        if(millis>minuteMillis){
-            long rest=millis%minuteMillis;
-            minutes= (int) ((millis-rest)/minuteMillis);
-            millis=rest;
-        }
-        if(millis>secondMillis){
-            long rest=millis%secondMillis;
-            seconds= (int) ((millis-rest)/secondMillis);
-        }
-
-        return new int[]{hours,minutes,seconds};
+        return DurationConverter.convertIntoDate(millis);
     }
 
     public interface DateCallback {
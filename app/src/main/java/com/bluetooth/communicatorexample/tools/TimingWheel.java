@@ -0,0 +1,151 @@
+/*
+ * Copyright 2016 Luca Martino.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copyFile of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bluetooth.communicatorexample.tools;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Hashed timing wheel: the deadlines of any number of keys are kept in slotsCount slots of tickMillis each (the slot of a deadline
+ * is its tick modulo slotsCount), and a single periodic call of advance finds the expired keys looking only at the slots of the
+ * ticks elapsed. Postponing the deadline of a key takes constant time and does not move it: when its old slot is reached the key is
+ * moved to the slot of its new deadline, the same happens to the deadlines beyond a round of the wheel.
+ * A deadline can only be postponed, an earlier one is applied at the old slot.
+ * The slots contain an Entry for each key, a cancelled entry stays in its slot until the slot is reached but is marked,
+ * so it is discarded even if the key has been scheduled again in the meantime (with a new entry).
+ * It has no dependencies on Android so it can be measured on the JVM, it is not thread safe
+ **/
+public class TimingWheel<K> {
+    private final long tickMillis;
+    private final ArrayList<ArrayList<Entry<K>>> slots;
+    private final HashMap<K, Entry<K>> entries = new HashMap<>();
+    // the ticks before this one have been processed
+    private long nextTick;
+    private ArrayList<Entry<K>> spare = new ArrayList<>();
+
+    public TimingWheel(int slotsCount, long tickMillis, long nowMillis) {
+        this.tickMillis = tickMillis;
+        this.slots = new ArrayList<>(slotsCount);
+        for (int i = 0; i < slotsCount; i++) {
+            slots.add(new ArrayList<Entry<K>>());
+        }
+        this.nextTick = nowMillis / tickMillis;
+    }
+
+    /**
+     * Sets the deadline of key, adding it if it is not in the wheel
+     **/
+    public void schedule(K key, long deadlineMillis) {
+        Entry<K> entry = entries.get(key);
+        if (entry != null) {
+            // the entry is moved when its current slot is reached
+            entry.deadline = deadlineMillis;
+        } else {
+            entry = new Entry<>(key, deadlineMillis);
+            entries.put(key, entry);
+            slotOf(deadlineMillis).add(entry);
+        }
+    }
+
+    public void cancel(K key) {
+        Entry<K> entry = entries.remove(key);
+        if (entry != null) {
+            // the entry is discarded when its slot is reached
+            entry.cancelled = true;
+        }
+    }
+
+    public boolean contains(K key) {
+        return entries.containsKey(key);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    // number of entries in the slots, including the cancelled ones not yet discarded
+    int getSlotEntriesCount() {
+        int count = 0;
+        for (int i = 0; i < slots.size(); i++) {
+            count += slots.get(i).size();
+        }
+        return count;
+    }
+
+    public void clear() {
+        for (Entry<K> entry : entries.values()) {
+            entry.cancelled = true;
+        }
+        entries.clear();
+        for (int i = 0; i < slots.size(); i++) {
+            slots.get(i).clear();
+        }
+    }
+
+    /**
+     * Removes the keys whose deadline is not after nowMillis and adds them to expired
+     **/
+    public void advance(long nowMillis, List<K> expired) {
+        long lastTick = nowMillis / tickMillis;
+        // after a round all the slots have been visited
+        long firstTick = Math.max(nextTick, lastTick - slots.size() + 1);
+        for (long tick = firstTick; tick <= lastTick; tick++) {
+            int index = (int) (tick % slots.size());
+            // the keys not expired of this tick go to the next one at least
+            nextTick = tick + 1;
+            ArrayList<Entry<K>> slot = slots.get(index);
+            if (slot.isEmpty()) {
+                continue;
+            }
+            // the keys not expired can return in this same slot
+            slots.set(index, spare);
+            for (int i = 0; i < slot.size(); i++) {
+                Entry<K> entry = slot.get(i);
+                if (entry.cancelled) {
+                    continue;
+                }
+                if (entry.deadline <= nowMillis) {
+                    entries.remove(entry.key);
+                    expired.add(entry.key);
+                } else {
+                    slotOf(entry.deadline).add(entry);
+                }
+            }
+            slot.clear();
+            spare = slot;
+        }
+        nextTick = Math.max(nextTick, lastTick + 1);
+    }
+
+    private ArrayList<Entry<K>> slotOf(long deadlineMillis) {
+        // a deadline already passed goes in the next slot to be processed
+        long tick = Math.max(deadlineMillis / tickMillis, nextTick);
+        return slots.get((int) (tick % slots.size()));
+    }
+
+    private static class Entry<K> {
+        private final K key;
+        private long deadline;
+        private boolean cancelled = false;
+
+        private Entry(K key, long deadline) {
+            this.key = key;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.bluetooth.communicatorexample.communication;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trips and malformed inputs of the binary envelope format.
+ */
+public class EnvelopeCodecTest {
+    private final EnvelopeCodec codec = new EnvelopeCodec(16);
+
+    @Test
+    public void roundTrip_textOnly() {
+        Envelope decoded = roundTrip(new Envelope(Envelope.TYPE_TEXT, 42, "hello"));
+        assertEquals(Envelope.TYPE_TEXT, decoded.getType());
+        assertEquals(42, decoded.getSenderId());
+        assertEquals("hello", decoded.getText());
+        assertEquals(Envelope.NO_TIMESTAMP, decoded.getTimestamp());
+        assertNull(decoded.getContentType());
+    }
+
+    @Test
+    public void roundTrip_withExtensions() {
+        Envelope envelope = new Envelope(Envelope.TYPE_TEXT, Integer.MAX_VALUE, "see you later");
+        envelope.setTimestamp(1602000000000L);
+        envelope.setContentType("text/plain");
+        Envelope decoded = roundTrip(envelope);
+        assertEquals(Integer.MAX_VALUE, decoded.getSenderId());
+        assertEquals(1602000000000L, decoded.getTimestamp());
+        assertEquals("text/plain", decoded.getContentType());
+        assertEquals("see you later", decoded.getText());
+    }
+
+    @Test
+    public void roundTrip_nonAsciiText() {
+        String text = "caffè 日本語 😀";
+        assertEquals(text, roundTrip(new Envelope(Envelope.TYPE_TEXT, 1, text)).getText());
+    }
+
+    @Test
+    public void roundTrip_emptyText() {
+        assertEquals("", roundTrip(new Envelope(Envelope.TYPE_TEXT, 0, "")).getText());
+    }
+
+    @Test
+    public void encode_growsAndReusesBuffer() {
+        StringBuilder longText = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            longText.append("abc");
+        }
+        assertEquals(longText.toString(), roundTrip(new Envelope(Envelope.TYPE_TEXT, 7, longText.toString())).getText());
+        byte[] buffer = codec.getBuffer();
+        codec.encode(new Envelope(Envelope.TYPE_TEXT, 7, "short"));
+        assertSame(buffer, codec.getBuffer());
+    }
+
+    @Test
+    public void encode_isSmallerThanStringForm() {
+        String[] texts = {"ok", "see you later", "caffè o tè? 😀", "are you coming to the meeting tomorrow morning?"};
+        for (String text : texts) {
+            Envelope envelope = new Envelope(Envelope.TYPE_TEXT, Envelope.senderIdOf("User 3-4a1f"), text);
+            envelope.setTimestamp(1602000000000L);
+            // the same fields in a delimited string, in UTF-8
+            String stringForm = envelope.getType() + "|" + envelope.getSenderId() + "|" + envelope.getTimestamp() + "|" + envelope.getText();
+            assertTrue(text, codec.encode(envelope) < stringForm.getBytes(Charset.forName("UTF-8")).length);
+        }
+    }
+
+    @Test
+    public void decode_skipsUnknownExtensions() {
+        byte[] data = {
+                EnvelopeCodec.VERSION, 1, 5,
+                2,  // extensions count
+                99, 3, 1, 2, 3,  // unknown extension with 3 bytes
+                Envelope.EXTENSION_TIMESTAMP, 1, 100,
+                2, 'h', 'i'
+        };
+        Envelope envelope = new Envelope();
+        assertTrue(codec.decode(data, envelope));
+        assertEquals(5, envelope.getSenderId());
+        assertEquals(100, envelope.getTimestamp());
+        assertEquals("hi", envelope.getText());
+    }
+
+    @Test
+    public void decode_rejectsOtherVersions() {
+        byte[] data = codec.encodeToByteArray(new Envelope(Envelope.TYPE_TEXT, 1, "hi"));
+        data[0] = EnvelopeCodec.VERSION + 1;
+        assertFalse(codec.decode(data, new Envelope()));
+    }
+
+    @Test
+    public void decode_rejectsTruncatedData() {
+        Envelope envelope = new Envelope(Envelope.TYPE_TEXT, 300, "hello");
+        envelope.setTimestamp(123456789L);
+        byte[] data = codec.encodeToByteArray(envelope);
+        for (int length = 0; length < data.length; length++) {
+            assertFalse("length " + length, codec.decode(data, 0, length, new Envelope()));
+        }
+        assertTrue(codec.decode(data, 0, data.length, new Envelope()));
+    }
+
+    @Test
+    public void decode_withOffset() {
+        byte[] encoded = codec.encodeToByteArray(new Envelope(Envelope.TYPE_TEXT, 9, "offset"));
+        byte[] data = new byte[encoded.length + 4];
+        System.arraycopy(encoded, 0, data, 2, encoded.length);
+        Envelope envelope = new Envelope();
+        assertTrue(codec.decode(data, 2, encoded.length, envelope));
+        assertEquals("offset", envelope.getText());
+    }
+
+    @Test
+    public void varintSize() {
+        assertEquals(1, EnvelopeCodec.varintSize(0));
+        assertEquals(1, EnvelopeCodec.varintSize(127));
+        assertEquals(2, EnvelopeCodec.varintSize(128));
+        assertEquals(5, EnvelopeCodec.varintSize(Integer.MAX_VALUE));
+        assertEquals(10, EnvelopeCodec.varintSize(-1L));
+    }
+
+    private Envelope roundTrip(Envelope envelope) {
+        byte[] data = codec.encodeToByteArray(envelope);
+        Envelope decoded = new Envelope();
+        assertTrue(codec.decode(data, decoded));
+        return decoded;
+    }
+}
@@ -0,0 +1,98 @@
+package com.bluetooth.communicatorexample.communication;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Latency, bandwidth, interruptions, ordering and losses of the simulated links of the LoopbackTransport.
+ */
+public class LinkModelTest {
+    private final LinkModel model = new LinkModel(new Random(42));
+
+    @Test
+    public void schedule_unlimitedBandwidth_onlyLatency() {
+        model.setLatency(20);
+        LinkModel.Link link = model.newLink();
+        assertEquals(20, link.schedule(true, 100000, 1000));
+        assertEquals(20, link.schedule(true, 100000, 1000));
+    }
+
+    @Test
+    public void schedule_bandwidthQueuesMessagesOfSameDirection() {
+        model.setLatency(10);
+        model.setBandwidth(1000);
+        LinkModel.Link link = model.newLink();
+        // 100 bytes take 100 ms
+        assertEquals(110, link.schedule(true, 100, 0));
+        assertEquals(210, link.schedule(true, 100, 0));
+        assertEquals(160, link.schedule(true, 100, 150));
+        // the other direction and the other links are free
+        assertEquals(110, link.schedule(false, 100, 0));
+        assertEquals(110, model.newLink().schedule(true, 100, 0));
+    }
+
+    @Test
+    public void schedule_afterIdle_startsNow() {
+        model.setLatency(10);
+        model.setBandwidth(1000);
+        LinkModel.Link link = model.newLink();
+        link.schedule(true, 100, 0);
+        assertEquals(110, link.schedule(true, 100, 500));
+    }
+
+    @Test
+    public void interrupt_delaysBothDirectionsUntilResume() {
+        model.setLatency(10);
+        model.setBandwidth(1000);
+        LinkModel.Link link = model.newLink();
+        link.interrupt(500);
+        // a shorter interruption does not shorten the current one
+        link.interrupt(300);
+        // arrive at 610 and 710, in the order they were sent
+        assertEquals(510, link.schedule(true, 100, 100));
+        assertEquals(510, link.schedule(true, 100, 200));
+        assertEquals(210, link.schedule(false, 100, 400));
+    }
+
+    @Test
+    public void schedule_keepsOrderOfEachDirection() {
+        Random random = new Random(7);
+        model.setLatency(15);
+        model.setBandwidth(2000);
+        LinkModel.Link link = model.newLink();
+        long now = 0;
+        long lastArrival = 0;
+        for (int i = 0; i < 1000; i++) {
+            now += random.nextInt(100);
+            if (random.nextInt(50) == 0) {
+                link.interrupt(now + random.nextInt(1000));
+            }
+            long arrival = now + link.schedule(true, random.nextInt(500), now);
+            assertTrue(arrival >= now + 15);
+            assertTrue(arrival >= lastArrival);
+            lastArrival = arrival;
+        }
+    }
+
+    @Test
+    public void isLost_countsLosses() {
+        assertFalse(model.isLost());
+        model.setLossRate(1);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(model.isLost());
+        }
+        assertEquals(10, model.getLostCount());
+        model.setLossRate(0.25);
+        int lost = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (model.isLost()) {
+                lost++;
+            }
+        }
+        assertEquals(10 + lost, model.getLostCount());
+        assertTrue(lost > 2250 && lost < 2750);
+    }
+}
@@ -0,0 +1,112 @@
+package com.bluetooth.communicatorexample.gui;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+import static com.bluetooth.communicatorexample.gui.PeerStoreTest.peer;
+import static org.junit.Assert.*;
+
+/**
+ * Ranks, positions and expirations of the peer ranking.
+ */
+public class PeerRankingTest {
+    private static final long HALF_LIFE = PeerRanking.HALF_LIFE;
+    private final PeerRanking ranking = new PeerRanking(0);
+
+    @Test
+    public void rank_moreFrequentSightingsRankHigher() {
+        for (int i = 0; i < 5; i++) {
+            ranking.onSighting("near", false, i * 100);
+        }
+        ranking.onSighting("far", false, 400);
+        assertTrue(ranking.getRank("near") > ranking.getRank("far"));
+    }
+
+    @Test
+    public void rank_differenceIsLogOfDecayedScores() {
+        // score 3 at time 0, score 1 at time HALF_LIFE / 2 and at 2 * HALF_LIFE
+        for (int i = 0; i < 3; i++) {
+            ranking.onSighting("a", false, 0);
+        }
+        ranking.onSighting("b", false, HALF_LIFE / 2);
+        ranking.onSighting("c", false, 2 * HALF_LIFE);
+        // a decays to 3 / sqrt(2) and then to 3 / 4
+        assertEquals(log2(3 / Math.sqrt(2)), ranking.getRank("a") - ranking.getRank("b"), 1e-9);
+        assertEquals(log2(3 / 4.0), ranking.getRank("a") - ranking.getRank("c"), 1e-9);
+        assertTrue(ranking.getRank("a") > ranking.getRank("b"));
+        assertTrue(ranking.getRank("a") < ranking.getRank("c"));
+    }
+
+    @Test
+    public void rank_bondedBonus() {
+        ranking.onSighting("a", true, 0);
+        ranking.onSighting("b", false, 0);
+        assertEquals(PeerRanking.BONDED_BONUS, ranking.getRank("a") - ranking.getRank("b"), 1e-9);
+    }
+
+    @Test
+    public void positionFor_appliesHysteresis() {
+        PeerStore store = new PeerStore();
+        store.put(peer("a"));
+        store.put(peer("b"));
+        ranking.onSighting("a", false, 0);
+        // b passes a by less than the hysteresis
+        ranking.onSighting("b", false, (long) (HALF_LIFE * PeerRanking.HYSTERESIS / 2));
+        assertEquals(1, ranking.positionFor(store, 1));
+        // and then by more
+        ranking.onSighting("b", false, (long) (HALF_LIFE * PeerRanking.HYSTERESIS / 2));
+        assertTrue(ranking.getRank("b") - ranking.getRank("a") > PeerRanking.HYSTERESIS);
+        assertEquals(0, ranking.positionFor(store, 1));
+    }
+
+    @Test
+    public void positionFor_findsPlaceAmongSortedPeers() {
+        PeerStore store = new PeerStore();
+        String[] names = {"a", "b", "c", "d", "e"};
+        for (int i = 0; i < names.length; i++) {
+            store.put(peer(names[i]));
+            // each one seen 2 half lives before the previous, so the first is the highest
+            ranking.onSighting(names[i], false, (10 - 2 * i) * HALF_LIFE);
+        }
+        store.put(peer("new"));
+        // above c (rank 6), d and e, below b (rank 8)
+        ranking.onSighting("new", false, 7 * HALF_LIFE);
+        assertEquals(2, ranking.positionFor(store, 5));
+    }
+
+    @Test
+    public void expire_removesSilentPeers() {
+        ranking.setExpiry(1000);
+        ranking.onSighting("a", false, 0);
+        ranking.onSighting("b", false, 0);
+        ranking.onSighting("b", false, 1500);
+        ArrayList<String> expired = new ArrayList<>();
+        ranking.expire(2200, expired);
+        assertEquals(Collections.singletonList("a"), expired);
+        assertEquals(Double.NEGATIVE_INFINITY, ranking.getRank("a"), 0);
+        expired.clear();
+        // the expirations have the precision of a tick of the wheel
+        ranking.expire(3500, expired);
+        assertEquals(Collections.singletonList("b"), expired);
+        assertTrue(ranking.isEmpty());
+    }
+
+    @Test
+    public void remove_thenSeenAgain_expiresOnce() {
+        ranking.setExpiry(1000);
+        ranking.onSighting("a", false, 0);
+        ranking.remove("a");
+        ranking.onSighting("a", false, 500);
+        ArrayList<String> expired = new ArrayList<>();
+        ranking.expire(1200, expired);
+        assertEquals(Collections.emptyList(), expired);
+        ranking.expire(2500, expired);
+        assertEquals(Collections.singletonList("a"), expired);
+    }
+
+    private static double log2(double value) {
+        return Math.log(value) / Math.log(2);
+    }
+}
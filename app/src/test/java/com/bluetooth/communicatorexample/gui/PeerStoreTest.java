@@ -0,0 +1,74 @@
+package com.bluetooth.communicatorexample.gui;
+
+import com.bluetooth.communicator.Peer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Positions, ids and moves of the peer store.
+ */
+public class PeerStoreTest {
+    private final PeerStore store = new PeerStore();
+
+    @Test
+    public void put_appendsAndUpdatesInPlace() {
+        store.put(peer("a"));
+        store.put(peer("b"));
+        long id = store.getId(0);
+        Peer newA = peer("a");
+        assertEquals(0, store.put(newA));
+        assertSame(newA, store.get(0));
+        assertEquals(id, store.getId(0));
+        assertEquals(2, store.size());
+    }
+
+    @Test
+    public void remove_shiftsFollowingPositions() {
+        for (String name : new String[]{"a", "b", "c", "d"}) {
+            store.put(peer(name));
+        }
+        assertEquals(1, store.remove("b"));
+        assertEquals(0, store.indexOf("a"));
+        assertEquals(1, store.indexOf("c"));
+        assertEquals(2, store.indexOf("d"));
+        assertEquals(-1, store.indexOf("b"));
+    }
+
+    @Test
+    public void move_upAndDown() {
+        for (String name : new String[]{"a", "b", "c", "d"}) {
+            store.put(peer(name));
+        }
+        long idOfD = store.getId(3);
+        store.move(3, 0);
+        assertOrder("d", "a", "b", "c");
+        assertEquals(idOfD, store.getId(0));
+        store.move(1, 3);
+        assertOrder("d", "b", "c", "a");
+        store.remove("b");
+        assertOrder("d", "c", "a");
+    }
+
+    @Test
+    public void put_afterRemove_givesNewId() {
+        store.put(peer("a"));
+        long id = store.getId(0);
+        store.remove("a");
+        store.put(peer("a"));
+        assertNotEquals(id, store.getId(0));
+    }
+
+    private void assertOrder(String... names) {
+        assertEquals(names.length, store.size());
+        for (int i = 0; i < names.length; i++) {
+            assertEquals(names[i], store.get(i).getUniqueName());
+            assertEquals(i, store.indexOf(names[i]));
+        }
+    }
+
+    static Peer peer(String uniqueName) {
+        return new Peer(null, uniqueName, false);
+    }
+}
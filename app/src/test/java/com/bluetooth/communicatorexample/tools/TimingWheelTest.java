@@ -0,0 +1,110 @@
+package com.bluetooth.communicatorexample.tools;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Expirations of the timing wheel, with 8 slots of 100 ms (a round is 800 ms).
+ */
+public class TimingWheelTest {
+    private final TimingWheel<String> wheel = new TimingWheel<>(8, 100, 0);
+
+    @Test
+    public void advance_expiresAtDeadline() {
+        wheel.schedule("a", 250);
+        assertEquals(Collections.emptyList(), advance(200));
+        assertEquals(Collections.singletonList("a"), advance(300));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void advance_expiresNotBeforeDeadlineAndAtMostOneTickLate() {
+        wheel.schedule("a", 250);
+        assertEquals(Collections.emptyList(), advance(249));
+        assertEquals(Collections.singletonList("a"), advance(350));
+    }
+
+    @Test
+    public void advance_wrapsAround() {
+        for (long now = 0; now < 2000; now += 100) {
+            wheel.schedule("k" + now, now + 150);
+            ArrayList<String> expired = advance(now);
+            if (now >= 200) {
+                assertEquals(Collections.singletonList("k" + (now - 200)), expired);
+            }
+        }
+    }
+
+    @Test
+    public void advance_deadlineBeyondOneRound() {
+        wheel.schedule("a", 2050);
+        for (long now = 100; now < 2050; now += 100) {
+            assertEquals("expired at " + now, Collections.emptyList(), advance(now));
+        }
+        assertEquals(Collections.singletonList("a"), advance(2100));
+    }
+
+    @Test
+    public void schedule_postponesDeadline() {
+        wheel.schedule("a", 200);
+        wheel.schedule("a", 600);
+        assertEquals(Collections.emptyList(), advance(300));
+        assertTrue(wheel.contains("a"));
+        assertEquals(Collections.singletonList("a"), advance(600));
+    }
+
+    @Test
+    public void cancel_preventsExpiry() {
+        wheel.schedule("a", 200);
+        wheel.cancel("a");
+        assertFalse(wheel.contains("a"));
+        assertEquals(Collections.emptyList(), advance(1000));
+        assertEquals(0, wheel.getSlotEntriesCount());
+    }
+
+    @Test
+    public void cancelAndSchedule_keepsSingleEntry() {
+        wheel.schedule("a", 150);
+        wheel.cancel("a");
+        wheel.schedule("a", 650);
+        wheel.cancel("a");
+        wheel.schedule("a", 1250);
+        // all the slots are visited, the cancelled entries are discarded
+        assertEquals(Collections.emptyList(), advance(800));
+        assertEquals(1, wheel.getSlotEntriesCount());
+        assertEquals(Collections.singletonList("a"), advance(1300));
+        assertEquals(Collections.emptyList(), advance(3000));
+        assertEquals(0, wheel.getSlotEntriesCount());
+    }
+
+    @Test
+    public void advance_longPauseExpiresEachKeyOnce() {
+        wheel.schedule("a", 100);
+        wheel.schedule("b", 900);
+        wheel.schedule("c", 5000);
+        ArrayList<String> expired = advance(10000);
+        Collections.sort(expired);
+        assertEquals(Arrays.asList("a", "b", "c"), expired);
+        assertEquals(Collections.emptyList(), advance(20000));
+    }
+
+    @Test
+    public void clear_removesAllKeys() {
+        wheel.schedule("a", 100);
+        wheel.schedule("b", 900);
+        wheel.clear();
+        assertEquals(0, wheel.size());
+        assertEquals(Collections.emptyList(), advance(2000));
+    }
+
+    private ArrayList<String> advance(long now) {
+        ArrayList<String> expired = new ArrayList<>();
+        wheel.advance(now, expired);
+        return expired;
+    }
+}
@@ -0,0 +1,43 @@
+package com.bluetooth.communicatorexample.benchmarks;
+
+import com.bluetooth.communicatorexample.tools.DeviceNames;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Check of the characters of the device name done in Global.onCreate
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DeviceNamesBenchmark {
+    @Param({"Pixel 4a", "SM-G973F", "Redmi Note 8 Pro"})
+    public String name;
+    private final ArrayList<Character> supportedCharacters = new ArrayList<>();
+
+    @Setup
+    public void setup() {
+        // similar to BluetoothTools.getSupportedUTFCharacters: the printable ASCII and Latin-1 characters
+        for (char c = 0x20; c < 0x7F; c++) {
+            supportedCharacters.add(c);
+        }
+        for (char c = 0xA0; c <= 0xFF; c++) {
+            supportedCharacters.add(c);
+        }
+    }
+
+    @Benchmark
+    public boolean hasOnlySupportedCharacters() {
+        return DeviceNames.hasOnlySupportedCharacters(name, supportedCharacters);
+    }
+}
@@ -0,0 +1,29 @@
+package com.bluetooth.communicatorexample.benchmarks;
+
+import com.bluetooth.communicatorexample.tools.DurationConverter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversion of the remaining time done by tools.Timer at each tick
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DurationConverterBenchmark {
+    @Param({"15000", "3723000"})
+    public long millis;
+
+    @Benchmark
+    public int[] convertIntoDate() {
+        return DurationConverter.convertIntoDate(millis);
+    }
+}
@@ -0,0 +1,98 @@
+package com.bluetooth.communicatorexample.benchmarks;
+
+import com.bluetooth.communicatorexample.communication.Envelope;
+import com.bluetooth.communicatorexample.communication.EnvelopeCodec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of the envelope of the chat messages, with ASCII and non ASCII texts of different lengths.
+ * The baseline is the string form of the same fields ("type|sender id|timestamp|text", encoded in UTF-8 and parsed with split)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EnvelopeCodecBenchmark {
+    @Param({"8", "64", "512"})
+    public int textLength;
+    @Param({"true", "false"})
+    public boolean ascii;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private final EnvelopeCodec codec = new EnvelopeCodec();
+    private final Envelope envelope = new Envelope();
+    private final Envelope decoded = new Envelope();
+    private byte[] encoded;
+    private byte[] encodedString;
+
+    @Setup
+    public void setup() {
+        String alphabet = ascii ? "abcdefghijklmnopqrstuvwxyz " : "àèéìòù日本語 ";
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < textLength; i++) {
+            text.append(alphabet.charAt(i % alphabet.length()));
+        }
+        envelope.setType(Envelope.TYPE_TEXT);
+        envelope.setSenderId(Envelope.senderIdOf("User 3-4a1f"));
+        envelope.setTimestamp(1602000000000L);
+        envelope.setText(text.toString());
+        encoded = codec.encodeToByteArray(envelope);
+        encodedString = encodeString(envelope);
+    }
+
+    @Benchmark
+    public int encode() {
+        return codec.encode(envelope);
+    }
+
+    @Benchmark
+    public byte[] encodeToByteArray() {
+        return codec.encodeToByteArray(envelope);
+    }
+
+    @Benchmark
+    public Envelope decode() {
+        codec.decode(encoded, decoded);
+        return decoded;
+    }
+
+    @Benchmark
+    public Envelope encodeAndDecode() {
+        int length = codec.encode(envelope);
+        codec.decode(codec.getBuffer(), 0, length, decoded);
+        return decoded;
+    }
+
+    @Benchmark
+    public byte[] encodeStringForm() {
+        return encodeString(envelope);
+    }
+
+    @Benchmark
+    public long decodeStringForm() {
+        return parseString(encodedString);
+    }
+
+    @Benchmark
+    public long encodeAndDecodeStringForm() {
+        return parseString(encodeString(envelope));
+    }
+
+    private static byte[] encodeString(Envelope envelope) {
+        return (envelope.getType() + "|" + envelope.getSenderId() + "|" + envelope.getTimestamp() + "|" + envelope.getText()).getBytes(UTF_8);
+    }
+
+    private static long parseString(byte[] data) {
+        String[] fields = new String(data, UTF_8).split("\\|", 4);
+        return Integer.parseInt(fields[0]) + Integer.parseInt(fields[1]) + Long.parseLong(fields[2]) + fields[3].length();
+    }
+}
@@ -0,0 +1,63 @@
+package com.bluetooth.communicatorexample.benchmarks;
+
+import com.bluetooth.communicator.Peer;
+import com.bluetooth.communicatorexample.gui.PeerStore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Operations of the PeerStore behind PeerListAdapter: the search done for each discovered peer, and a peer lost and found again
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PeerStoreBenchmark {
+    @Param({"5", "50", "500"})
+    public int peersCount;
+    private final PeerStore store = new PeerStore();
+    private final ArrayList<Peer> peers = new ArrayList<>();
+    private String lastUniqueName;
+    private String missingUniqueName;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        for (int i = 0; i < peersCount; i++) {
+            // the unique names of the library are the name followed by a random suffix
+            Peer peer = new Peer("User " + i + "-" + Integer.toHexString(0x1000 + i * 7919), "User " + i);
+            peers.add(peer);
+            store.put(peer);
+        }
+        // new strings, so equals compares the characters as for the names received
+        lastUniqueName = new String(peers.get(peersCount - 1).getUniqueName());
+        missingUniqueName = "User " + peersCount + "-ffff";
+    }
+
+    @Benchmark
+    public int findLast() {
+        return store.indexOf(lastUniqueName);
+    }
+
+    @Benchmark
+    public int findMissing() {
+        return store.indexOf(missingUniqueName);
+    }
+
+    @Benchmark
+    public int removeAndAdd() {
+        Peer peer = peers.get(next);
+        next = (next + 1) % peersCount;
+        store.remove(peer.getUniqueName());
+        return store.put(peer);
+    }
+}
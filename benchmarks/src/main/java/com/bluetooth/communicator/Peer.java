@@ -0,0 +1,23 @@
+package com.bluetooth.communicator;
+
+/**
+ * Replacement of the Peer of the BluetoothCommunicator library for the benchmarks: the library is an Android library,
+ * so it cannot be used on the JVM, this class has only the methods used by the measured code
+ */
+public class Peer {
+    private final String uniqueName;
+    private final String name;
+
+    public Peer(String uniqueName, String name) {
+        this.uniqueName = uniqueName;
+        this.name = name;
+    }
+
+    public String getUniqueName() {
+        return uniqueName;
+    }
+
+    public String getName() {
+        return name;
+    }
+}